@@ -0,0 +1,119 @@
+package dcmwork.bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import dcmwork.DcmHeadex;
+import dcmwork.SyntheticDicom;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LookupBenchmark {
+
+	static final int TRANSFER_SYNTAX_UID = 0x00020010;
+	static final int PATIENT_ID = 0x00100020;
+	static final int PLAN_LABEL = 0x300A0002;
+	static final int NUMBER_OF_BEAMS = 0x300A0080;
+	static final int BEAM_METERSET = 0x300A0086;
+	static final int NOMINAL_ENERGY = 0x300A0114;
+	static final int REFERENCED_SOP_INSTANCE = 0x00081155; //ultimo elemento del plan
+	static final int MISSING = 0x00091001;
+
+	static final int[] QA_TAGS = {PATIENT_ID, PLAN_LABEL, NUMBER_OF_BEAMS, NOMINAL_ENERGY, BEAM_METERSET};
+
+	@Param({"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	public String syntax;
+
+	@Param({"stream", "mapped"})
+	public String reader;
+
+	private String path;
+
+	@Setup
+	public void setup() throws IOException {
+		path = SyntheticDicom.corpus().resolve("plan_"+syntax+".dcm").toString();
+	}
+
+	private DcmHeadex open() {
+		DcmHeadex headex = new DcmHeadex(path);
+		headex.setMapped(reader.equals("mapped"));
+		return headex;
+	}
+
+	//meta header: para en cuanto pasa el tag
+	@Benchmark
+	public String metaTag() throws IOException {
+		return open().value(TRANSFER_SYNTAX_UID);
+	}
+
+	@Benchmark
+	public String lastTag() throws IOException {
+		return open().value(REFERENCED_SOP_INSTANCE);
+	}
+
+	@Benchmark
+	public String missingTag() throws IOException {
+		return open().value(MISSING);
+	}
+
+	@Benchmark
+	public String[] multiTagOnePass() throws IOException {
+		return open().values(QA_TAGS);
+	}
+
+	@Benchmark
+	public void multiTagOneByOne(Blackhole bh) throws IOException {
+		DcmHeadex headex = open();
+		for (int tag : QA_TAGS) bh.consume(headex.value(tag));
+	}
+
+	@Benchmark
+	public double[] typedLeafPositions() throws IOException {
+		return open().doubles(0x300A011C, 2);
+	}
+}
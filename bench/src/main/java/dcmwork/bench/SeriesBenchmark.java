@@ -0,0 +1,84 @@
+package dcmwork.bench;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dcmwork.DcmDataset;
+import dcmwork.DcmSeries;
+import dcmwork.SyntheticDicom;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SeriesBenchmark {
+
+	private String dir;
+	private ExecutorService single;
+
+	@Setup
+	public void setup() throws IOException {
+		dir = SyntheticDicom.corpus().resolve("ct").toString();
+		single = Executors.newSingleThreadExecutor();
+	}
+
+	@TearDown
+	public void tearDown() {
+		single.shutdown();
+	}
+
+	//cabeceras de la serie CT completa, en paralelo y ordenadas
+	@Benchmark
+	public DcmDataset[] ctSeriesParallel() throws IOException {
+		return DcmSeries.loadCT(dir);
+	}
+
+	@Benchmark
+	public DcmDataset[] ctSeriesSingleThread() throws IOException {
+		return DcmSeries.loadCT(dir, single);
+	}
+}
@@ -0,0 +1,130 @@
+package dcmwork.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dcmwork.DcmHeadex;
+import dcmwork.DcmItem;
+import dcmwork.DcmSequence;
+import dcmwork.DcmVisitor;
+import dcmwork.SyntheticDicom;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraversalBenchmark {
+
+	static final int BEAM_SEQUENCE = 0x300A00B0;
+	static final int CONTROL_POINT_SEQUENCE = 0x300A0111;
+	static final int BEAM_LIMITING_DEVICE_POSITION_SEQUENCE = 0x300A011A;
+	static final int LEAF_JAW_POSITIONS = 0x300A011C;
+	static final int ROI_CONTOUR_SEQUENCE = 0x30060039;
+	static final int CONTOUR_SEQUENCE = 0x30060040;
+	static final int CONTOUR_DATA = 0x30060050;
+
+	@Param({"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	public String syntax;
+
+	private String plan;
+	private String struct;
+	private final double[] leaves = new double[256];
+	private final double[] points = new double[3*1024];
+
+	@Setup
+	public void setup() throws IOException {
+		plan = SyntheticDicom.corpus().resolve("plan_"+syntax+".dcm").toString();
+		struct = SyntheticDicom.corpus().resolve("struct_"+syntax+".dcm").toString();
+	}
+
+	//todas las posiciones de laminas y mandibulas del plan por el arbol de secuencias
+	@Benchmark
+	public double planTree() throws IOException {
+		DcmHeadex headex = new DcmHeadex(plan, true);
+		headex.setMapped(true);
+		double sum = 0;
+		for (DcmItem beam : headex.dataset().sequence(BEAM_SEQUENCE)) {
+			for (DcmItem cp : beam.sequence(CONTROL_POINT_SEQUENCE)) {
+				for (DcmItem device : cp.sequence(BEAM_LIMITING_DEVICE_POSITION_SEQUENCE)) {
+					int n = device.doubles(LEAF_JAW_POSITIONS, leaves);
+					for (int i=0; i<n && i<leaves.length; i++) sum += leaves[i];
+				}
+			}
+		}
+		return sum;
+	}
+
+	//ContourData de todas las ROIs
+	@Benchmark
+	public double structContours() throws IOException {
+		DcmHeadex headex = new DcmHeadex(struct, true);
+		headex.setMapped(true);
+		double sum = 0;
+		for (DcmItem roi : headex.dataset().sequence(ROI_CONTOUR_SEQUENCE)) {
+			DcmSequence contours = roi.sequence(CONTOUR_SEQUENCE);
+			for (DcmItem contour : contours) {
+				int n = contour.doubles(CONTOUR_DATA, points);
+				for (int i=0; i<n && i<points.length; i+=3) sum += points[i+2];
+			}
+		}
+		return sum;
+	}
+
+	//recorrido SAX del plan completo con vista de cada valor
+	@Benchmark
+	public long planVisitor() throws IOException {
+		DcmHeadex headex = new DcmHeadex(plan);
+		headex.setMapped(true);
+		final long[] bytes = new long[1];
+		headex.accept(new DcmVisitor() {
+			public int element(int tag, int vr, int length, ByteBuffer value, int depth) {
+				if (value!=null) bytes[0] += value.remaining();
+				return DESCEND;
+			}
+		});
+		return bytes[0];
+	}
+}
@@ -0,0 +1,191 @@
+package calcwork;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class BeamData {
+
+	private final String machine;
+	private final double energy;       //MV nominales
+	private final double calibration;  //Gy/UM con 10x10 en el isocentro y TMR = 1 (SAD)
+	private final double transmission; //transmision bajo laminas y mordazas
+	//tablas de los nodos medidos, de solo lectura y compartidas entre hilos
+	private final GridTable tmr;       //campo equivalente a la profundidad (mm) x profundidad (mm)
+	private final GridTable sc, sp;    //campo equivalente en el isocentro (mm), 1 en 10x10
+	private final GridTable oar;       //distancia al eje en el plano del isocentro (mm) x profundidad (mm)
+
+	//fields, depths, radii y oarDepths crecientes; tmr[profundidad][campo], oar[profundidad][distancia]
+	public BeamData(String machine, double energy, double calibration, double transmission,
+			double[] fields, double[] depths, double[][] tmr, double[] sc, double[] sp,
+			double[] radii, double[] oarDepths, double[][] oar) {
+		increasing(fields, "field sizes");
+		increasing(depths, "TMR depths");
+		increasing(radii, "off-axis distances");
+		increasing(oarDepths, "off-axis depths");
+		if (tmr.length!=depths.length || sc.length!=fields.length || sp.length!=fields.length || oar.length!=oarDepths.length)
+			throw new IllegalArgumentException("Beam data tables do not match their axes");
+		for (double[] r : tmr) {
+			if (r.length!=fields.length) throw new IllegalArgumentException("TMR rows need one value per field size");
+		}
+		for (double[] r : oar) {
+			if (r.length!=radii.length) throw new IllegalArgumentException("OAR rows need one value per distance");
+		}
+		if (!(calibration>0)) throw new IllegalArgumentException("Beam data without calibration");
+		this.machine = machine;
+		this.energy = energy;
+		this.calibration = calibration;
+		this.transmission = transmission;
+		this.tmr = GridTable.of(fields, depths, tmr);
+		this.sc = GridTable.of(fields, sc);
+		this.sp = GridTable.of(fields, sp);
+		this.oar = GridTable.of(radii, oarDepths, oar);
+	}
+
+	private static void increasing(double[] v, String what) {
+		if (v.length==0) throw new IllegalArgumentException("Beam data without "+what);
+		for (int i=1; i<v.length; i++) {
+			if (!(v[i]>v[i-1])) throw new IllegalArgumentException("Beam data "+what+" must be increasing: "+v[i]);
+		}
+	}
+
+	//Datos medidos de una maquina y energia en un archivo de texto; '#' para comentarios:
+	//  machine <nombre>          energy <MV>
+	//  calibration <Gy/UM>       transmission <fraccion>
+	//  fields <lado> ...         tmr <profundidad> <valor por campo> ...
+	//  sc <valor por campo> ...  sp <valor por campo> ...
+	//  radii <distancia> ...     oar <profundidad> <valor por distancia> ...
+	//===========================================================
+	public static BeamData read(String path) throws IOException {
+		String machine = null;
+		double energy = Double.NaN, calibration = Double.NaN, transmission = 0;
+		double[] fields = null, sc = null, sp = null, radii = null;
+		List<double[]> tmr = new ArrayList<double[]>();
+		List<double[]> oar = new ArrayList<double[]>();
+		try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+			String line;
+			int n = 0;
+			while ((line = in.readLine()) != null) {
+				n++;
+				int c = line.indexOf('#');
+				if (c>=0) line = line.substring(0, c);
+				line = line.trim();
+				if (line.isEmpty()) continue;
+				String[] f = line.split("[\\s,;]+");
+				String key = f[0].toLowerCase();
+				if (f.length<2) throw new IOException("Bad beam data line "+n+": "+path);
+				try {
+					if (key.equals("machine")) machine = line.substring(f[0].length()).trim();
+					else if (key.equals("energy")) energy = Double.parseDouble(f[1]);
+					else if (key.equals("calibration")) calibration = Double.parseDouble(f[1]);
+					else if (key.equals("transmission")) transmission = Double.parseDouble(f[1]);
+					else if (key.equals("fields")) fields = values(f);
+					else if (key.equals("sc")) sc = values(f);
+					else if (key.equals("sp")) sp = values(f);
+					else if (key.equals("radii")) radii = values(f);
+					else if (key.equals("tmr")) tmr.add(values(f));
+					else if (key.equals("oar")) oar.add(values(f));
+					else throw new IOException("Unknown beam data line "+n+": "+path);
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad beam data line "+n+": "+path, e);
+				}
+			}
+		}
+		if (fields==null || sc==null || sp==null || tmr.isEmpty()) throw new IOException("Incomplete beam data: "+path);
+		//sin perfiles se supone un haz plano
+		if (radii==null || oar.isEmpty()) {
+			radii = new double[] {0};
+			oar.clear();
+			oar.add(new double[] {0, 1});
+		}
+		double[] depths = new double[tmr.size()];
+		double[][] t = new double[tmr.size()][];
+		for (int i=0; i<depths.length; i++) {
+			depths[i] = tmr.get(i)[0];
+			t[i] = Arrays.copyOfRange(tmr.get(i), 1, tmr.get(i).length);
+		}
+		double[] oarDepths = new double[oar.size()];
+		double[][] o = new double[oar.size()][];
+		for (int i=0; i<oarDepths.length; i++) {
+			oarDepths[i] = oar.get(i)[0];
+			o[i] = Arrays.copyOfRange(oar.get(i), 1, oar.get(i).length);
+		}
+		try {
+			return new BeamData(machine, energy, calibration, transmission, fields, depths, t, sc, sp, radii, oarDepths, o);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage()+": "+path);
+		}
+	}
+
+	private static double[] values(String[] f) {
+		double[] v = new double[f.length-1];
+		for (int i=1; i<f.length; i++) v[i-1] = Double.parseDouble(f[i]);
+		return v;
+	}
+
+	public String machine() {
+		return machine;
+	}
+
+	public double energy() {
+		return energy;
+	}
+
+	public double calibration() {
+		return calibration;
+	}
+
+	public double transmission() {
+		return transmission;
+	}
+
+	//TMR a una profundidad (mm) para un campo equivalente a esa profundidad (mm)
+	public double tmr(double depth, double field) {
+		return tmr.value(field, depth);
+	}
+
+	//factores de dispersion del colimador (campo de mordazas) y del maniqui (campo irradiado)
+	public double sc(double field) {
+		return sc.value(field);
+	}
+
+	public double sp(double field) {
+		return sp.value(field);
+	}
+
+	//perfil relativo al eje a una profundidad y distancia en el plano del isocentro
+	public double oar(double depth, double radius) {
+		return oar.value(radius, depth);
+	}
+}
@@ -0,0 +1,123 @@
+package calcwork;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class CccKernel {
+
+	private final double energy;   //MV nominales
+	private final double mu;       //atenuacion efectiva del haz primario en agua (1/mm)
+	private final double gyPerMU;  //dosis de referencia: 10x10, isocentro a 100 mm de profundidad en agua
+	//por cono cenital (angulo con el eje del haz, centros de intervalos iguales en [0, pi]):
+	//fraccion de la energia liberada, de ella la parte primaria, y atenuaciones (1/mm en agua)
+	//de la componente primaria y la dispersa
+	private final double[] share, primary, a, b;
+
+	public CccKernel(double energy, double mu, double gyPerMU, double[] share, double[] primary, double[] a, double[] b) {
+		int n = share.length;
+		if (n==0 || primary.length!=n || a.length!=n || b.length!=n)
+			throw new IllegalArgumentException("Kernel arrays must have one value per zenith cone");
+		double sum = 0;
+		for (double s : share) sum += s;
+		if (!(sum>0)) throw new IllegalArgumentException("Kernel without energy");
+		this.energy = energy;
+		this.mu = mu;
+		this.gyPerMU = gyPerMU;
+		this.share = new double[n];
+		for (int i=0; i<n; i++) this.share[i] = share[i]/sum;
+		this.primary = primary.clone();
+		this.a = a.clone();
+		this.b = b.clone();
+	}
+
+	//Nucleo analitico aproximado (polienergetico, parametros tipo Ahnesjo) para pruebas y
+	//ausencia de datos; para uso clinico se construye con los parametros de la maquina
+	//===========================================================
+	public static CccKernel analytic(double energy, int zeniths) {
+		double e = Math.max(energy, 1);
+		//mu/rho efectivo del espectro (cm2/g -> 1/mm en agua)
+		double mu = 0.0115 * Math.pow(e, -0.47);
+		//hacia delante crece con la energia; alcance de los electrones secundarios ~ 1 cm a 6 MV
+		double kappa = 1.5 + 0.12*e;
+		double a0 = 1 / (1.5 + 0.55*e);
+		double b0 = 1 / (40 + 2*e);
+		double[] share = new double[zeniths];
+		double[] primary = new double[zeniths];
+		double[] a = new double[zeniths];
+		double[] b = new double[zeniths];
+		for (int i=0; i<zeniths; i++) {
+			double t0 = Math.PI*i/zeniths, t1 = Math.PI*(i+1)/zeniths;
+			double t = (t0+t1)/2;
+			double solid = Math.cos(t0) - Math.cos(t1);
+			share[i] = solid * Math.exp(kappa*Math.cos(t));
+			primary[i] = 0.85 + 0.1*Math.cos(t);
+			a[i] = a0 * (1 + 1.5*(1-Math.cos(t)));
+			b[i] = b0 * (1 + 0.5*(1-Math.cos(t)));
+		}
+		//~0.8 cGy/UM a 10 cm (calibracion de 1 cGy/UM en el maximo), algo mas al subir la energia
+		double gy = 0.01 * (0.75 + 0.006*Math.min(e, 18));
+		return new CccKernel(energy, mu, gy, share, primary, a, b);
+	}
+
+	public double energy() {
+		return energy;
+	}
+
+	public double mu() {
+		return mu;
+	}
+
+	public double gyPerMU() {
+		return gyPerMU;
+	}
+
+	public int zeniths() {
+		return share.length;
+	}
+
+	//angulo central del cono i respecto al eje del haz
+	public double zenith(int i) {
+		return Math.PI*(i+0.5)/share.length;
+	}
+
+	double share(int i) {
+		return share[i];
+	}
+
+	double primary(int i) {
+		return primary[i];
+	}
+
+	double a(int i) {
+		return a[i];
+	}
+
+	double b(int i) {
+		return b[i];
+	}
+}
@@ -0,0 +1,126 @@
+package calcwork;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class DensityCurve {
+
+	//la tabla empieza en el aire del CT y llega al menos hasta el maximo de 12 bits
+	private static final int MIN_HU = -1024;
+	private static final int MAX_HU = 3071;
+
+	private final double[] hu;      //puntos de calibracion, HU crecientes
+	private final double[] density; //densidad electronica relativa al agua
+	private final float[] table;    //densidad de cada HU entero desde MIN_HU
+
+	public DensityCurve(double[] hu, double[] density) {
+		if (hu.length<2 || hu.length!=density.length)
+			throw new IllegalArgumentException("At least two HU/density points are needed");
+		for (int i=1; i<hu.length; i++) {
+			if (!(hu[i]>hu[i-1])) throw new IllegalArgumentException("HU points must be increasing: "+hu[i]);
+		}
+		this.hu = hu.clone();
+		this.density = density.clone();
+		int maxHU = Math.max(MAX_HU, (int)Math.ceil(hu[hu.length-1]));
+
+		//interpolacion lineal entre puntos, constante fuera de ellos
+		table = new float[maxHU-MIN_HU+1];
+		int k = 0;
+		for (int i=0; i<table.length; i++) {
+			double h = MIN_HU + i;
+			while (k<hu.length-2 && h>hu[k+1]) k++;
+			double t = (h-hu[k]) / (hu[k+1]-hu[k]);
+			if (t<0) t = 0;
+			if (t>1) t = 1;
+			table[i] = (float)(density[k] + t*(density[k+1]-density[k]));
+		}
+	}
+
+	//curva generica de un CT de 120 kV; cada centro debe usar la de su escaner
+	public static DensityCurve standard() {
+		return new DensityCurve(
+			new double[] {-1024, -1000, -800, -100, 0, 100, 1000, 3071},
+			new double[] {0.0, 0.001, 0.19, 0.93, 1.0, 1.06, 1.55, 2.8});
+	}
+
+	//archivo de texto con una pareja "HU densidad" por linea; '#' para comentarios
+	public static DensityCurve read(String path) throws IOException {
+		List<double[]> points = new ArrayList<double[]>();
+		try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+			String line;
+			int n = 0;
+			while ((line = in.readLine()) != null) {
+				n++;
+				int c = line.indexOf('#');
+				if (c>=0) line = line.substring(0, c);
+				line = line.trim();
+				if (line.isEmpty()) continue;
+				String[] f = line.split("[\\s,;]+");
+				if (f.length<2) throw new IOException("Bad calibration line "+n+": "+path);
+				try {
+					points.add(new double[] {Double.parseDouble(f[0]), Double.parseDouble(f[1])});
+				} catch (NumberFormatException e) {
+					throw new IOException("Bad calibration line "+n+": "+path, e);
+				}
+			}
+		}
+		double[] h = new double[points.size()];
+		double[] d = new double[points.size()];
+		for (int i=0; i<h.length; i++) {
+			h[i] = points.get(i)[0];
+			d[i] = points.get(i)[1];
+		}
+		try {
+			return new DensityCurve(h, d);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e.getMessage()+": "+path);
+		}
+	}
+
+	//densidad de un HU (redondeado y limitado a la tabla), sin interpolar en cada llamada
+	public float density(double hu) {
+		int i = (int)Math.floor(hu+0.5) - MIN_HU;
+		if (i<0) i = 0;
+		if (i>=table.length) i = table.length-1;
+		return table[i];
+	}
+
+	public double[] hu() {
+		return hu.clone();
+	}
+
+	public double[] densities() {
+		return density.clone();
+	}
+}
@@ -0,0 +1,251 @@
+package calcwork;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import dcmwork.DcmDataset;
+import dcmwork.DcmPixels;
+import dcmwork.DcmSeries;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class DensityVolume {
+
+	private static final int IMAGE_POSITION = 0x00200032;
+	private static final int IMAGE_ORIENTATION = 0x00200037;
+	private static final int ROWS = 0x00280010;
+	private static final int COLUMNS = 0x00280011;
+	private static final int PIXEL_SPACING = 0x00280030;
+	private static final int SLICE_THICKNESS = 0x00180050;
+
+	//separacion de cortes admitida como uniforme
+	private static final double SPACING_TOLERANCE = 0.01;
+
+	//voxel (i, j, k): columna, fila y corte; i avanza en row, j en column y k en normal
+	final int nx, ny, nz;
+	final double dx, dy, dz;
+	final double[] origin;  //centro del voxel (0,0,0) en coordenadas del paciente (mm)
+	final double[] row, column, normal;
+	final float[] density;  //densidad electronica relativa, indice (k*ny + j)*nx + i
+
+	DensityVolume(int nx, int ny, int nz, double dx, double dy, double dz,
+			double[] origin, double[] row, double[] column, double[] normal, float[] density) {
+		this.nx = nx;
+		this.ny = ny;
+		this.nz = nz;
+		this.dx = dx;
+		this.dy = dy;
+		this.dz = dz;
+		this.origin = origin;
+		this.row = row;
+		this.column = column;
+		this.normal = normal;
+		this.density = density;
+	}
+
+	//memoria del volumen (un float por voxel)
+	public static long bytes(int nx, int ny, int nz) {
+		return 4L*nx*ny*nz;
+	}
+
+	//Volumen de densidad de una serie CT ordenada (DcmSeries.loadCT), a resolucion completa
+	//===========================================================
+	public static DensityVolume build(DcmDataset[] slices, DensityCurve curve) throws IOException {
+		return build(slices, curve, Long.MAX_VALUE, ForkJoinPool.commonPool());
+	}
+
+	//con un limite de memoria: si no cabe se promedian bloques de f x f pixeles de cada corte,
+	//con el menor f que quepa, para que cada caso ocupe lo previsto
+	public static DensityVolume build(DcmDataset[] slices, final DensityCurve curve, long maxBytes,
+			ExecutorService pool) throws IOException {
+		if (slices.length==0) throw new IOException("Empty CT series");
+
+		final int rows = first(slices[0].ints(ROWS));
+		final int columns = first(slices[0].ints(COLUMNS));
+		double[] spacing = slices[0].doubles(PIXEL_SPACING);
+		double[] iop = slices[0].doubles(IMAGE_ORIENTATION);
+		double[] ipp = slices[0].doubles(IMAGE_POSITION);
+		if (rows<=0 || columns<=0 || spacing==null || spacing.length<2 || iop==null || iop.length<6
+				|| ipp==null || ipp.length<3)
+			throw new IOException("CT slice without geometry: "+slices[0].path());
+		double[] row = {iop[0], iop[1], iop[2]};
+		double[] column = {iop[3], iop[4], iop[5]};
+		double[] normal = {row[1]*column[2] - row[2]*column[1],
+			row[2]*column[0] - row[0]*column[2],
+			row[0]*column[1] - row[1]*column[0]};
+
+		//posiciones a lo largo de la normal: la serie tiene que ser regular
+		int nz = slices.length;
+		double dz;
+		if (nz>1) {
+			double[] z = new double[nz];
+			for (int k=0; k<nz; k++) {
+				double[] p = slices[k].doubles(IMAGE_POSITION);
+				if (first(slices[k].ints(ROWS))!=rows || first(slices[k].ints(COLUMNS))!=columns || p==null || p.length<3)
+					throw new IOException("CT slice does not match the series: "+slices[k].path());
+				z[k] = p[0]*normal[0] + p[1]*normal[1] + p[2]*normal[2];
+			}
+			dz = (z[nz-1]-z[0]) / (nz-1);
+			if (dz<=0) throw new IOException("CT slices not sorted or duplicated: "+slices[0].path());
+			for (int k=1; k<nz; k++) {
+				if (Math.abs(z[k]-z[k-1]-dz) > SPACING_TOLERANCE*dz+1e-3)
+					throw new IOException("Non uniform CT slice spacing at "+slices[k].path());
+			}
+		} else {
+			double[] t = slices[0].doubles(SLICE_THICKNESS);
+			dz = t!=null && t.length>0 && t[0]>0 ? t[0] : 1;
+		}
+
+		int f = 1;
+		while (bytes((columns+f-1)/f, (rows+f-1)/f, nz)>maxBytes) {
+			if (f>=Math.max(rows, columns)) throw new IOException("CT series does not fit in "+maxBytes+" bytes");
+			f++;
+		}
+		final int factor = f;
+		final int nx = (columns+f-1)/f;
+		final int ny = (rows+f-1)/f;
+
+		//el centro del primer bloque se desplaza medio bloque menos medio pixel
+		double sx = spacing[1], sy = spacing[0];
+		double shiftx = (f-1)*sx/2, shifty = (f-1)*sy/2;
+		double[] origin = new double[3];
+		for (int a=0; a<3; a++) origin[a] = ipp[a] + shiftx*row[a] + shifty*column[a];
+
+		final float[] density = new float[nx*ny*nz];
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int k=0; k<nz; k++) {
+			final DcmDataset slice = slices[k];
+			final int base = k*nx*ny;
+			tasks.add(new Callable<Void>() {
+				public Void call() throws IOException {
+					DcmPixels p = slice.pixels();
+					if (p==null || p.rows()!=rows || p.columns()!=columns)
+						throw new IOException("CT slice without matching pixel data: "+slice.path());
+					fill(p, curve, factor, nx, ny, density, base);
+					return null;
+				}
+			});
+		}
+		DcmSeries.all(pool, tasks, "CT volume build interrupted");
+		return new DensityVolume(nx, ny, nz, f*sx, f*sy, dz, origin, row, column, normal, density);
+	}
+
+	private static int first(int[] v) {
+		return v==null || v.length==0 ? -1 : v[0];
+	}
+
+	//un corte: HU -> densidad con la tabla de la curva, promediando bloques de factor x factor
+	private static void fill(DcmPixels p, DensityCurve curve, int factor, int nx, int ny, float[] dst, int base) {
+		int columns = p.columns();
+		int rows = p.rows();
+		if (factor==1) {
+			for (int v=0; v<rows*columns; v++) dst[base+v] = curve.density(p.value(v));
+			return;
+		}
+		for (int j=0; j<ny; j++) {
+			int r1 = Math.min(rows, (j+1)*factor);
+			for (int i=0; i<nx; i++) {
+				int c1 = Math.min(columns, (i+1)*factor);
+				float sum = 0;
+				int n = 0;
+				for (int r=j*factor; r<r1; r++) {
+					for (int c=i*factor; c<c1; c++, n++) sum += curve.density(p.value(r*columns + c));
+				}
+				dst[base + j*nx + i] = sum/n;
+			}
+		}
+	}
+
+	public int nx() {
+		return nx;
+	}
+
+	public int ny() {
+		return ny;
+	}
+
+	public int nz() {
+		return nz;
+	}
+
+	//tamano del voxel en mm a lo largo de row, column y normal
+	public double dx() {
+		return dx;
+	}
+
+	public double dy() {
+		return dy;
+	}
+
+	public double dz() {
+		return dz;
+	}
+
+	public double[] origin() {
+		return origin.clone();
+	}
+
+	public long bytes() {
+		return bytes(nx, ny, nz);
+	}
+
+	public float density(int i, int j, int k) {
+		return density[(k*ny + j)*nx + i];
+	}
+
+	//densidad en un punto del paciente (mm) con interpolacion trilineal; 0 fuera del volumen
+	public float densityAt(double x, double y, double z) {
+		double px = x-origin[0], py = y-origin[1], pz = z-origin[2];
+		double fi = (px*row[0] + py*row[1] + pz*row[2]) / dx;
+		double fj = (px*column[0] + py*column[1] + pz*column[2]) / dy;
+		double fk = (px*normal[0] + py*normal[1] + pz*normal[2]) / dz;
+		return sample(fi, fj, fk);
+	}
+
+	//interpolacion trilineal en coordenadas de voxel
+	float sample(double fi, double fj, double fk) {
+		if (fi<0 || fj<0 || fk<0 || fi>nx-1 || fj>ny-1 || fk>nz-1) return 0;
+		int i = Math.min((int)fi, Math.max(nx-2, 0));
+		int j = Math.min((int)fj, Math.max(ny-2, 0));
+		int k = Math.min((int)fk, Math.max(nz-2, 0));
+		double ti = fi-i, tj = fj-j, tk = fk-k;
+		int i1 = Math.min(i+1, nx-1), j1 = Math.min(j+1, ny-1), k1 = Math.min(k+1, nz-1);
+		double c00 = density[(k*ny + j)*nx + i]*(1-ti) + density[(k*ny + j)*nx + i1]*ti;
+		double c10 = density[(k*ny + j1)*nx + i]*(1-ti) + density[(k*ny + j1)*nx + i1]*ti;
+		double c01 = density[(k1*ny + j)*nx + i]*(1-ti) + density[(k1*ny + j)*nx + i1]*ti;
+		double c11 = density[(k1*ny + j1)*nx + i]*(1-ti) + density[(k1*ny + j1)*nx + i1]*ti;
+		double c0 = c00*(1-tj) + c10*tj;
+		double c1 = c01*(1-tj) + c11*tj;
+		return (float)(c0*(1-tk) + c1*tk);
+	}
+}
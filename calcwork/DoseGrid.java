@@ -0,0 +1,294 @@
+package calcwork;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import dcmwork.DcmDataset;
+import dcmwork.DcmHeadex;
+import dcmwork.DcmPixels;
+import dcmwork.DcmWriter;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class DoseGrid {
+
+	private static final int IMAGE_POSITION = 0x00200032;
+	private static final int IMAGE_ORIENTATION = 0x00200037;
+	private static final int PIXEL_SPACING = 0x00280030;
+	private static final int SLICE_THICKNESS = 0x00180050;
+	private static final int GRID_FRAME_OFFSET_VECTOR = 0x3004000C;
+	//diferencia admitida entre separaciones de frames (fraccion de la media)
+	private static final double SPACING_TOLERANCE = 0.01;
+
+	private static final String RT_DOSE_STORAGE = "1.2.840.10008.5.1.4.1.1.481.2";
+	private static final String RT_PLAN_STORAGE = "1.2.840.10008.5.1.4.1.1.481.5";
+	//atributos de paciente, estudio y plan que se copian del RT Plan
+	private static final int[] FROM_PLAN = {0x00100010, 0x00100020, 0x00100030, 0x00100040,
+		0x0020000D, 0x00200010, 0x00080020, 0x00080030, 0x00200052, 0x00080018};
+
+	//misma geometria que DensityVolume: voxel (i, j, k) a lo largo de row, column y normal
+	final int nx, ny, nz;
+	final double dx, dy, dz;
+	final double[] origin;  //centro del voxel (0,0,0) en coordenadas del paciente (mm)
+	final double[] row, column, normal;
+	final float[] dose;     //Gy, indice (k*ny + j)*nx + i
+
+	DoseGrid(int nx, int ny, int nz, double dx, double dy, double dz,
+			double[] origin, double[] row, double[] column, double[] normal, float[] dose) {
+		this.nx = nx;
+		this.ny = ny;
+		this.nz = nz;
+		this.dx = dx;
+		this.dy = dy;
+		this.dz = dz;
+		this.origin = origin;
+		this.row = row;
+		this.column = column;
+		this.normal = normal;
+		this.dose = dose;
+	}
+
+	//Lee un RT Dose: geometria del primer frame, frames a lo largo de la normal segun
+	//GridFrameOffsetVector y dosis en Gy con DoseGridScaling
+	//===========================================================
+	public static DoseGrid read(String path) throws IOException {
+		DcmDataset ds = DcmDataset.read(path);
+		DcmPixels p = ds.pixels();
+		double[] spacing = ds.doubles(PIXEL_SPACING);
+		double[] iop = ds.doubles(IMAGE_ORIENTATION);
+		double[] ipp = ds.doubles(IMAGE_POSITION);
+		if (p==null || spacing==null || spacing.length<2 || iop==null || iop.length<6 || ipp==null || ipp.length<3)
+			throw new IOException("RT Dose without geometry or pixel data: "+path);
+		double[] row = {iop[0], iop[1], iop[2]};
+		double[] column = {iop[3], iop[4], iop[5]};
+		double[] normal = {row[1]*column[2] - row[2]*column[1],
+			row[2]*column[0] - row[0]*column[2],
+			row[0]*column[1] - row[1]*column[0]};
+
+		int nz = p.frames();
+		double[] offsets = ds.doubles(GRID_FRAME_OFFSET_VECTOR);
+		double dz;
+		double[] origin = ipp.clone();
+		if (nz>1) {
+			if (offsets==null || offsets.length<nz) throw new IOException("RT Dose without GridFrameOffsetVector: "+path);
+			dz = (offsets[nz-1]-offsets[0]) / (nz-1);
+			if (dz==0) throw new IOException("RT Dose with duplicated frames: "+path);
+			for (int k=1; k<nz; k++) {
+				if (Math.abs(offsets[k]-offsets[k-1]-dz) > SPACING_TOLERANCE*Math.abs(dz)+1e-3)
+					throw new IOException("Non uniform RT Dose frame spacing: "+path);
+			}
+			//offsets absolutos (el primero no es 0): posicion a lo largo de la normal
+			if (offsets[0]!=0) {
+				double shift = offsets[0] - (ipp[0]*normal[0] + ipp[1]*normal[1] + ipp[2]*normal[2]);
+				for (int a=0; a<3; a++) origin[a] += shift*normal[a];
+			}
+			//frames en sentido contrario a la normal
+			if (dz<0) {
+				dz = -dz;
+				for (int a=0; a<3; a++) normal[a] = -normal[a];
+			}
+		} else {
+			double[] t = ds.doubles(SLICE_THICKNESS);
+			dz = t!=null && t.length>0 && t[0]>0 ? t[0] : 1;
+		}
+
+		int nx = p.columns(), ny = p.rows(), n = nx*ny;
+		float[] dose = new float[n*nz];
+		float[] frame = null;
+		for (int k=0; k<nz; k++) {
+			frame = p.frame(k, frame);
+			System.arraycopy(frame, 0, dose, k*n, n);
+		}
+		return new DoseGrid(nx, ny, nz, spacing[1], spacing[0], dz, origin, row, column, normal, dose);
+	}
+
+	//Escribe la matriz como RT Dose de 32 bits referido al plan (paciente, estudio y FrameOfReference
+	//del RT Plan; planPath null crea UIDs nuevos). Los pixels van por bloques desde el array al archivo
+	//y DoseGridScaling sale de una pasada previa por el maximo, porque va en la cabecera
+	//===========================================================
+	public void write(String path, String planPath) throws IOException {
+		String[] plan = planPath==null ? new String[FROM_PLAN.length] : new DcmHeadex(planPath).values(FROM_PLAN);
+		String study = plan[4]!=null ? plan[4] : DcmWriter.uid();
+		String frame = plan[8]!=null ? plan[8] : DcmWriter.uid();
+		String instance = DcmWriter.uid();
+		Date now = new Date();
+
+		//frames a lo largo de row x column: offsets negativos si la normal va al reves
+		double[] cross = {row[1]*column[2] - row[2]*column[1],
+			row[2]*column[0] - row[0]*column[2],
+			row[0]*column[1] - row[1]*column[0]};
+		double sign = cross[0]*normal[0] + cross[1]*normal[1] + cross[2]*normal[2] < 0 ? -1 : 1;
+		double[] offsets = new double[nz];
+		for (int k=0; k<nz; k++) offsets[k] = sign*k*dz;
+
+		FloatBuffer values = FloatBuffer.wrap(dose);
+		double scale = DcmWriter.scaling(values, 32);
+
+		DcmWriter w = new DcmWriter(path, RT_DOSE_STORAGE, instance);
+		boolean done = false;
+		try {
+			DcmWriter.Item d = w.dataset();
+			d.string(0x00080012, DcmWriter.DA, new SimpleDateFormat("yyyyMMdd").format(now));
+			d.string(0x00080013, DcmWriter.TM, new SimpleDateFormat("HHmmss").format(now));
+			d.string(0x00080016, DcmWriter.UI, RT_DOSE_STORAGE);
+			d.string(0x00080018, DcmWriter.UI, instance);
+			d.string(0x00080020, DcmWriter.DA, plan[6]);
+			d.string(0x00080030, DcmWriter.TM, plan[7]);
+			d.string(0x00080050, DcmWriter.SH, null);
+			d.string(0x00080060, DcmWriter.CS, "RTDOSE");
+			d.string(0x00080070, DcmWriter.LO, "MUKA");
+			d.string(0x00080090, DcmWriter.PN, null);
+			d.string(0x0008103E, DcmWriter.LO, "MUKA dose");
+			d.string(0x00100010, DcmWriter.PN, plan[0]);
+			d.string(0x00100020, DcmWriter.LO, plan[1]);
+			d.string(0x00100030, DcmWriter.DA, plan[2]);
+			d.string(0x00100040, DcmWriter.CS, plan[3]);
+			d.doubles(0x00180050, DcmWriter.DS, dz);
+			d.string(0x0020000D, DcmWriter.UI, study);
+			d.string(0x0020000E, DcmWriter.UI, DcmWriter.uid());
+			d.string(0x00200010, DcmWriter.SH, plan[5]);
+			d.ints(0x00200011, DcmWriter.IS, 1);
+			d.ints(0x00200013, DcmWriter.IS, 1);
+			d.doubles(0x00200032, DcmWriter.DS, origin);
+			d.doubles(0x00200037, DcmWriter.DS, row[0], row[1], row[2], column[0], column[1], column[2]);
+			d.string(0x00200052, DcmWriter.UI, frame);
+			d.string(0x00201040, DcmWriter.LO, null);
+			d.ints(0x00280002, DcmWriter.US, 1);
+			d.string(0x00280004, DcmWriter.CS, "MONOCHROME2");
+			d.ints(0x00280008, DcmWriter.IS, nz);
+			d.ints(0x00280009, DcmWriter.AT, GRID_FRAME_OFFSET_VECTOR);
+			d.ints(0x00280010, DcmWriter.US, ny);
+			d.ints(0x00280011, DcmWriter.US, nx);
+			d.doubles(0x00280030, DcmWriter.DS, dy, dx);
+			d.ints(0x00280100, DcmWriter.US, 32);
+			d.ints(0x00280101, DcmWriter.US, 32);
+			d.ints(0x00280102, DcmWriter.US, 31);
+			d.ints(0x00280103, DcmWriter.US, 0);
+			d.string(0x30040002, DcmWriter.CS, "GY");
+			d.string(0x30040004, DcmWriter.CS, "PHYSICAL");
+			d.string(0x3004000A, DcmWriter.CS, "PLAN");
+			d.doubles(0x3004000C, DcmWriter.DS, offsets);
+			d.doubles(0x3004000E, DcmWriter.DS, scale);
+			if (plan[9]!=null) {
+				d.sequence(0x300C0002, new DcmWriter.Item()
+					.string(0x00081150, DcmWriter.UI, RT_PLAN_STORAGE)
+					.string(0x00081155, DcmWriter.UI, plan[9]));
+			}
+			w.pixels(values, scale, 32);
+			done = true;
+		} finally {
+			if (done) w.close();
+			else w.abort();
+		}
+	}
+
+	public int nx() {
+		return nx;
+	}
+
+	public int ny() {
+		return ny;
+	}
+
+	public int nz() {
+		return nz;
+	}
+
+	public double dx() {
+		return dx;
+	}
+
+	public double dy() {
+		return dy;
+	}
+
+	public double dz() {
+		return dz;
+	}
+
+	public double[] origin() {
+		return origin.clone();
+	}
+
+	public double[] row() {
+		return row.clone();
+	}
+
+	public double[] column() {
+		return column.clone();
+	}
+
+	public double[] normal() {
+		return normal.clone();
+	}
+
+	public float dose(int i, int j, int k) {
+		return dose[(k*ny + j)*nx + i];
+	}
+
+	public float max() {
+		float m = 0;
+		for (float d : dose) if (d>m) m = d;
+		return m;
+	}
+
+	//centro del voxel en coordenadas del paciente
+	public double[] position(int i, int j, int k) {
+		double[] p = new double[3];
+		for (int a=0; a<3; a++) p[a] = origin[a] + i*dx*row[a] + j*dy*column[a] + k*dz*normal[a];
+		return p;
+	}
+
+	//dosis en un punto del paciente (mm) con interpolacion trilineal; 0 fuera de la matriz
+	public float doseAt(double x, double y, double z) {
+		double px = x-origin[0], py = y-origin[1], pz = z-origin[2];
+		double fi = (px*row[0] + py*row[1] + pz*row[2]) / dx;
+		double fj = (px*column[0] + py*column[1] + pz*column[2]) / dy;
+		double fk = (px*normal[0] + py*normal[1] + pz*normal[2]) / dz;
+		return sample(fi, fj, fk);
+	}
+
+	//interpolacion trilineal en coordenadas de voxel
+	float sample(double fi, double fj, double fk) {
+		if (fi<0 || fj<0 || fk<0 || fi>nx-1 || fj>ny-1 || fk>nz-1) return 0;
+		int i = Math.min((int)fi, Math.max(nx-2, 0));
+		int j = Math.min((int)fj, Math.max(ny-2, 0));
+		int k = Math.min((int)fk, Math.max(nz-2, 0));
+		double ti = fi-i, tj = fj-j, tk = fk-k;
+		int i1 = Math.min(i+1, nx-1), j1 = Math.min(j+1, ny-1), k1 = Math.min(k+1, nz-1);
+		double c00 = dose[(k*ny + j)*nx + i]*(1-ti) + dose[(k*ny + j)*nx + i1]*ti;
+		double c10 = dose[(k*ny + j1)*nx + i]*(1-ti) + dose[(k*ny + j1)*nx + i1]*ti;
+		double c01 = dose[(k1*ny + j)*nx + i]*(1-ti) + dose[(k1*ny + j)*nx + i1]*ti;
+		double c11 = dose[(k1*ny + j1)*nx + i]*(1-ti) + dose[(k1*ny + j1)*nx + i1]*ti;
+		double c0 = c00*(1-tj) + c10*tj;
+		double c1 = c01*(1-tj) + c11*tj;
+		return (float)(c0*(1-tk) + c1*tk);
+	}
+}
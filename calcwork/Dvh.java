@@ -0,0 +1,220 @@
+package calcwork;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import dcmwork.DcmSeries;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class Dvh {
+
+	private static final int SLAB = 8; //cortes por tarea
+
+	private final String name;
+	private final double binWidth;     //Gy
+	private final double voxelVolume;  //cc
+	private final long voxels;
+	private final double min, max, mean;
+	private final long[] counts;       //voxels con dosis en [b*binWidth, (b+1)*binWidth)
+
+	private Dvh(String name, double binWidth, double voxelVolume, double[] total) {
+		this.name = name;
+		this.binWidth = binWidth;
+		this.voxelVolume = voxelVolume;
+		voxels = (long)total[0];
+		mean = voxels>0 ? total[1]/voxels : Double.NaN;
+		min = voxels>0 ? total[2] : Double.NaN;
+		max = voxels>0 ? total[3] : Double.NaN;
+		counts = new long[total.length-4];
+		for (int b=0; b<counts.length; b++) counts[b] = (long)total[4+b];
+	}
+
+	//Histogramas de todas las estructuras de un RT Struct sobre la matriz de dosis
+	//===========================================================
+	public static List<Dvh> compute(RtStruct struct, DoseGrid dose, double binWidth) throws IOException {
+		return compute(struct, dose, binWidth, ForkJoinPool.commonPool());
+	}
+
+	public static List<Dvh> compute(RtStruct struct, DoseGrid dose, double binWidth, ExecutorService pool)
+			throws IOException {
+		List<RtStruct.Roi> rois = new ArrayList<RtStruct.Roi>();
+		for (int r=0; r<struct.rois(); r++) rois.add(struct.roi(r));
+		return compute(RoiMask.rasterize(rois, dose, pool), dose, binWidth, pool);
+	}
+
+	//Histogramas de varias mascaras (rasterizadas sobre la misma matriz) en paralelo:
+	//una tarea por grupo de cortes de cada mascara, recorriendo solo los bits activos
+	//===========================================================
+	public static List<Dvh> compute(List<RoiMask> masks, DoseGrid dose, double binWidth) throws IOException {
+		return compute(masks, dose, binWidth, ForkJoinPool.commonPool());
+	}
+
+	public static List<Dvh> compute(List<RoiMask> masks, final DoseGrid dose, final double binWidth,
+			ExecutorService pool) throws IOException {
+		if (!(binWidth>0)) throw new IllegalArgumentException("DVH bin width must be positive: "+binWidth);
+		final int bins = (int)(dose.max()/binWidth) + 1;
+		List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+		List<Integer> owner = new ArrayList<Integer>();
+		for (int m=0; m<masks.size(); m++) {
+			final RoiMask mask = masks.get(m);
+			if (mask.nx!=dose.nx || mask.ny!=dose.ny || mask.nz!=dose.nz)
+				throw new IllegalArgumentException("Mask "+mask.name()+" does not match the dose grid");
+			for (int k=0; k<dose.nz; k+=SLAB) {
+				final int k0 = k, k1 = Math.min(k+SLAB, dose.nz);
+				tasks.add(new Callable<double[]>() {
+					public double[] call() {
+						return histogram(mask, dose, binWidth, bins, k0, k1);
+					}
+				});
+				owner.add(m);
+			}
+		}
+
+		//{voxels, suma, minimo, maximo, cuentas...} por mascara
+		double[][] totals = new double[masks.size()][4+bins];
+		for (double[] t : totals) {
+			t[2] = Double.MAX_VALUE;
+			t[3] = -Double.MAX_VALUE;
+		}
+		int n = 0;
+		for (double[] s : DcmSeries.all(pool, tasks, "DVH computation interrupted")) {
+			double[] t = totals[owner.get(n++)];
+			t[0] += s[0];
+			t[1] += s[1];
+			t[2] = Math.min(t[2], s[2]);
+			t[3] = Math.max(t[3], s[3]);
+			for (int b=4; b<t.length; b++) t[b] += s[b];
+		}
+		List<Dvh> dvhs = new ArrayList<Dvh>();
+		for (int m=0; m<masks.size(); m++)
+			dvhs.add(new Dvh(masks.get(m).name(), binWidth, masks.get(m).voxelVolume(), totals[m]));
+		return dvhs;
+	}
+
+	private static double[] histogram(RoiMask mask, DoseGrid dose, double binWidth, int bins, int k0, int k1) {
+		double[] s = new double[4+bins];
+		s[2] = Double.MAX_VALUE;
+		s[3] = -Double.MAX_VALUE;
+		int plane = dose.nx*dose.ny;
+		for (int k=k0; k<k1; k++) {
+			long[] bits = mask.slices[k];
+			if (bits==null) continue;
+			for (int w=0; w<bits.length; w++) {
+				long word = bits[w];
+				while (word!=0) {
+					double d = dose.dose[k*plane + (w<<6) + Long.numberOfTrailingZeros(word)];
+					word &= word-1;
+					s[0]++;
+					s[1] += d;
+					if (d<s[2]) s[2] = d;
+					if (d>s[3]) s[3] = d;
+					s[4 + Math.min(Math.max((int)(d/binWidth), 0), bins-1)]++;
+				}
+			}
+		}
+		return s;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public long voxels() {
+		return voxels;
+	}
+
+	//cc
+	public double volume() {
+		return voxels*voxelVolume;
+	}
+
+	public double min() {
+		return min;
+	}
+
+	public double max() {
+		return max;
+	}
+
+	public double mean() {
+		return mean;
+	}
+
+	public double binWidth() {
+		return binWidth;
+	}
+
+	//cc por clase de dosis
+	public double[] differential() {
+		double[] v = new double[counts.length];
+		for (int b=0; b<v.length; b++) v[b] = counts[b]*voxelVolume;
+		return v;
+	}
+
+	//porcentaje del volumen con dosis >= b*binWidth
+	public double[] cumulative() {
+		double[] v = new double[counts.length+1];
+		long above = 0;
+		for (int b=counts.length-1; b>=0; b--) {
+			above += counts[b];
+			v[b] = voxels>0 ? 100.0*above/voxels : 0;
+		}
+		return v;
+	}
+
+	//Dx: dosis minima del x % del volumen mas irradiado, interpolando dentro de la clase
+	public double doseAtVolume(double percent) {
+		if (voxels==0) return Double.NaN;
+		double target = percent/100*voxels;
+		long above = 0;
+		for (int b=counts.length-1; b>=0; b--) {
+			if (counts[b]>0 && above+counts[b]>=target)
+				return Math.max((b+1 - (target-above)/counts[b])*binWidth, 0);
+			above += counts[b];
+		}
+		return 0;
+	}
+
+	//Vx: porcentaje del volumen con dosis >= d (Gy)
+	public double volumeAtDose(double d) {
+		if (voxels==0) return Double.NaN;
+		double f = d/binWidth;
+		int b = (int)Math.floor(f);
+		if (b<0) return 100;
+		if (b>=counts.length) return 0;
+		double above = counts[b]*(b+1-f);
+		for (int c=b+1; c<counts.length; c++) above += counts[c];
+		return 100*above/voxels;
+	}
+}
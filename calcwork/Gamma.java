@@ -0,0 +1,283 @@
+package calcwork;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import dcmwork.DcmSeries;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class Gamma {
+
+	private static final double BIN = 0.1;  //ancho de las clases del histograma
+	private static final int SLAB = 4;      //cortes de referencia por tarea
+	private static final int REFINE = 3;    //divisiones del paso de busqueda alrededor del mejor punto
+
+	private final double doseDifference;    //fraccion (0.03 = 3 %)
+	private final double dta;               //distancia de acuerdo (mm)
+	private final double threshold;         //fraccion del maximo de referencia por debajo de la que no se evalua
+	private final boolean local;            //diferencia de dosis sobre la dosis del punto o sobre el maximo
+	private final double maxGamma;          //radio de busqueda en unidades de dta; gammas mayores se dan como maxGamma
+	private final double step;              //resolucion de la busqueda (mm)
+
+	public Gamma(double doseDifference, double dta, double threshold, boolean local) {
+		this(doseDifference, dta, threshold, local, 2, dta/5);
+	}
+
+	public Gamma(double doseDifference, double dta, double threshold, boolean local, double maxGamma, double step) {
+		if (!(doseDifference>0) || !(dta>0)) throw new IllegalArgumentException("Gamma needs positive dose and distance criteria");
+		if (!(maxGamma>=1) || !(step>0)) throw new IllegalArgumentException("Bad gamma search: "+maxGamma+" "+step);
+		this.doseDifference = doseDifference;
+		this.dta = dta;
+		this.threshold = threshold;
+		this.local = local;
+		this.maxGamma = maxGamma;
+		this.step = step;
+	}
+
+	//Gamma de cada voxel de referencia (planificador) por encima del umbral, buscando en la
+	//dosis evaluada (MUKA) interpolada alrededor de su posicion; las matrices pueden tener
+	//distinta geometria
+	//===========================================================
+	public Result compare(DoseGrid reference, DoseGrid evaluated) throws IOException {
+		return compare(reference, evaluated, ForkJoinPool.commonPool());
+	}
+
+	//grupos de cortes de referencia en paralelo
+	public Result compare(final DoseGrid reference, final DoseGrid evaluated, ExecutorService pool) throws IOException {
+		final float max = reference.max();
+		final float[] map = new float[reference.dose.length];
+		Arrays.fill(map, Float.NaN);
+		final Shell shell = shell(evaluated);
+		final int bins = (int)Math.ceil(maxGamma/BIN - 1e-9);
+
+		List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+		for (int k=0; k<reference.nz; k+=SLAB) {
+			final int k0 = k, k1 = Math.min(k+SLAB, reference.nz);
+			tasks.add(new Callable<double[]>() {
+				public double[] call() {
+					return slab(reference, evaluated, shell, max, k0, k1, map, bins);
+				}
+			});
+		}
+		//{puntos, aprobados, suma, maximo, histograma...}
+		double[] total = new double[4+bins];
+		for (double[] s : DcmSeries.all(pool, tasks, "Gamma comparison interrupted")) {
+			total[3] = Math.max(total[3], s[3]);
+			for (int b=0; b<total.length; b++) {
+				if (b!=3) total[b] += s[b];
+			}
+		}
+		DoseGrid gamma = new DoseGrid(reference.nx, reference.ny, reference.nz, reference.dx, reference.dy, reference.dz,
+			reference.origin, reference.row, reference.column, reference.normal, map);
+		return new Result(total, gamma);
+	}
+
+	private double[] slab(DoseGrid ref, DoseGrid eval, Shell shell, float max, int k0, int k1, float[] map, int bins) {
+		double[] s = new double[4+bins];
+		double cut = threshold*max;
+		double cap = maxGamma*maxGamma;
+		double global = doseDifference*max;
+		double rdta2 = 1/(dta*dta);
+		double[] d = new double[3];
+		for (int k=k0; k<k1; k++) {
+			for (int j=0; j<ref.ny; j++) {
+				for (int i=0; i<ref.nx; i++) {
+					int v = (k*ref.ny + j)*ref.nx + i;
+					double dr = ref.dose[v];
+					if (dr<cut) continue;
+					double dd = local ? doseDifference*dr : global;
+					if (!(dd>0)) continue;
+					double inv = 1/(dd*dd);
+
+					//voxel de referencia en coordenadas de voxel de la matriz evaluada
+					for (int a=0; a<3; a++)
+						d[a] = ref.origin[a] + i*ref.dx*ref.row[a] + j*ref.dy*ref.column[a] + k*ref.dz*ref.normal[a] - eval.origin[a];
+					double fi = (d[0]*eval.row[0] + d[1]*eval.row[1] + d[2]*eval.row[2]) / eval.dx;
+					double fj = (d[0]*eval.column[0] + d[1]*eval.column[1] + d[2]*eval.column[2]) / eval.dy;
+					double fk = (d[0]*eval.normal[0] + d[1]*eval.normal[1] + d[2]*eval.normal[2]) / eval.dz;
+
+					//desplazamientos ordenados por distancia: en cuanto la distancia sola supera
+					//el mejor gamma ya no puede mejorar
+					double best = Double.MAX_VALUE;
+					int found = -1;
+					for (int o=0; o<shell.size; o++) {
+						double r2 = shell.r2[o];
+						if (r2>=best) break;
+						double e = eval.sample(fi+shell.di[o], fj+shell.dj[o], fk+shell.dk[o]) - dr;
+						double g = r2 + e*e*inv;
+						if (g<best) {
+							best = g;
+							found = o;
+						}
+					}
+
+					//por debajo del paso: busqueda por ejes de la matriz evaluada con paso mitad,
+					//cuarto... alrededor del mejor desplazamiento
+					if (found>=0 && best>0) {
+						double bi = shell.di[found], bj = shell.dj[found], bk = shell.dk[found];
+						double h = step;
+						for (int level=0; level<REFINE; level++) {
+							h *= 0.5;
+							for (int axis=0; axis<6; axis++) {
+								double ci = bi, cj = bj, ck = bk;
+								double sign = (axis&1)==0 ? 1 : -1;
+								if (axis<2) ci += sign*h/eval.dx;
+								else if (axis<4) cj += sign*h/eval.dy;
+								else ck += sign*h/eval.dz;
+								double x = ci*eval.dx, y = cj*eval.dy, z = ck*eval.dz;
+								double r2 = (x*x + y*y + z*z)*rdta2;
+								if (r2>=best) continue;
+								double e = eval.sample(fi+ci, fj+cj, fk+ck) - dr;
+								double g = r2 + e*e*inv;
+								if (g<best) {
+									best = g;
+									bi = ci;
+									bj = cj;
+									bk = ck;
+								}
+							}
+						}
+					}
+					double gamma = Math.sqrt(Math.min(best, cap));
+					map[v] = (float)gamma;
+					s[0]++;
+					if (gamma<=1) s[1]++;
+					s[2] += gamma;
+					if (gamma>s[3]) s[3] = gamma;
+					s[4 + Math.min((int)(gamma/BIN), bins-1)]++;
+				}
+			}
+		}
+		return s;
+	}
+
+	//desplazamientos de la esfera de busqueda (radio maxGamma*dta, paso step) en coordenadas de
+	//voxel de la matriz evaluada, ordenados por distancia al centro
+	private Shell shell(DoseGrid eval) {
+		double radius = maxGamma*dta;
+		int n = (int)Math.ceil(radius/step);
+		List<double[]> points = new ArrayList<double[]>();
+		for (int c=-n; c<=n; c++) {
+			for (int b=-n; b<=n; b++) {
+				for (int a=-n; a<=n; a++) {
+					double r2 = (a*a + b*b + c*c)*step*step;
+					if (r2<=radius*radius) points.add(new double[] {r2, a*step, b*step, c*step});
+				}
+			}
+		}
+		double[][] p = points.toArray(new double[points.size()][]);
+		Arrays.sort(p, new Comparator<double[]>() {
+			public int compare(double[] x, double[] y) {
+				return Double.compare(x[0], y[0]);
+			}
+		});
+		Shell s = new Shell(p.length);
+		for (int o=0; o<p.length; o++) {
+			double x = p[o][1], y = p[o][2], z = p[o][3];
+			s.r2[o] = p[o][0]/(dta*dta);
+			s.di[o] = (x*eval.row[0] + y*eval.row[1] + z*eval.row[2]) / eval.dx;
+			s.dj[o] = (x*eval.column[0] + y*eval.column[1] + z*eval.column[2]) / eval.dy;
+			s.dk[o] = (x*eval.normal[0] + y*eval.normal[1] + z*eval.normal[2]) / eval.dz;
+		}
+		return s;
+	}
+
+	private static final class Shell {
+		final int size;
+		final double[] r2;         //distancia al cuadrado en unidades de dta
+		final double[] di, dj, dk;
+
+		Shell(int size) {
+			this.size = size;
+			r2 = new double[size];
+			di = new double[size];
+			dj = new double[size];
+			dk = new double[size];
+		}
+	}
+
+	//Resultado: indice de aprobados, estadisticos, histograma y matriz de gamma (NaN donde no se evalua)
+	public static final class Result {
+		private final long evaluated, passed;
+		private final double mean, max;
+		private final long[] histogram;
+		private final DoseGrid gamma;
+
+		Result(double[] total, DoseGrid gamma) {
+			evaluated = (long)total[0];
+			passed = (long)total[1];
+			mean = evaluated>0 ? total[2]/evaluated : Double.NaN;
+			max = total[3];
+			histogram = new long[total.length-4];
+			for (int b=0; b<histogram.length; b++) histogram[b] = (long)total[4+b];
+			this.gamma = gamma;
+		}
+
+		public long evaluated() {
+			return evaluated;
+		}
+
+		public long passed() {
+			return passed;
+		}
+
+		//porcentaje de puntos con gamma <= 1
+		public double passRate() {
+			return evaluated>0 ? 100.0*passed/evaluated : Double.NaN;
+		}
+
+		public double mean() {
+			return mean;
+		}
+
+		public double max() {
+			return max;
+		}
+
+		//clases de ancho binWidth(); la ultima incluye los puntos con gamma maximo
+		public long[] histogram() {
+			return histogram.clone();
+		}
+
+		public double binWidth() {
+			return BIN;
+		}
+
+		public DoseGrid gamma() {
+			return gamma;
+		}
+	}
+}
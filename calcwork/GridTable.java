@@ -0,0 +1,196 @@
+package calcwork;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class GridTable {
+
+	//casillas regulares por eje para localizar la celda sin busqueda binaria
+	private static final int MAX_BINS = 4096;
+
+	private final Axis ax, ay, az;
+	private final int nx, ny, nz;
+	private final double[] v; //valores medidos, indice (k*ny + j)*nx + i
+
+	private GridTable(Axis ax, Axis ay, Axis az, double[] v) {
+		this.ax = ax;
+		this.ay = ay;
+		this.az = az;
+		this.nx = ax.n;
+		this.ny = ay.n;
+		this.nz = az.n;
+		this.v = v;
+	}
+
+	//Tablas de datos medidos en ejes crecientes (no necesariamente equiespaciados). Se guardan
+	//los nodos medidos tal cual: el valor en un nodo es el medido y entre nodos es la interpolacion
+	//lineal de los dos medidos vecinos en cada eje: no hay error de remuestreo respecto a los datos
+	//===========================================================
+	public static GridTable of(double[] x, double[] values) {
+		return of(x, new double[] {0}, new double[] {0}, new double[][][] {{values}});
+	}
+
+	//values[j][i]: fila j del eje y, columna i del eje x
+	public static GridTable of(double[] x, double[] y, double[][] values) {
+		return of(x, y, new double[] {0}, new double[][][] {values});
+	}
+
+	//values[k][j][i]
+	public static GridTable of(double[] x, double[] y, double[] z, double[][][] values) {
+		check(x, "x");
+		check(y, "y");
+		check(z, "z");
+		if (values.length!=z.length) throw new IllegalArgumentException("Table needs one plane per z value");
+		for (double[][] plane : values) {
+			if (plane.length!=y.length) throw new IllegalArgumentException("Table needs one row per y value");
+			for (double[] row : plane) {
+				if (row.length!=x.length) throw new IllegalArgumentException("Table needs one value per x value");
+			}
+		}
+		double[] v = new double[x.length*y.length*z.length];
+		int n = 0;
+		for (double[][] plane : values) {
+			for (double[] row : plane) {
+				System.arraycopy(row, 0, v, n, row.length);
+				n += row.length;
+			}
+		}
+		return new GridTable(new Axis(x), new Axis(y), new Axis(z), v);
+	}
+
+	private static void check(double[] axis, String name) {
+		if (axis.length==0) throw new IllegalArgumentException("Empty table axis "+name);
+		for (int i=1; i<axis.length; i++) {
+			if (!(axis[i]>axis[i-1])) throw new IllegalArgumentException("Table axis "+name+" must be increasing: "+axis[i]);
+		}
+	}
+
+	//Eje medido con casillas regulares del ancho del intervalo mas fino (como mucho MAX_BINS):
+	//la casilla da el intervalo medido en que empieza y, como una casilla no es mas ancha que un
+	//intervalo, basta una comparacion con el nodo siguiente (varias si el eje llega al limite)
+	private static final class Axis {
+		final int n;
+		final double[] x;  //nodos medidos
+		final double[] rw; //inverso del ancho de cada intervalo
+		final int[] cells; //intervalo en que empieza cada casilla
+		final double x0, x1, rb;
+
+		Axis(double[] x) {
+			this.n = x.length;
+			this.x = x.clone();
+			x0 = x[0];
+			x1 = x[n-1];
+			rw = new double[Math.max(n-1, 0)];
+			if (n<2) {
+				cells = new int[] {0};
+				rb = 0;
+				return;
+			}
+			double range = x1-x0, fine = range;
+			for (int i=0; i<n-1; i++) {
+				rw[i] = 1/(x[i+1]-x[i]);
+				fine = Math.min(fine, x[i+1]-x[i]);
+			}
+			int bins = (int)Math.min(Math.ceil(range/fine - 1e-9), MAX_BINS);
+			bins = Math.max(bins, 1);
+			rb = bins/range;
+			cells = new int[bins];
+			int i = 0;
+			for (int b=0; b<bins; b++) {
+				double p = x0 + b*range/bins;
+				while (i<n-2 && p>=x[i+1]) i++;
+				cells[b] = i;
+			}
+		}
+
+		//nodo inferior del intervalo de p (la ultima celda incluye el borde superior)
+		int cell(double p) {
+			if (n<2 || p<=x0) return 0;
+			if (p>=x1) return n-2;
+			int b = (int)((p-x0)*rb);
+			int i = cells[b<cells.length ? b : cells.length-1];
+			while (i<n-2 && p>=x[i+1]) i++;
+			return i;
+		}
+
+		//fraccion de p en el intervalo i; fuera de la tabla se usa el borde
+		double fraction(int i, double p) {
+			if (n<2) return 0;
+			double t = (p-x[i])*rw[i];
+			return t<0 ? 0 : t>1 ? 1 : t;
+		}
+	}
+
+	//Interpolacion lineal, bilineal y trilineal; fuera de la tabla se usa el borde
+	//===========================================================
+	public double value(double x) {
+		int i = ax.cell(x);
+		double tx = ax.fraction(i, x);
+		return v[i] + tx*(v[i+next(nx)]-v[i]);
+	}
+
+	public double value(double x, double y) {
+		int i = ax.cell(x), j = ay.cell(y);
+		double tx = ax.fraction(i, x), ty = ay.fraction(j, y);
+		int p = j*nx + i, sx = next(nx), sy = next(ny)*nx;
+		double a = v[p] + tx*(v[p+sx]-v[p]);
+		double b = v[p+sy] + tx*(v[p+sy+sx]-v[p+sy]);
+		return a + ty*(b-a);
+	}
+
+	public double value(double x, double y, double z) {
+		int i = ax.cell(x), j = ay.cell(y), k = az.cell(z);
+		double tx = ax.fraction(i, x), ty = ay.fraction(j, y), tz = az.fraction(k, z);
+		int p = (k*ny + j)*nx + i, sx = next(nx), sy = next(ny)*nx, sz = next(nz)*nx*ny;
+		double a = v[p] + tx*(v[p+sx]-v[p]);
+		double b = v[p+sy] + tx*(v[p+sy+sx]-v[p+sy]);
+		double c = v[p+sz] + tx*(v[p+sz+sx]-v[p+sz]);
+		double d = v[p+sz+sy] + tx*(v[p+sz+sy+sx]-v[p+sz+sy]);
+		a += ty*(b-a);
+		c += ty*(d-c);
+		return a + tz*(c-a);
+	}
+
+	//desplazamiento al nodo siguiente (0 en ejes de un solo nodo)
+	private static int next(int n) {
+		return n>1 ? 1 : 0;
+	}
+
+	//nodos medidos por eje
+	public int nx() {
+		return nx;
+	}
+
+	public int ny() {
+		return ny;
+	}
+
+	public int nz() {
+		return nz;
+	}
+}
@@ -0,0 +1,302 @@
+package calcwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import dcmwork.DcmSeries;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class MuCheck {
+
+	private final Map<String, BeamData> data = new HashMap<String, BeamData>();
+
+	public synchronized void add(BeamData beam) {
+		data.put(key(beam.machine(), beam.energy()), beam);
+	}
+
+	//archivos de datos de haz (.txt) de un directorio, una vez al arrancar
+	public void load(String dir) throws IOException {
+		File[] files = new File(dir).listFiles();
+		if (files == null) throw new IOException("Not a directory: " + dir);
+		Arrays.sort(files);
+		for (File f : files) {
+			if (f.isFile() && f.getName().toLowerCase().endsWith(".txt")) add(BeamData.read(f.getPath()));
+		}
+	}
+
+	private static String key(String machine, double energy) {
+		return (machine==null ? "" : machine.trim()) + "/" + energy;
+	}
+
+	//datos de la maquina y energia del campo; sin nombre de maquina vale cualquiera de esa energia
+	public synchronized BeamData beamData(String machine, double energy) {
+		BeamData d = data.get(key(machine, energy));
+		if (d==null) d = data.get(key(null, energy));
+		return d;
+	}
+
+	//Dosis por fraccion de cada campo en su punto de especificacion (o en el de referencia del
+	//plan) a partir de los datos medidos, comparada con la del planificador
+	//===========================================================
+	public Result check(String path) throws IOException {
+		return check(RtPlan.read(path));
+	}
+
+	public Result check(RtPlan plan) throws IOException {
+		return check(plan, ForkJoinPool.commonPool());
+	}
+
+	//los campos se calculan en paralelo
+	public Result check(final RtPlan plan, ExecutorService pool) throws IOException {
+		List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+		for (int b=0; b<plan.beams(); b++) {
+			final RtPlan.Beam beam = plan.beam(b);
+			tasks.add(new Callable<double[]>() {
+				public double[] call() throws IOException {
+					return beam(plan, beam);
+				}
+			});
+		}
+		List<double[]> beams = DcmSeries.all(pool, tasks, "MU check interrupted: " + plan.path());
+		return new Result(plan, beams.toArray(new double[beams.size()][]));
+	}
+
+	//Lote de planes (control diario): cada plan en paralelo; los que fallan llevan el error
+	//en su resultado y no detienen el resto
+	//===========================================================
+	public List<Result> check(List<String> paths) throws IOException {
+		return check(paths, ForkJoinPool.commonPool());
+	}
+
+	public List<Result> check(List<String> paths, ExecutorService pool) throws IOException {
+		List<Callable<Result>> tasks = new ArrayList<Callable<Result>>();
+		for (final String path : paths) {
+			tasks.add(new Callable<Result>() {
+				public Result call() {
+					try {
+						RtPlan plan = RtPlan.read(path);
+						double[][] beams = new double[plan.beams()][];
+						for (int b=0; b<beams.length; b++) beams[b] = beam(plan, plan.beam(b));
+						return new Result(plan, beams);
+					} catch (IOException | RuntimeException e) {
+						return new Result(path, e.getMessage()==null ? e.toString() : e.getMessage());
+					}
+				}
+			});
+		}
+		return DcmSeries.all(pool, tasks, "MU check interrupted");
+	}
+
+	//{dosis calculada, dosis del planificador} de un campo (Gy por fraccion)
+	private double[] beam(RtPlan plan, RtPlan.Beam beam) throws IOException {
+		double[] point = beam.dosePoint!=null ? beam.dosePoint : plan.reference();
+		if (point==null) throw new IOException("Beam "+beam.number+" without dose point: "+plan.path());
+		BeamData data = beamData(beam.machine, beam.energy);
+		if (data==null) throw new IOException("No beam data for "+beam.machine+" "+beam.energy+" MV: "+plan.path());
+		double depth = beam.dosePoint!=null ? beam.equivalentDepth : Double.NaN;
+
+		double[] source = new double[3], d = new double[3], x = new double[3], y = new double[3];
+		double dose = 0;
+		RtPlan.Segment last = null;
+		for (RtPlan.Segment s : beam.segments) {
+			if (s.weight<=0) continue;
+			//los segmentos de un campo suelen compartir geometria
+			if (last==null || s.gantry!=last.gantry || s.collimator!=last.collimator || s.couch!=last.couch
+					|| !Arrays.equals(s.isocenter, last.isocenter)) s.frame(beam.sad, source, d, x, y);
+			last = s;
+			double qx = point[0]-source[0], qy = point[1]-source[1], qz = point[2]-source[2];
+			double t = qx*d[0] + qy*d[1] + qz*d[2]; //distancia fuente-punto sobre el eje
+			if (t<=0) continue;
+			double z = depth;
+			if (Double.isNaN(z)) z = t - s.ssd;
+			if (Double.isNaN(z))
+				throw new IOException("Beam "+beam.number+" without SSD or equivalent depth: "+plan.path());
+			double xb = (qx*x[0] + qy*x[1] + qz*x[2]) * beam.sad/t;
+			double yb = (qx*y[0] + qy*y[1] + qz*y[2]) * beam.sad/t;
+			dose += beam.meterset * s.weight * segment(data, beam, s, Math.max(z, 0), t, xb, yb);
+		}
+		return new double[] {dose, beam.beamDose};
+	}
+
+	//Gy/UM de un segmento en un punto a profundidad z y distancia t de la fuente, que se
+	//proyecta en (xb, yb) del plano del isocentro: Sc(mordazas) Sp(apertura) TMR OAR ley inversa
+	private static double segment(BeamData data, RtPlan.Beam beam, RtPlan.Segment s, double z, double t,
+			double xb, double yb) {
+		double jx = Math.max(s.x2-s.x1, 0), jy = Math.max(s.y2-s.y1, 0);
+		if (jx==0 || jy==0) return 0;
+		double jaws = 2*jx*jy/(jx+jy);
+		double field = jaws;
+		boolean open = xb>s.x1 && xb<s.x2 && yb>s.y1 && yb<s.y2;
+
+		//apertura de las laminas dentro de las mordazas: cuadrado equivalente 4*area/perimetro
+		double[] bounds = beam.leafBoundaries;
+		if (s.leaves!=null && bounds!=null) {
+			int pairs = s.leaves.length/2;
+			double area = 0, perimeter = 0, lo0 = 0, hi0 = 0;
+			boolean previous = false;
+			//comparaciones directas: Math.max/min de double pesan en este bucle
+			for (int l=0; l<pairs; l++) {
+				double b0 = bounds[l]>s.y1 ? bounds[l] : s.y1, b1 = bounds[l+1]<s.y2 ? bounds[l+1] : s.y2;
+				double lo = s.leaves[l]>s.x1 ? s.leaves[l] : s.x1, hi = s.leaves[pairs+l]<s.x2 ? s.leaves[pairs+l] : s.x2;
+				boolean row = b1>b0 && hi>lo;
+				if (row) {
+					area += (b1-b0)*(hi-lo);
+					perimeter += 2*(b1-b0);
+					perimeter += previous ? Math.abs(lo-lo0) + Math.abs(hi-hi0) : hi-lo;
+					if (yb>=b0 && yb<b1) open = open && xb>lo && xb<hi;
+				} else {
+					if (previous) perimeter += hi0-lo0;
+					if (yb>=b0 && yb<b1) open = false;
+				}
+				previous = row;
+				lo0 = lo;
+				hi0 = hi;
+			}
+			if (previous) perimeter += hi0-lo0;
+			if (area<=0) return 0;
+			field = Math.min(4*area/perimeter, jaws);
+		}
+
+		double inverse = beam.sad/t;
+		double dose = data.calibration() * data.sc(jaws) * data.sp(field) * data.tmr(z, field*t/beam.sad)
+			* data.oar(z, Math.sqrt(xb*xb + yb*yb)) * inverse*inverse;
+		return open ? dose : dose*data.transmission();
+	}
+
+	//Resultado de un plan: dosis calculada y del planificador por campo y en total
+	public static final class Result {
+		private final String path, uid, label, error;
+		private final int[] numbers;
+		private final String[] names;
+		private final double[] metersets, calculated, planned;
+
+		Result(RtPlan plan, double[][] beams) {
+			this.path = plan.path();
+			this.uid = plan.uid();
+			this.label = plan.label();
+			this.error = null;
+			int n = plan.beams();
+			numbers = new int[n];
+			names = new String[n];
+			metersets = new double[n];
+			calculated = new double[n];
+			planned = new double[n];
+			for (int b=0; b<n; b++) {
+				RtPlan.Beam beam = plan.beam(b);
+				numbers[b] = beam.number;
+				names[b] = beam.name;
+				metersets[b] = beam.meterset;
+				calculated[b] = beams[b][0];
+				planned[b] = beams[b][1];
+			}
+		}
+
+		Result(String path, String error) {
+			this.path = path;
+			this.uid = null;
+			this.label = null;
+			this.error = error;
+			numbers = new int[0];
+			names = new String[0];
+			metersets = calculated = planned = new double[0];
+		}
+
+		public String path() {
+			return path;
+		}
+
+		public String uid() {
+			return uid;
+		}
+
+		public String label() {
+			return label;
+		}
+
+		//null si el plan se ha podido calcular
+		public String error() {
+			return error;
+		}
+
+		public int beams() {
+			return numbers.length;
+		}
+
+		public int number(int b) {
+			return numbers[b];
+		}
+
+		public String name(int b) {
+			return names[b];
+		}
+
+		public double meterset(int b) {
+			return metersets[b];
+		}
+
+		public double calculated(int b) {
+			return calculated[b];
+		}
+
+		//NaN si el plan no trae la dosis del campo
+		public double planned(int b) {
+			return planned[b];
+		}
+
+		//diferencia relativa (%) respecto al planificador
+		public double deviation(int b) {
+			return 100*(calculated[b]-planned[b])/planned[b];
+		}
+
+		public double calculated() {
+			double sum = 0;
+			for (double d : calculated) sum += d;
+			return sum;
+		}
+
+		public double planned() {
+			double sum = 0;
+			for (double d : planned) sum += d;
+			return sum;
+		}
+
+		public double deviation() {
+			return 100*(calculated()-planned())/planned();
+		}
+	}
+}
@@ -0,0 +1,600 @@
+package calcwork;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import dcmwork.DcmArchive;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class PlanWatcher implements Closeable {
+
+	private static final String RT_PLAN = "1.2.840.10008.5.1.4.1.1.481.5";
+	private static final String RT_DOSE = "1.2.840.10008.5.1.4.1.1.481.2";
+
+	//etapas del proceso
+	public static final int PARSE = 0;
+	public static final int CALCULATE = 1;
+	public static final int REPORT = 2;
+	private static final String[] STAGES = {"parse", "calculate", "report"};
+
+	//Recibe cada plan verificado, en el hilo de la etapa de informe
+	public interface Reporter {
+		void report(Job job) throws IOException;
+	}
+
+	private final Path dir;
+	private final MuCheck check;
+	private final Reporter reporter;
+	private long settle = 1000;  //ms sin cambios de tamano ni fecha antes de leer un archivo o cerrar un grupo
+	private long orphan = 600000; //ms que espera un grupo sin plan (dosis cuyo plan no llega o ya se envio)
+	private int capacity = 64;   //trabajos en cola por etapa; llena, la etapa anterior espera
+	private int parsers = 2;
+	private int calculators = Runtime.getRuntime().availableProcessors();
+
+	private final List<Stage<?>> stages = new ArrayList<Stage<?>>();
+	private Stage<Path> parse;
+	private Stage<Job> calculate, report;
+	private WatchService watch;
+	private Thread watcher;
+	private volatile boolean running;
+	private long started;
+
+	//solo en el hilo del watcher: archivos cambiando y archivos ya enviados (fecha de modificacion);
+	//los borrados salen de los dos
+	private final Map<Path, long[]> pending = new LinkedHashMap<Path, long[]>();
+	private final Map<Path, Long> done = new HashMap<Path, Long>();
+	//grupos por UID del plan
+	private final Map<String, Job> groups = new LinkedHashMap<String, Job>();
+	private final LongAdder files = new LongAdder();
+	private final LongAdder ignored = new LongAdder();
+	//fallos inesperados del bucle del watcher, que sigue con la siguiente vuelta
+	private final LongAdder errors = new LongAdder();
+	private volatile String error;
+
+	public PlanWatcher(String dir, MuCheck check, Reporter reporter) {
+		this.dir = Path.of(dir);
+		this.check = check;
+		this.reporter = reporter;
+	}
+
+	public void setSettle(long ms) {
+		checkStopped();
+		settle = ms;
+	}
+
+	public void setOrphan(long ms) {
+		checkStopped();
+		orphan = ms;
+	}
+
+	public void setCapacity(int jobs) {
+		checkStopped();
+		capacity = jobs;
+	}
+
+	public void setThreads(int parsers, int calculators) {
+		checkStopped();
+		this.parsers = parsers;
+		this.calculators = calculators;
+	}
+
+	private void checkStopped() {
+		if (running) throw new IllegalStateException("Pipeline already started");
+	}
+
+	//Vigila la carpeta (y sus subcarpetas) y pasa los archivos nuevos por las etapas
+	//leer -> calcular -> informar, cada una con su cola acotada y sus hilos; los archivos
+	//que ya estaban al arrancar no se procesan
+	//===========================================================
+	public synchronized void start() throws IOException {
+		checkStopped();
+		if (!Files.isDirectory(dir)) throw new IOException("Not a directory: " + dir);
+		watch = dir.getFileSystem().newWatchService();
+		register(dir);
+		started = System.currentTimeMillis();
+		running = true;
+
+		parse = new Stage<Path>(STAGES[PARSE], parsers, new Handler<Path>() {
+			public void handle(Path file, long detected) {
+				classify(file, detected);
+			}
+		});
+		calculate = new Stage<Job>(STAGES[CALCULATE], calculators, new Handler<Job>() {
+			public void handle(Job job, long detected) throws InterruptedException {
+				if (job.result==null) {
+					try {
+						job.result = check.check(job.plan);
+					} catch (IOException | RuntimeException e) {
+						job.result = new MuCheck.Result(job.path, message(e));
+					}
+				}
+				report.put(job, detected);
+			}
+		});
+		report = new Stage<Job>(STAGES[REPORT], 1, new Handler<Job>() {
+			public void handle(Job job, long detected) throws IOException {
+				job.finished = System.currentTimeMillis();
+				reporter.report(job);
+			}
+		});
+		stages.clear();
+		stages.add(parse);
+		stages.add(calculate);
+		stages.add(report);
+		for (Stage<?> s : stages) s.start();
+
+		watcher = new Thread(new Runnable() {
+			public void run() {
+				watch();
+			}
+		}, "muka-watch");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	//Para el watcher y las etapas; lo que quede en las colas se descarta
+	//===========================================================
+	public synchronized void close() throws IOException {
+		if (!running) return;
+		running = false;
+		watch.close();
+		watcher.interrupt();
+		for (Stage<?> s : stages) s.stop();
+		try {
+			watcher.join(1000);
+			for (Stage<?> s : stages) s.join(1000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void register(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+				d.register(watch, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	//bucle del watcher: eventos, archivos que dejan de cambiar y grupos que se cierran
+	private void watch() {
+		long tick = Math.max(settle/4, 20);
+		try {
+			while (running) {
+				WatchKey key = watch.poll(tick, TimeUnit.MILLISECONDS);
+				try {
+					while (key!=null) {
+						events(key);
+						key = watch.poll();
+					}
+					settled();
+					dispatch();
+				} catch (ClosedWatchServiceException e) {
+					throw e;
+				} catch (RuntimeException e) {
+					//un fallo no para la vigilancia: se cuenta y se reintenta en la siguiente vuelta
+					errors.increment();
+					error = message(e);
+					if (key!=null) key.reset();
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			//close()
+		}
+	}
+
+	private void events(WatchKey key) {
+		Path parent = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind()==StandardWatchEventKinds.OVERFLOW) {
+				//se han perdido eventos: se busca lo modificado desde el arranque y se olvida lo borrado
+				rescan(dir, started);
+				prune();
+				continue;
+			}
+			Path file = parent.resolve((Path) event.context());
+			if (event.kind()==StandardWatchEventKinds.ENTRY_DELETE) {
+				forget(file);
+			} else if (Files.isDirectory(file)) {
+				//carpeta nueva: se vigila y se revisa lo que ya tenga
+				if (event.kind()==StandardWatchEventKinds.ENTRY_CREATE) {
+					try {
+						register(file);
+					} catch (IOException e) {
+						//carpeta borrada entretanto
+					}
+					rescan(file, 0);
+				}
+			} else if (!file.getFileName().toString().startsWith(".") && !pending.containsKey(file)) {
+				long now = System.currentTimeMillis();
+				pending.put(file, new long[] {-1, -1, now, now});
+			}
+		}
+		key.reset();
+	}
+
+	//archivo o carpeta borrados: una carpeta no avisa de cada archivo que contenia
+	private void forget(Path file) {
+		pending.remove(file);
+		if (done.remove(file)!=null) return;
+		Iterator<Path> it = done.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(file)) it.remove();
+		}
+		it = pending.keySet().iterator();
+		while (it.hasNext()) {
+			if (it.next().startsWith(file)) it.remove();
+		}
+	}
+
+	//enviados que ya no existen (tras perder eventos de borrado)
+	private void prune() {
+		Iterator<Path> it = done.keySet().iterator();
+		while (it.hasNext()) {
+			if (!Files.exists(it.next())) it.remove();
+		}
+	}
+
+	//archivos modificados desde since (ms)
+	private void rescan(Path root, final long since) {
+		try {
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if (attrs.isRegularFile() && attrs.lastModifiedTime().toMillis()>=since
+							&& !file.getFileName().toString().startsWith(".") && !pending.containsKey(file)) {
+						long now = System.currentTimeMillis();
+						pending.put(file, new long[] {-1, -1, now, now});
+					}
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			//carpeta borrada entretanto
+		}
+	}
+
+	//archivos con el mismo tamano y fecha durante settle ms: a la etapa de lectura
+	//(que puede esperar si su cola esta llena)
+	private void settled() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Path, long[]>> it = pending.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Path, long[]> e = it.next();
+			Path file = e.getKey();
+			long[] p = e.getValue(); //{tamano, fecha, ultimo cambio, primer evento}
+			long size, modified;
+			try {
+				BasicFileAttributes a = Files.readAttributes(file, BasicFileAttributes.class);
+				size = a.size();
+				modified = a.lastModifiedTime().toMillis();
+			} catch (IOException ex) {
+				it.remove(); //borrado o renombrado
+				continue;
+			}
+			if (size!=p[0] || modified!=p[1]) {
+				p[0] = size;
+				p[1] = modified;
+				p[2] = now;
+				continue;
+			}
+			if (now-p[2]<settle) continue;
+			it.remove();
+			Long previous = done.get(file);
+			if (previous!=null && previous==modified) continue;
+			done.put(file, modified);
+			files.increment();
+			parse.put(file, p[3]);
+		}
+	}
+
+	//grupos con plan sin novedades durante settle ms: a la etapa de calculo
+	private void dispatch() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		List<Job> ready = new ArrayList<Job>();
+		synchronized (groups) {
+			Iterator<Job> it = groups.values().iterator();
+			while (it.hasNext()) {
+				Job job = it.next();
+				if (job.path!=null ? now-job.touched>=settle : now-job.touched>=orphan) {
+					it.remove();
+					if (job.path!=null) ready.add(job);
+					else ignored.add(job.doses.size());
+				}
+			}
+		}
+		for (Job job : ready) calculate.put(job, job.detected);
+	}
+
+	//etapa de lectura: clase SOP del archivo; los planes se leen y las dosis se agrupan con su plan
+	private void classify(Path file, long detected) {
+		DcmArchive.Entry entry = DcmArchive.read(file.toString());
+		String sop = entry==null ? null : entry.sopClass();
+		if (RT_PLAN.equals(sop) && entry.sopInstance()!=null) {
+			RtPlan plan = null;
+			MuCheck.Result error = null;
+			try {
+				plan = RtPlan.read(file.toString());
+			} catch (IOException | RuntimeException e) {
+				error = new MuCheck.Result(file.toString(), message(e));
+			}
+			synchronized (groups) {
+				Job job = group(entry.sopInstance());
+				job.path = file.toString();
+				job.plan = plan;
+				job.result = error;
+				job.detected = Math.min(job.detected, detected);
+			}
+		} else if (RT_DOSE.equals(sop) && entry.referencedPlan()!=null) {
+			synchronized (groups) {
+				group(entry.referencedPlan()).doses.add(file.toString());
+			}
+		} else {
+			ignored.increment();
+		}
+	}
+
+	private Job group(String uid) {
+		Job job = groups.get(uid);
+		if (job==null) {
+			job = new Job(uid);
+			groups.put(uid, job);
+		}
+		job.touched = System.currentTimeMillis();
+		return job;
+	}
+
+	private static String message(Exception e) {
+		return e.getMessage()==null ? e.toString() : e.getMessage();
+	}
+
+	//archivos que han pasado a la etapa de lectura y los que no se han verificado: ni planes ni dosis,
+	//o dosis cuyo plan no ha llegado en el tiempo de setOrphan (o llego y se envio antes que ellas)
+	public long files() {
+		return files.sum();
+	}
+
+	public long ignored() {
+		return ignored.sum();
+	}
+
+	//fallos del bucle del watcher y el mensaje del ultimo (null si no ha fallado)
+	public long errors() {
+		return errors.sum();
+	}
+
+	public String lastError() {
+		return error;
+	}
+
+	//metricas de una etapa (PARSE, CALCULATE, REPORT); null antes de start()
+	public synchronized Metrics metrics(int stage) {
+		return stages.isEmpty() ? null : stages.get(stage).metrics();
+	}
+
+	//Un plan con las dosis que lo referencian y su verificacion
+	public static final class Job {
+		private final String uid;
+		private final List<String> doses = new ArrayList<String>();
+		private String path;
+		private RtPlan plan;
+		private MuCheck.Result result;
+		private long detected = Long.MAX_VALUE; //primer evento del archivo del plan (ms)
+		private long touched;
+		private long finished;
+
+		Job(String uid) {
+			this.uid = uid;
+		}
+
+		public String uid() {
+			return uid;
+		}
+
+		public String path() {
+			return path;
+		}
+
+		public List<String> doses() {
+			return new ArrayList<String>(doses);
+		}
+
+		public MuCheck.Result result() {
+			return result;
+		}
+
+		public long detected() {
+			return detected;
+		}
+
+		public long finished() {
+			return finished;
+		}
+
+		//desde que aparecio el plan hasta el informe (ms)
+		public long latency() {
+			return finished-detected;
+		}
+	}
+
+	//Contadores de una etapa desde el arranque
+	public static final class Metrics {
+		private final String name;
+		private final long processed, failed, queued;
+		private final double throughput, latency, wait;
+
+		Metrics(String name, long processed, long failed, long queued, double throughput, double latency, double wait) {
+			this.name = name;
+			this.processed = processed;
+			this.failed = failed;
+			this.queued = queued;
+			this.throughput = throughput;
+			this.latency = latency;
+			this.wait = wait;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public long processed() {
+			return processed;
+		}
+
+		public long failed() {
+			return failed;
+		}
+
+		//trabajos esperando en la cola de la etapa
+		public long queued() {
+			return queued;
+		}
+
+		//trabajos por segundo
+		public double throughput() {
+			return throughput;
+		}
+
+		//tiempo medio de proceso de un trabajo (ms)
+		public double latency() {
+			return latency;
+		}
+
+		//tiempo medio en la cola (ms)
+		public double waiting() {
+			return wait;
+		}
+
+		public String toString() {
+			return String.format("%s: %d done, %d failed, %d queued, %.1f/s, %.1f ms, %.1f ms queued",
+				name, processed, failed, queued, throughput, latency, wait);
+		}
+	}
+
+	private interface Handler<T> {
+		//detected: primer evento del archivo o del plan (ms)
+		void handle(T item, long detected) throws Exception;
+	}
+
+	//una etapa: cola acotada y sus hilos; put() espera mientras la cola esta llena
+	private final class Stage<T> {
+		private final String name;
+		private final BlockingQueue<Object[]> queue; //{trabajo, nanoTime de entrada, ms del primer evento}
+		private final Handler<T> handler;
+		private final Thread[] threads;
+		private final LongAdder processed = new LongAdder();
+		private final LongAdder failed = new LongAdder();
+		private final LongAdder busy = new LongAdder();
+		private final LongAdder waited = new LongAdder();
+		private final long start = System.nanoTime();
+
+		Stage(String name, int n, Handler<T> handler) {
+			this.name = name;
+			this.queue = new ArrayBlockingQueue<Object[]>(Math.max(capacity, 1));
+			this.handler = handler;
+			threads = new Thread[Math.max(n, 1)];
+			for (int t=0; t<threads.length; t++) {
+				threads[t] = new Thread(new Runnable() {
+					public void run() {
+						work();
+					}
+				}, "muka-"+name+"-"+(t+1));
+				threads[t].setDaemon(true);
+			}
+		}
+
+		void start() {
+			for (Thread t : threads) t.start();
+		}
+
+		void stop() {
+			for (Thread t : threads) t.interrupt();
+		}
+
+		void join(long ms) throws InterruptedException {
+			for (Thread t : threads) t.join(ms);
+		}
+
+		void put(T item, long detected) throws InterruptedException {
+			queue.put(new Object[] {item, System.nanoTime(), detected});
+		}
+
+		@SuppressWarnings("unchecked")
+		private void work() {
+			while (running) {
+				Object[] entry;
+				try {
+					entry = queue.take();
+				} catch (InterruptedException e) {
+					return;
+				}
+				long begin = System.nanoTime();
+				waited.add(begin-(Long) entry[1]);
+				try {
+					handler.handle((T) entry[0], (Long) entry[2]);
+					processed.increment();
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					failed.increment();
+				} finally {
+					busy.add(System.nanoTime()-begin);
+				}
+			}
+		}
+
+		Metrics metrics() {
+			long n = processed.sum(), all = n + failed.sum();
+			double seconds = (System.nanoTime()-start)/1e9;
+			return new Metrics(name, n, failed.sum(), queue.size(), seconds>0 ? n/seconds : 0,
+				all>0 ? busy.sum()/1e6/all : 0, all>0 ? waited.sum()/1e6/all : 0);
+		}
+	}
+}
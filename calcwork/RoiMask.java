@@ -0,0 +1,231 @@
+package calcwork;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+import dcmwork.DcmSeries;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class RoiMask {
+
+	private final String name;
+	final int nx, ny, nz;
+	private final double voxel;  //cc
+	final long[][] slices;       //bit j*nx + i de cada corte k; null si el corte esta vacio
+
+	private RoiMask(String name, int nx, int ny, int nz, double voxel) {
+		this.name = name;
+		this.nx = nx;
+		this.ny = ny;
+		this.nz = nz;
+		this.voxel = voxel;
+		this.slices = new long[nz][];
+	}
+
+	//Voxels de la matriz de dosis cuyo centro esta dentro de la estructura: cada corte usa el plano
+	//de contornos mas cercano (hasta media separacion entre planos) y se rellena por lineas con la
+	//regla par-impar, de modo que los contornos interiores hacen de huecos
+	//===========================================================
+	public static RoiMask rasterize(RtStruct.Roi roi, DoseGrid grid) throws IOException {
+		return rasterize(roi, grid, ForkJoinPool.commonPool());
+	}
+
+	public static RoiMask rasterize(RtStruct.Roi roi, DoseGrid grid, ExecutorService pool) throws IOException {
+		return rasterize(Collections.singletonList(roi), grid, pool).get(0);
+	}
+
+	public static List<RoiMask> rasterize(List<RtStruct.Roi> rois, DoseGrid grid) throws IOException {
+		return rasterize(rois, grid, ForkJoinPool.commonPool());
+	}
+
+	//un corte de una estructura por tarea
+	public static List<RoiMask> rasterize(List<RtStruct.Roi> rois, final DoseGrid grid, ExecutorService pool)
+			throws IOException {
+		List<RoiMask> masks = new ArrayList<RoiMask>();
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		double base = grid.origin[0]*grid.normal[0] + grid.origin[1]*grid.normal[1] + grid.origin[2]*grid.normal[2];
+		for (final RtStruct.Roi roi : rois) {
+			final RoiMask mask = new RoiMask(roi.name, grid.nx, grid.ny, grid.nz, grid.dx*grid.dy*grid.dz/1000);
+			masks.add(mask);
+			if (roi.planes.length==0) continue;
+
+			//posicion de cada plano a lo largo de la normal de la matriz
+			double[] w = new double[roi.planes.length];
+			double first = Double.MAX_VALUE, last = -Double.MAX_VALUE;
+			for (int p=0; p<w.length; p++) {
+				float[] c = roi.contours[p][0];
+				w[p] = c[0]*grid.normal[0] + c[1]*grid.normal[1] + c[2]*grid.normal[2];
+				first = Math.min(first, w[p]);
+				last = Math.max(last, w[p]);
+			}
+			double t = roi.thickness();
+			double half = (Double.isNaN(t) ? grid.dz : t)/2;
+
+			for (int k=0; k<grid.nz; k++) {
+				//entre el primer y el ultimo plano, el mas cercano; fuera, menos de media separacion
+				double wk = base + k*grid.dz;
+				if (wk<=first-half || wk>=last+half) continue;
+				int nearest = 0;
+				for (int p=1; p<w.length; p++) {
+					if (Math.abs(w[p]-wk)<Math.abs(w[nearest]-wk)) nearest = p;
+				}
+				final int slice = k, plane = nearest;
+				tasks.add(new Callable<Void>() {
+					public Void call() {
+						mask.slices[slice] = fill(roi.contours[plane], grid);
+						return null;
+					}
+				});
+			}
+		}
+		DcmSeries.all(pool, tasks, "ROI rasterization interrupted");
+		return masks;
+	}
+
+	//bits de un corte: cortes de los lados con las lineas de centros de voxel, ordenados por linea,
+	//y relleno entre pares; null si no queda ningun voxel
+	private static long[] fill(float[][] contours, DoseGrid grid) {
+		int nx = grid.nx, ny = grid.ny;
+		double[] o = grid.origin, r = grid.row, c = grid.column;
+
+		//puntos en coordenadas de voxel del plano
+		float[][] fi = new float[contours.length][], fj = new float[contours.length][];
+		for (int n=0; n<contours.length; n++) {
+			float[] xyz = contours[n];
+			int points = xyz.length/3;
+			fi[n] = new float[points];
+			fj[n] = new float[points];
+			for (int p=0; p<points; p++) {
+				double x = xyz[3*p]-o[0], y = xyz[3*p+1]-o[1], z = xyz[3*p+2]-o[2];
+				fi[n][p] = (float)((x*r[0] + y*r[1] + z*r[2]) / grid.dx);
+				fj[n][p] = (float)((x*c[0] + y*c[1] + z*c[2]) / grid.dy);
+			}
+		}
+
+		//primera pasada: numero de cortes por linea; segunda: coordenada i de cada corte
+		int[] start = new int[ny+1];
+		crossings(fi, fj, ny, start, null, null);
+		for (int j=0; j<ny; j++) start[j+1] += start[j];
+		if (start[ny]==0) return null;
+		float[] cuts = new float[start[ny]];
+		crossings(fi, fj, ny, start, cuts, Arrays.copyOf(start, ny));
+
+		long[] bits = new long[(nx*ny+63) >>> 6];
+		boolean any = false;
+		for (int j=0; j<ny; j++) {
+			Arrays.sort(cuts, start[j], start[j+1]);
+			for (int s=start[j]; s+1<start[j+1]; s+=2) {
+				int i0 = Math.max((int)Math.ceil(cuts[s]), 0);
+				int i1 = Math.min((int)Math.floor(cuts[s+1]), nx-1);
+				if (i0>i1) continue;
+				set(bits, j*nx + i0, j*nx + i1 + 1);
+				any = true;
+			}
+		}
+		return any ? bits : null;
+	}
+
+	//lados de todos los contornos que cruzan cada linea j (min <= j < max, para no contar dos
+	//veces los vertices): sin cuts se cuentan en count[j+1], con cuts se escriben desde next[j]
+	private static void crossings(float[][] fi, float[][] fj, int ny, int[] count, float[] cuts, int[] next) {
+		for (int n=0; n<fi.length; n++) {
+			float[] pi = fi[n], pj = fj[n];
+			int points = pi.length;
+			for (int p=0, q=points-1; p<points; q=p++) {
+				double j0 = pj[q], j1 = pj[p];
+				if (j0==j1) continue;
+				int from = Math.max((int)Math.ceil(Math.min(j0, j1)), 0);
+				int to = Math.min((int)Math.ceil(Math.max(j0, j1))-1, ny-1);
+				for (int j=from; j<=to; j++) {
+					if (cuts==null) count[j+1]++;
+					else cuts[next[j]++] = (float)(pi[q] + (j-j0)*(pi[p]-pi[q])/(j1-j0));
+				}
+			}
+		}
+	}
+
+	//bits [from, to)
+	private static void set(long[] bits, int from, int to) {
+		int w0 = from >>> 6, w1 = (to-1) >>> 6;
+		long first = -1L << from, last = -1L >>> -to;
+		if (w0==w1) {
+			bits[w0] |= first & last;
+			return;
+		}
+		bits[w0] |= first;
+		for (int w=w0+1; w<w1; w++) bits[w] = -1L;
+		bits[w1] |= last;
+	}
+
+	public String name() {
+		return name;
+	}
+
+	public int nx() {
+		return nx;
+	}
+
+	public int ny() {
+		return ny;
+	}
+
+	public int nz() {
+		return nz;
+	}
+
+	public boolean contains(int i, int j, int k) {
+		long[] s = slices[k];
+		int b = j*nx + i;
+		return s!=null && (s[b >>> 6] & 1L << b)!=0;
+	}
+
+	public long voxels() {
+		long n = 0;
+		for (long[] s : slices) {
+			if (s!=null) for (long w : s) n += Long.bitCount(w);
+		}
+		return n;
+	}
+
+	//cc
+	public double volume() {
+		return voxels()*voxel;
+	}
+
+	double voxelVolume() {
+		return voxel;
+	}
+}
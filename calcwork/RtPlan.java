@@ -0,0 +1,485 @@
+package calcwork;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import dcmwork.DcmHeadex;
+import dcmwork.DcmItem;
+import dcmwork.DcmSequence;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class RtPlan {
+
+	private static final int SOP_INSTANCE_UID = 0x00080018;
+	private static final int PATIENT_ID = 0x00100020;
+	private static final int RT_PLAN_LABEL = 0x300A0002;
+	private static final int DOSE_REFERENCE_SEQUENCE = 0x300A0010;
+	private static final int DOSE_REFERENCE_POINT = 0x300A0018;
+	private static final int FRACTION_GROUP_SEQUENCE = 0x300A0070;
+	private static final int FRACTIONS_PLANNED = 0x300A0078;
+	private static final int BEAM_DOSE_POINT = 0x300A0082;
+	private static final int BEAM_DOSE = 0x300A0084;
+	private static final int BEAM_METERSET = 0x300A0086;
+	private static final int BEAM_DOSE_POINT_EQUIVALENT_DEPTH = 0x300A0089;
+	private static final int BEAM_SEQUENCE = 0x300A00B0;
+	private static final int MACHINE_NAME = 0x300A00B2;
+	private static final int SOURCE_AXIS_DISTANCE = 0x300A00B4;
+	private static final int DEVICE_SEQUENCE = 0x300A00B6;
+	private static final int DEVICE_TYPE = 0x300A00B8;
+	private static final int LEAF_BOUNDARIES = 0x300A00BE;
+	private static final int BEAM_NUMBER = 0x300A00C0;
+	private static final int BEAM_NAME = 0x300A00C2;
+	private static final int RADIATION_TYPE = 0x300A00C6;
+	private static final int DELIVERY_TYPE = 0x300A00CE;
+	private static final int FINAL_WEIGHT = 0x300A010E;
+	private static final int CONTROL_POINT_SEQUENCE = 0x300A0111;
+	private static final int NOMINAL_ENERGY = 0x300A0114;
+	private static final int DEVICE_POSITION_SEQUENCE = 0x300A011A;
+	private static final int JAW_POSITIONS = 0x300A011C;
+	private static final int GANTRY_ANGLE = 0x300A011E;
+	private static final int COLLIMATOR_ANGLE = 0x300A0120;
+	private static final int COUCH_ANGLE = 0x300A0122;
+	private static final int ISOCENTER = 0x300A012C;
+	private static final int SSD = 0x300A0130;
+	private static final int CUMULATIVE_WEIGHT = 0x300A0134;
+	private static final int REFERENCED_BEAM_SEQUENCE = 0x300C0004;
+	private static final int REFERENCED_BEAM_NUMBER = 0x300C0006;
+
+	//laminas de 10 mm centradas si el plan no trae LeafPositionBoundaries
+	private static final double DEFAULT_LEAF_WIDTH = 10;
+
+	private final String path, uid, label, patientId;
+	private final int fractions;
+	private final double[] reference; //punto de referencia de dosis (mm), null si no hay
+	private final Beam[] beams;
+
+	private RtPlan(String path, String uid, String label, String patientId, int fractions,
+			double[] reference, Beam[] beams) {
+		this.path = path;
+		this.uid = uid;
+		this.label = label;
+		this.patientId = patientId;
+		this.fractions = fractions;
+		this.reference = reference;
+		this.beams = beams;
+	}
+
+	//Un campo: geometria y segmentos (pares de puntos de control con su peso)
+	public static final class Beam {
+		final int number;
+		final String name, machine;
+		final double energy;      //MV nominales
+		final double sad;         //mm
+		final double meterset;    //UM por fraccion
+		final double[] dosePoint; //Beam Dose Specification Point, null si no hay
+		final double beamDose;    //Gy por fraccion en ese punto, NaN si no hay
+		final double equivalentDepth; //profundidad equivalente en agua de ese punto (mm), NaN si no hay
+		final double[] leafBoundaries; //null sin MLC
+		final Segment[] segments;
+
+		Beam(int number, String name, String machine, double energy, double sad, double meterset,
+				double[] dosePoint, double beamDose, double equivalentDepth, double[] leafBoundaries,
+				Segment[] segments) {
+			this.number = number;
+			this.name = name;
+			this.machine = machine;
+			this.energy = energy;
+			this.sad = sad;
+			this.meterset = meterset;
+			this.dosePoint = dosePoint;
+			this.beamDose = beamDose;
+			this.equivalentDepth = equivalentDepth;
+			this.leafBoundaries = leafBoundaries;
+			this.segments = segments;
+		}
+
+		public int number() {
+			return number;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		public String machine() {
+			return machine;
+		}
+
+		public double energy() {
+			return energy;
+		}
+
+		public double sad() {
+			return sad;
+		}
+
+		public double meterset() {
+			return meterset;
+		}
+
+		public double[] dosePoint() {
+			return dosePoint==null ? null : dosePoint.clone();
+		}
+
+		public double beamDose() {
+			return beamDose;
+		}
+
+		public double equivalentDepth() {
+			return equivalentDepth;
+		}
+
+		public double[] leafBoundaries() {
+			return leafBoundaries==null ? null : leafBoundaries.clone();
+		}
+
+		public int segments() {
+			return segments.length;
+		}
+
+		public Segment segment(int i) {
+			return segments[i];
+		}
+	}
+
+	//Apertura estatica entre dos puntos de control; weight es la fraccion de las UM del campo
+	public static final class Segment {
+		final double gantry, collimator, couch;
+		final double[] isocenter;
+		final double ssd;         //NaN si no viene
+		final double x1, x2, y1, y2; //mordazas en el plano del isocentro (mm)
+		final double[] leaves;    //2N: banco A (X1) y banco B (X2), null sin MLC
+		final double weight;
+
+		Segment(double gantry, double collimator, double couch, double[] isocenter, double ssd,
+				double x1, double x2, double y1, double y2, double[] leaves, double weight) {
+			this.gantry = gantry;
+			this.collimator = collimator;
+			this.couch = couch;
+			this.isocenter = isocenter;
+			this.ssd = ssd;
+			this.x1 = x1;
+			this.x2 = x2;
+			this.y1 = y1;
+			this.y2 = y2;
+			this.leaves = leaves;
+			this.weight = weight;
+		}
+
+		public double gantry() {
+			return gantry;
+		}
+
+		public double collimator() {
+			return collimator;
+		}
+
+		public double couch() {
+			return couch;
+		}
+
+		public double[] isocenter() {
+			return isocenter.clone();
+		}
+
+		public double ssd() {
+			return ssd;
+		}
+
+		public double x1() {
+			return x1;
+		}
+
+		public double x2() {
+			return x2;
+		}
+
+		public double y1() {
+			return y1;
+		}
+
+		public double y2() {
+			return y2;
+		}
+
+		public double[] leaves() {
+			return leaves==null ? null : leaves.clone();
+		}
+
+		public double weight() {
+			return weight;
+		}
+
+		//fuente, eje del haz (hacia el paciente) y ejes X, Y del colimador en coordenadas del
+		//paciente, para paciente HFS y giros IEC 61217
+		void frame(double sad, double[] source, double[] d, double[] x, double[] y) {
+			double g = Math.toRadians(gantry), c = Math.toRadians(collimator), t = -Math.toRadians(couch);
+			double sg = Math.sin(g), cg = Math.cos(g), sc = Math.sin(c), cc = Math.cos(c);
+			double st = Math.sin(t), ct = Math.cos(t);
+			//la mesa gira alrededor de la vertical del paciente
+			rotate(d, -sg, cg, 0, st, ct);
+			rotate(x, cc*cg, cc*sg, sc, st, ct);
+			rotate(y, -sc*cg, -sc*sg, cc, st, ct);
+			for (int a=0; a<3; a++) source[a] = isocenter[a] - sad*d[a];
+		}
+
+		private static void rotate(double[] v, double vx, double vy, double vz, double st, double ct) {
+			v[0] = vx*ct + vz*st;
+			v[1] = vy;
+			v[2] = -vx*st + vz*ct;
+		}
+	}
+
+	//Lee un RT Plan: campos de tratamiento (sin los de SETUP ni los de 0 UM) de la primera
+	//fraccion, puntos de control con los atributos heredados del anterior y punto de referencia
+	//===========================================================
+	public static RtPlan read(String path) throws IOException {
+		DcmHeadex headex = new DcmHeadex(path, true);
+		headex.setMapped(true);
+		return read(headex);
+	}
+
+	//los valores mal formados de atributos obligatorios (UM, geometria) y los errores de estructura
+	//llegan como IOException; los opcionales (dosis y punto del campo) quedan como si no estuvieran
+	public static RtPlan read(DcmHeadex headex) throws IOException {
+		try {
+			return parse(headex);
+		} catch (RuntimeException e) {
+			throw new IOException("Bad RT Plan: "+headex.getpath(), e);
+		}
+	}
+
+	private static RtPlan parse(DcmHeadex headex) throws IOException {
+		DcmItem ds = headex.dataset();
+		String path = headex.getpath();
+
+		//UM y punto de especificacion de cada campo en el primer grupo de fracciones
+		List<double[]> metersets = new ArrayList<double[]>(); //{numero, UM, dosis, x, y, z, profundidad}
+		int fractions = 1;
+		DcmSequence fg = ds.sequence(FRACTION_GROUP_SEQUENCE);
+		if (fg!=null && fg.size()>0) {
+			DcmItem group = fg.item(0);
+			fractions = Math.max(first(group.ints(FRACTIONS_PLANNED), 1), 1);
+			DcmSequence rb = group.sequence(REFERENCED_BEAM_SEQUENCE);
+			if (rb!=null) {
+				for (DcmItem b : rb) {
+					double[] p = b.doubles(BEAM_DOSE_POINT);
+					boolean point = p!=null && p.length==3 && !Double.isNaN(p[0]+p[1]+p[2]);
+					metersets.add(new double[] {first(b.ints(REFERENCED_BEAM_NUMBER), -1),
+						number(b.doubles(BEAM_METERSET), 0, "BeamMeterset", path), first(b.doubles(BEAM_DOSE), Double.NaN),
+						point ? p[0] : Double.NaN, point ? p[1] : Double.NaN, point ? p[2] : Double.NaN,
+						first(b.doubles(BEAM_DOSE_POINT_EQUIVALENT_DEPTH), Double.NaN)});
+				}
+			}
+		}
+
+		List<Beam> beams = new ArrayList<Beam>();
+		DcmSequence bs = ds.sequence(BEAM_SEQUENCE);
+		if (bs!=null) {
+			for (DcmItem b : bs) {
+				int number = first(b.ints(BEAM_NUMBER), -1);
+				String type = b.value(DELIVERY_TYPE);
+				String radiation = b.value(RADIATION_TYPE);
+				if (type!=null && type.trim().startsWith("SETUP")) continue;
+				if (radiation!=null && !radiation.trim().equals("PHOTON")) continue;
+				double[] ms = null;
+				for (double[] m : metersets) {
+					if ((int)m[0]==number) ms = m;
+				}
+				if (ms==null || !(ms[1]>0)) continue;
+				double[] point = Double.isNaN(ms[3]) ? null : new double[] {ms[3], ms[4], ms[5]};
+				beams.add(beam(b, number, ms[1], ms[2], point, ms[6], path));
+			}
+		}
+
+		//referencia: primer punto de DoseReferenceSequence o punto de especificacion del primer campo
+		double[] reference = null;
+		DcmSequence dr = ds.sequence(DOSE_REFERENCE_SEQUENCE);
+		if (dr!=null) {
+			for (DcmItem r : dr) {
+				double[] p = r.doubles(DOSE_REFERENCE_POINT);
+				if (p!=null && p.length==3 && !Double.isNaN(p[0]+p[1]+p[2])) {
+					reference = p;
+					break;
+				}
+			}
+		}
+		if (reference==null && !beams.isEmpty() && beams.get(0).dosePoint!=null) reference = beams.get(0).dosePoint.clone();
+
+		return new RtPlan(path, trim(ds.value(SOP_INSTANCE_UID)), trim(ds.value(RT_PLAN_LABEL)),
+			trim(ds.value(PATIENT_ID)), fractions, reference, beams.toArray(new Beam[beams.size()]));
+	}
+
+	private static Beam beam(DcmItem b, int number, double meterset, double beamDose, double[] point,
+			double depth, String path) throws IOException {
+		double sad = number(b.doubles(SOURCE_AXIS_DISTANCE), 1000, "SourceAxisDistance", path);
+		String machine = trim(b.value(MACHINE_NAME));
+		String name = trim(b.value(BEAM_NAME));
+
+		double[] boundaries = null;
+		DcmSequence devices = b.sequence(DEVICE_SEQUENCE);
+		if (devices!=null) {
+			for (DcmItem d : devices) {
+				if (isMLC(d.value(DEVICE_TYPE))) boundaries = numbers(d.doubles(LEAF_BOUNDARIES), "LeafPositionBoundaries", path);
+			}
+		}
+
+		DcmSequence cps = b.sequence(CONTROL_POINT_SEQUENCE);
+		if (cps==null || cps.size()==0) throw new IOException("Beam "+number+" without control points: "+path);
+
+		//estado heredado de un punto de control al siguiente
+		double energy = 0, gantry = 0, collimator = 0, couch = 0, ssd = Double.NaN;
+		double[] iso = {0, 0, 0};
+		double x1 = -200, x2 = 200, y1 = -200, y2 = 200;
+		double[] leaves = null;
+		double weight = 0;
+		double total = number(b.doubles(FINAL_WEIGHT), Double.NaN, "FinalCumulativeMetersetWeight", path);
+
+		List<Segment> segments = new ArrayList<Segment>();
+		Segment open = null; //apertura del punto de control anterior
+		for (int c=0; c<cps.size(); c++) {
+			DcmItem cp = cps.item(c);
+			energy = number(cp.doubles(NOMINAL_ENERGY), energy, "NominalBeamEnergy", path);
+			gantry = number(cp.doubles(GANTRY_ANGLE), gantry, "GantryAngle", path);
+			collimator = number(cp.doubles(COLLIMATOR_ANGLE), collimator, "BeamLimitingDeviceAngle", path);
+			couch = number(cp.doubles(COUCH_ANGLE), couch, "PatientSupportAngle", path);
+			ssd = first(cp.doubles(SSD), ssd);
+			double[] p = numbers(cp.doubles(ISOCENTER), "IsocenterPosition", path);
+			if (p!=null && p.length==3) iso = p;
+			DcmSequence positions = cp.sequence(DEVICE_POSITION_SEQUENCE);
+			if (positions!=null) {
+				for (DcmItem d : positions) {
+					String type = trim(d.value(DEVICE_TYPE));
+					double[] v = numbers(d.doubles(JAW_POSITIONS), "LeafJawPositions", path);
+					if (v==null || v.length<2) continue;
+					if (isMLC(type)) leaves = v;
+					else if (type.endsWith("X")) {
+						x1 = v[0];
+						x2 = v[1];
+					} else if (type.endsWith("Y")) {
+						y1 = v[0];
+						y2 = v[1];
+					}
+				}
+			}
+			double w = number(cp.doubles(CUMULATIVE_WEIGHT), weight, "CumulativeMetersetWeight", path);
+			//el tramo anterior se irradia con la apertura de su primer punto de control
+			if (open!=null && w>weight) {
+				segments.add(new Segment(open.gantry, open.collimator, open.couch, open.isocenter, open.ssd,
+					open.x1, open.x2, open.y1, open.y2, open.leaves, w-weight));
+			}
+			weight = w;
+			open = new Segment(gantry, collimator, couch, iso, ssd, x1, x2, y1, y2, leaves, 0);
+		}
+		//los pesos pasan a fraccion de las UM del campo
+		if (!(total>0)) total = weight;
+		Segment[] seg = segments.toArray(new Segment[segments.size()]);
+		for (int s=0; s<seg.length; s++) {
+			Segment g = seg[s];
+			seg[s] = new Segment(g.gantry, g.collimator, g.couch, g.isocenter, g.ssd, g.x1, g.x2, g.y1, g.y2,
+				g.leaves, total>0 ? g.weight/total : 0);
+		}
+
+		if (boundaries==null && leaves!=null) {
+			int n = leaves.length/2;
+			boundaries = new double[n+1];
+			for (int i=0; i<=n; i++) boundaries[i] = (i - n/2.0)*DEFAULT_LEAF_WIDTH;
+		}
+		if (leaves!=null && boundaries!=null && boundaries.length!=leaves.length/2+1)
+			throw new IOException("Beam "+number+": "+leaves.length/2+" leaf pairs and "+boundaries.length+" boundaries: "+path);
+
+		return new Beam(number, name, machine, energy, sad, meterset, point, beamDose, depth, boundaries, seg);
+	}
+
+	private static boolean isMLC(String type) {
+		return type!=null && type.trim().startsWith("MLC");
+	}
+
+	private static int first(int[] v, int def) {
+		return v==null || v.length==0 ? def : v[0];
+	}
+
+	//primer valor de un atributo obligatorio si viene: def si no esta, IOException si no es un numero
+	private static double number(double[] v, double def, String name, String path) throws IOException {
+		if (v==null || v.length==0) return def;
+		if (Double.isNaN(v[0])) throw new IOException("Bad "+name+" value: "+path);
+		return v[0];
+	}
+
+	//todos los valores de un atributo obligatorio; null si no esta
+	private static double[] numbers(double[] v, String name, String path) throws IOException {
+		if (v==null) return null;
+		for (double x : v) {
+			if (Double.isNaN(x)) throw new IOException("Bad "+name+" value: "+path);
+		}
+		return v;
+	}
+
+	private static double first(double[] v, double def) {
+		return v==null || v.length==0 || Double.isNaN(v[0]) ? def : v[0];
+	}
+
+	private static String trim(String s) {
+		return s==null ? "" : s.trim();
+	}
+
+	public String path() {
+		return path;
+	}
+
+	public String uid() {
+		return uid;
+	}
+
+	public String label() {
+		return label;
+	}
+
+	public String patientId() {
+		return patientId;
+	}
+
+	public int fractions() {
+		return fractions;
+	}
+
+	public double[] reference() {
+		return reference==null ? null : reference.clone();
+	}
+
+	public int beams() {
+		return beams.length;
+	}
+
+	public Beam beam(int i) {
+		return beams[i];
+	}
+}
@@ -0,0 +1,298 @@
+package calcwork;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import dcmwork.DcmHeadex;
+import dcmwork.DcmIndex;
+import dcmwork.DcmVisitor;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class RtStruct {
+
+	private static final int SOP_INSTANCE_UID = 0x00080018;
+	private static final int STRUCTURE_SET_LABEL = 0x30060002;
+	private static final int STRUCTURE_SET_ROI_SEQUENCE = 0x30060020;
+	private static final int ROI_NUMBER = 0x30060022;
+	private static final int ROI_NAME = 0x30060026;
+	private static final int ROI_CONTOUR_SEQUENCE = 0x30060039;
+	private static final int CONTOUR_SEQUENCE = 0x30060040;
+	private static final int CONTOUR_GEOMETRIC_TYPE = 0x30060042;
+	private static final int NUMBER_OF_CONTOUR_POINTS = 0x30060046;
+	private static final int CONTOUR_DATA = 0x30060050;
+	private static final int RT_ROI_OBSERVATIONS_SEQUENCE = 0x30060080;
+	private static final int REFERENCED_ROI_NUMBER = 0x30060084;
+	private static final int RT_ROI_INTERPRETED_TYPE = 0x300600A4;
+
+	//contornos del mismo plano si sus z difieren menos de esto (mm)
+	private static final double PLANE_TOLERANCE = 0.01;
+
+	private final String path, uid, label;
+	private final Roi[] rois;
+
+	private RtStruct(String path, String uid, String label, Roi[] rois) {
+		this.path = path;
+		this.uid = uid;
+		this.label = label;
+		this.rois = rois;
+	}
+
+	//Una estructura: contornos cerrados agrupados por plano (z del paciente, creciente)
+	public static final class Roi {
+		final int number;
+		final String name, type;
+		final double[] planes;
+		final float[][][] contours; //contours[plano][c]: x, y, z (mm) de cada punto
+
+		Roi(int number, String name, String type, double[] planes, float[][][] contours) {
+			this.number = number;
+			this.name = name;
+			this.type = type;
+			this.planes = planes;
+			this.contours = contours;
+		}
+
+		public int number() {
+			return number;
+		}
+
+		public String name() {
+			return name;
+		}
+
+		//RTROIInterpretedType (EXTERNAL, PTV, ORGAN...), null si no hay
+		public String type() {
+			return type;
+		}
+
+		public int planes() {
+			return planes.length;
+		}
+
+		public double plane(int p) {
+			return planes[p];
+		}
+
+		public int contours(int p) {
+			return contours[p].length;
+		}
+
+		//puntos de un contorno; el array es el de la estructura, de solo lectura
+		public float[] contour(int p, int c) {
+			return contours[p][c];
+		}
+
+		//separacion entre planos (mediana), NaN con un solo plano
+		public double thickness() {
+			if (planes.length<2) return Double.NaN;
+			double[] d = new double[planes.length-1];
+			for (int p=1; p<planes.length; p++) d[p-1] = planes[p]-planes[p-1];
+			Arrays.sort(d);
+			return d[d.length/2];
+		}
+	}
+
+	//Lee un RT Structure Set en un solo recorrido: ContourData pasa de la vista del archivo
+	//mapeado a arrays de float sin crear Strings; solo se guardan los contornos CLOSED_PLANAR
+	//===========================================================
+	public static RtStruct read(String path) throws IOException {
+		DcmHeadex headex = new DcmHeadex(path);
+		headex.setMapped(true);
+		Reader reader = new Reader(path);
+		headex.accept(reader);
+
+		//en el orden de StructureSetROISequence; las que solo tienen contornos al final
+		List<Roi> list = new ArrayList<Roi>();
+		for (Map.Entry<Integer, String> e : reader.names.entrySet()) {
+			int number = e.getKey();
+			List<float[]> c = reader.contours.get(number);
+			String name = e.getValue()==null ? "ROI "+number : e.getValue();
+			list.add(roi(number, name, reader.types.get(number), c==null ? new ArrayList<float[]>() : c));
+		}
+		for (Map.Entry<Integer, List<float[]>> e : reader.contours.entrySet()) {
+			int number = e.getKey();
+			if (!reader.names.containsKey(number)) list.add(roi(number, "ROI "+number, reader.types.get(number), e.getValue()));
+		}
+		return new RtStruct(path, reader.uid, reader.label, list.toArray(new Roi[list.size()]));
+	}
+
+	private static Roi roi(int number, String name, String type, List<float[]> contours) {
+		float[][] c = contours.toArray(new float[contours.size()][]);
+		Arrays.sort(c, new Comparator<float[]>() {
+			public int compare(float[] a, float[] b) {
+				return Float.compare(a[2], b[2]);
+			}
+		});
+		List<Double> planes = new ArrayList<Double>();
+		List<float[][]> groups = new ArrayList<float[][]>();
+		int from = 0;
+		for (int i=1; i<=c.length; i++) {
+			if (i<c.length && c[i][2]-c[from][2]<=PLANE_TOLERANCE) continue;
+			planes.add((double)c[from][2]);
+			groups.add(Arrays.copyOfRange(c, from, i));
+			from = i;
+		}
+		double[] z = new double[planes.size()];
+		for (int p=0; p<z.length; p++) z[p] = planes.get(p);
+		return new Roi(number, name, type, z, groups.toArray(new float[groups.size()][][]));
+	}
+
+	//estado del recorrido: secuencia del nivel superior, item de ROIContourSequence y contorno actuales
+	private static final class Reader implements DcmVisitor {
+		final String path;
+		String uid, label;
+		final Map<Integer, String> names = new LinkedHashMap<Integer, String>();
+		final Map<Integer, String> types = new LinkedHashMap<Integer, String>();
+		final Map<Integer, List<float[]>> contours = new LinkedHashMap<Integer, List<float[]>>();
+		final float[] one = new float[1];
+		int top, number;
+		List<float[]> current; //contornos del item actual; ReferencedROINumber va detras de ellos
+		String geometry;
+		int points;
+
+		Reader(String path) {
+			this.path = path;
+		}
+
+		public int element(int tag, int vr, int length, ByteBuffer value, int depth) throws IOException {
+			if (depth==0) {
+				//los tags del nivel superior van en orden: tras las observaciones ya esta todo
+				if (Integer.compareUnsigned(tag, RT_ROI_OBSERVATIONS_SEQUENCE)>0) return STOP;
+				top = tag;
+				if (tag==SOP_INSTANCE_UID && value!=null) uid = text(value);
+				else if (tag==STRUCTURE_SET_LABEL && value!=null) label = text(value);
+				else if (tag==STRUCTURE_SET_ROI_SEQUENCE || tag==ROI_CONTOUR_SEQUENCE || tag==RT_ROI_OBSERVATIONS_SEQUENCE)
+					return DESCEND;
+				return SKIP;
+			}
+			if (tag==DcmIndex.ITEM) {
+				if (depth==1) {
+					number = -1;
+					if (top==ROI_CONTOUR_SEQUENCE) current = new ArrayList<float[]>();
+				} else {
+					geometry = null;
+					points = 0;
+				}
+				return DESCEND;
+			}
+			if (value==null) return depth==1 && top==ROI_CONTOUR_SEQUENCE && tag==CONTOUR_SEQUENCE ? DESCEND : SKIP;
+
+			if (depth==1) {
+				if (tag==ROI_NUMBER || tag==REFERENCED_ROI_NUMBER) {
+					number = integer(value, vr);
+					if (top==STRUCTURE_SET_ROI_SEQUENCE && !names.containsKey(number)) names.put(number, null);
+					if (top==ROI_CONTOUR_SEQUENCE) add(number, current);
+				} else if (tag==ROI_NAME && top==STRUCTURE_SET_ROI_SEQUENCE && number>=0) {
+					names.put(number, text(value));
+				} else if (tag==RT_ROI_INTERPRETED_TYPE && top==RT_ROI_OBSERVATIONS_SEQUENCE && number>=0) {
+					types.put(number, text(value));
+				}
+				return SKIP;
+			}
+
+			//elementos de cada item de ContourSequence
+			if (depth==2 && top==ROI_CONTOUR_SEQUENCE) {
+				if (tag==CONTOUR_GEOMETRIC_TYPE) geometry = text(value);
+				else if (tag==NUMBER_OF_CONTOUR_POINTS) points = integer(value, vr);
+				else if (tag==CONTOUR_DATA && "CLOSED_PLANAR".equals(geometry)) contour(value, vr);
+			}
+			return SKIP;
+		}
+
+		private void contour(ByteBuffer value, int vr) throws IOException {
+			float[] xyz = new float[3*Math.max(points, 0)];
+			int n = DcmHeadex.floats(value, vr, xyz, 0);
+			if (n!=xyz.length) {
+				xyz = new float[n];
+				DcmHeadex.floats(value, vr, xyz, 0);
+			}
+			if (n%3!=0) throw new IOException("ContourData with "+n+" values: "+path);
+			if (n>=9) current.add(xyz);
+		}
+
+		//ROIContourSequence con varios items para la misma estructura: se juntan
+		private void add(int number, List<float[]> list) {
+			List<float[]> previous = contours.get(number);
+			if (previous==null) contours.put(number, list);
+			else if (previous!=list) {
+				previous.addAll(list);
+				current = previous;
+			}
+		}
+
+		private int integer(ByteBuffer value, int vr) {
+			return DcmHeadex.floats(value, vr, one, 0)>0 ? (int)one[0] : -1;
+		}
+	}
+
+	private static String text(ByteBuffer value) {
+		int end = value.limit();
+		int start = value.position();
+		while (end>start && (value.get(end-1)==' ' || value.get(end-1)==0)) end--;
+		while (start<end && value.get(start)==' ') start++;
+		if (start==end) return null;
+		char[] c = new char[end-start];
+		for (int i=0; i<c.length; i++) c[i] = (char)(value.get(start+i)&0xFF);
+		return new String(c);
+	}
+
+	public String path() {
+		return path;
+	}
+
+	public String uid() {
+		return uid;
+	}
+
+	public String label() {
+		return label;
+	}
+
+	public int rois() {
+		return rois.length;
+	}
+
+	public Roi roi(int i) {
+		return rois[i];
+	}
+
+	//por nombre, sin distinguir mayusculas; null si no esta
+	public Roi roi(String name) {
+		for (Roi r : rois) {
+			if (r.name!=null && r.name.trim().equalsIgnoreCase(name.trim())) return r;
+		}
+		return null;
+	}
+}
@@ -0,0 +1,433 @@
+package dcmwork;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class DcmArchive {
+
+	//atributos indexados, en este orden en cada registro
+	public static final int SOP_CLASS = 0;
+	public static final int SOP_INSTANCE = 1;
+	public static final int STUDY = 2;
+	public static final int SERIES = 3;
+	public static final int FRAME_OF_REFERENCE = 4;
+	public static final int PATIENT_ID = 5;
+	public static final int MODALITY = 6;
+	public static final int REFERENCED_PLAN = 7;
+	private static final int KEYS = 8;
+
+	private static final int[] TAGS = {0x00080016, 0x00080018, 0x0020000D, 0x0020000E, 0x00200052, 0x00100020, 0x00080060};
+	private static final int REFERENCED_RT_PLAN_SEQUENCE = 0x300C0002;
+	private static final int REFERENCED_SOP_INSTANCE = 0x00081155;
+
+	//indice junto al archivo
+	public static final String SIDECAR = ".mukaindex";
+	private static final int MAGIC = 0x4D4B4958; //"MKIX"
+	private static final int VERSION = 1;
+
+	private static final class Record {
+		final long size;
+		final long modified;
+		final int[] keys; //posicion en el almacen de textos, -1 si no esta; null si no es DICOM
+
+		Record(long size, long modified, int[] keys) {
+			this.size = size;
+			this.modified = modified;
+			this.keys = keys;
+		}
+	}
+
+	private final File root;
+	private final File sidecar;
+	//por ruta relativa a la raiz ('/' como separador)
+	private final Map<String, Record> records = new LinkedHashMap<String, Record>();
+	//textos repetidos (UIDs, pacientes, modalidades) guardados una sola vez
+	private final List<String> strings = new ArrayList<String>();
+	private final Map<String, Integer> ids = new HashMap<String, Integer>();
+
+	private DcmArchive(File root, File sidecar) {
+		this.root = root;
+		this.sidecar = sidecar;
+	}
+
+	//Indice del archivo: se carga del sidecar y se actualiza con los archivos nuevos o
+	//modificados (tamano y fecha); un reinicio solo lee lo que ha cambiado
+	//===========================================================
+	public static DcmArchive open(String dir) throws IOException {
+		return open(dir, new File(dir, SIDECAR).getPath(), ForkJoinPool.commonPool());
+	}
+
+	public static DcmArchive open(String dir, String sidecar, ExecutorService pool) throws IOException {
+		File root = new File(dir);
+		if (!root.isDirectory()) throw new IOException("Not a directory: " + dir);
+		DcmArchive archive = new DcmArchive(root, new File(sidecar));
+		if (archive.sidecar.isFile()) {
+			try {
+				archive.load();
+			} catch (IOException e) {
+				//indice de otra version o danado: se rehace
+				archive.records.clear();
+				archive.strings.clear();
+				archive.ids.clear();
+			}
+		}
+		archive.update(pool);
+		return archive;
+	}
+
+	//Relee los archivos nuevos o modificados (en paralelo), olvida los borrados y guarda el sidecar
+	//si algo ha cambiado. Devuelve el numero de archivos leidos
+	//===========================================================
+	public synchronized int update() throws IOException {
+		return update(ForkJoinPool.commonPool());
+	}
+
+	public synchronized int update(ExecutorService pool) throws IOException {
+		final Map<String, BasicFileAttributes> found = new LinkedHashMap<String, BasicFileAttributes>();
+		final Path base = root.toPath();
+		final Path own = sidecar.getAbsoluteFile().toPath().normalize();
+		Files.walkFileTree(base, new SimpleFileVisitor<Path>() {
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (!attrs.isRegularFile()) return FileVisitResult.CONTINUE;
+				Path abs = file.toAbsolutePath().normalize();
+				if (abs.equals(own) || abs.toString().equals(own+".tmp")) return FileVisitResult.CONTINUE;
+				found.put(base.relativize(file).toString().replace(File.separatorChar, '/'), attrs);
+				return FileVisitResult.CONTINUE;
+			}
+
+			public FileVisitResult visitFileFailed(Path file, IOException e) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+
+		int removed = 0;
+		for (Iterator<String> it = records.keySet().iterator(); it.hasNext(); ) {
+			if (!found.containsKey(it.next())) {
+				it.remove();
+				removed++;
+			}
+		}
+
+		final List<String> changed = new ArrayList<String>();
+		List<Callable<String[]>> tasks = new ArrayList<Callable<String[]>>();
+		for (Map.Entry<String, BasicFileAttributes> e : found.entrySet()) {
+			Record r = records.get(e.getKey());
+			long modified = e.getValue().lastModifiedTime().toMillis();
+			if (r!=null && r.size==e.getValue().size() && r.modified==modified) continue;
+			final String name = e.getKey();
+			changed.add(name);
+			tasks.add(new Callable<String[]>() {
+				public String[] call() {
+					return attributes(new File(root, name).getPath());
+				}
+			});
+		}
+
+		if (!tasks.isEmpty()) {
+			int k = 0;
+			for (String[] values : DcmSeries.all(pool, tasks, "Archive index update interrupted: " + root)) {
+				String name = changed.get(k++);
+				BasicFileAttributes attrs = found.get(name);
+				int[] keys = null;
+				if (values!=null) {
+					keys = new int[KEYS];
+					for (int i=0; i<KEYS; i++) keys[i] = id(values[i]);
+				}
+				records.put(name, new Record(attrs.size(), attrs.lastModifiedTime().toMillis(), keys));
+			}
+		}
+		if (!tasks.isEmpty() || removed>0 || !sidecar.isFile()) save();
+		return tasks.size();
+	}
+
+	//atributos de un archivo en una lectura de la cabecera; null si no es DICOM
+	private static String[] attributes(String path) {
+		if (!isDicom(path)) return null;
+		final String[] values = new String[KEYS];
+		try {
+			DcmHeadex headex = new DcmHeadex(path);
+			headex.accept(new DcmVisitor() {
+				public int element(int tag, int vr, int length, ByteBuffer value, int depth) {
+					if (depth==0) {
+						//los tags del nivel superior van en orden: tras la referencia al plan ya esta todo
+						if (Integer.compareUnsigned(tag, REFERENCED_RT_PLAN_SEQUENCE)>0) return STOP;
+						if (tag==REFERENCED_RT_PLAN_SEQUENCE) return DESCEND;
+						for (int i=0; i<TAGS.length; i++) {
+							if (tag==TAGS[i] && value!=null) values[i] = text(value);
+						}
+						return SKIP;
+					}
+					if (tag==REFERENCED_SOP_INSTANCE && value!=null && values[REFERENCED_PLAN]==null)
+						values[REFERENCED_PLAN] = text(value);
+					return DESCEND;
+				}
+			});
+		} catch (IOException | RuntimeException e) {
+			//se guarda lo leido hasta el error
+		}
+		return values;
+	}
+
+	//preambulo DICM, o datasets sin preambulo con extension .dcm
+	static boolean isDicom(String path) {
+		if (path.toLowerCase().endsWith(".dcm")) return true;
+		try (InputStream in = new FileInputStream(path)) {
+			byte[] b = new byte[132];
+			if (in.readNBytes(b, 0, 132)<132) return false;
+			return b[128]=='D' && b[129]=='I' && b[130]=='C' && b[131]=='M';
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static String text(ByteBuffer value) {
+		int end = value.limit();
+		int start = value.position();
+		while (end>start && (value.get(end-1)==' ' || value.get(end-1)==0)) end--;
+		while (start<end && value.get(start)==' ') start++;
+		if (start==end) return null;
+		char[] c = new char[end-start];
+		for (int i=0; i<c.length; i++) c[i] = (char)(value.get(start+i)&0xFF);
+		return new String(c);
+	}
+
+	private int id(String s) {
+		if (s==null) return -1;
+		Integer i = ids.get(s);
+		if (i==null) {
+			i = strings.size();
+			strings.add(s);
+			ids.put(s, i);
+		}
+		return i;
+	}
+
+	//formato: MAGIC VERSION, textos (numero y UTF), registros (numero y ruta, tamano, fecha,
+	//numero de claves y claves); se escribe aparte y se renombra para no dejarlo a medias
+	private void save() throws IOException {
+		//solo los textos en uso
+		List<String> used = new ArrayList<String>();
+		int[] remap = new int[strings.size()];
+		Arrays.fill(remap, -1);
+		for (Record r : records.values()) {
+			if (r.keys==null) continue;
+			for (int k : r.keys) {
+				if (k>=0 && remap[k]<0) {
+					remap[k] = used.size();
+					used.add(strings.get(k));
+				}
+			}
+		}
+		File tmp = new File(sidecar.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1<<16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(used.size());
+			for (String s : used) out.writeUTF(s);
+			out.writeInt(records.size());
+			for (Map.Entry<String, Record> e : records.entrySet()) {
+				Record r = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(r.size);
+				out.writeLong(r.modified);
+				if (r.keys==null) {
+					out.writeByte(0);
+					continue;
+				}
+				out.writeByte(KEYS);
+				for (int k : r.keys) out.writeInt(k<0 ? -1 : remap[k]);
+			}
+		}
+		Files.move(tmp.toPath(), sidecar.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void load() throws IOException {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(sidecar), 1<<16))) {
+			if (in.readInt()!=MAGIC || in.readInt()!=VERSION) throw new IOException("Not a MUKA archive index: " + sidecar);
+			int n = in.readInt();
+			for (int i=0; i<n; i++) id(in.readUTF());
+			if (strings.size()!=n) throw new IOException("Duplicated text in archive index: " + sidecar);
+			int count = in.readInt();
+			for (int i=0; i<count; i++) {
+				String name = in.readUTF();
+				long size = in.readLong();
+				long modified = in.readLong();
+				int m = in.readUnsignedByte();
+				int[] keys = null;
+				if (m>0) {
+					if (m!=KEYS) throw new IOException("Bad archive index record: " + sidecar);
+					keys = new int[KEYS];
+					for (int k=0; k<KEYS; k++) {
+						keys[k] = in.readInt();
+						if (keys[k]<-1 || keys[k]>=n) throw new IOException("Bad archive index record: " + sidecar);
+					}
+				}
+				records.put(name, new Record(size, modified, keys));
+			}
+		}
+	}
+
+	//Archivos con un atributo (p.e. PATIENT_ID, STUDY) igual al dado; con dos pares, los que
+	//cumplen ambos (p.e. STUDY y MODALITY "RTPLAN")
+	//===========================================================
+	public synchronized List<Entry> find(int key, String value) {
+		return find(key, value, -1, null);
+	}
+
+	public synchronized List<Entry> find(int key, String value, int key2, String value2) {
+		List<Entry> result = new ArrayList<Entry>();
+		Integer a = ids.get(value);
+		if (a==null) return result;
+		Integer b = key2<0 ? null : ids.get(value2);
+		if (key2>=0 && b==null) return result;
+		for (Map.Entry<String, Record> e : records.entrySet()) {
+			int[] keys = e.getValue().keys;
+			if (keys==null || keys[key]!=a || (b!=null && keys[key2]!=b)) continue;
+			result.add(entry(e.getKey(), e.getValue()));
+		}
+		return result;
+	}
+
+	//archivo de una instancia SOP, null si no esta
+	public Entry instance(String sopInstanceUid) {
+		List<Entry> found = find(SOP_INSTANCE, sopInstanceUid);
+		return found.isEmpty() ? null : found.get(0);
+	}
+
+	//archivos DICOM indexados
+	public synchronized int size() {
+		int n = 0;
+		for (Record r : records.values()) {
+			if (r.keys!=null) n++;
+		}
+		return n;
+	}
+
+	public File root() {
+		return root;
+	}
+
+	//Atributos de un archivo suelto, sin indice (una lectura de la cabecera); null si no es DICOM
+	//===========================================================
+	public static Entry read(String path) {
+		String[] values = attributes(path);
+		if (values==null) return null;
+		return new Entry(path, new File(path).lastModified(), values);
+	}
+
+	private Entry entry(String name, Record r) {
+		String[] values = new String[KEYS];
+		for (int i=0; i<KEYS; i++) values[i] = r.keys[i]<0 ? null : strings.get(r.keys[i]);
+		return new Entry(new File(root, name).getPath(), r.modified, values);
+	}
+
+	//Atributos de un archivo del indice
+	public static final class Entry {
+		private final String path;
+		private final long modified;
+		private final String[] values;
+
+		Entry(String path, long modified, String[] values) {
+			this.path = path;
+			this.modified = modified;
+			this.values = values;
+		}
+
+		public String path() {
+			return path;
+		}
+
+		public long modified() {
+			return modified;
+		}
+
+		//SOP_CLASS ... REFERENCED_PLAN; null si el archivo no lo tiene
+		public String value(int key) {
+			return values[key];
+		}
+
+		public String sopClass() {
+			return values[SOP_CLASS];
+		}
+
+		public String sopInstance() {
+			return values[SOP_INSTANCE];
+		}
+
+		public String study() {
+			return values[STUDY];
+		}
+
+		public String series() {
+			return values[SERIES];
+		}
+
+		public String frameOfReference() {
+			return values[FRAME_OF_REFERENCE];
+		}
+
+		public String patientId() {
+			return values[PATIENT_ID];
+		}
+
+		public String modality() {
+			return values[MODALITY];
+		}
+
+		public String referencedPlan() {
+			return values[REFERENCED_PLAN];
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package dcmwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import jdk.jfr.EventType;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public class DcmCache {
+
+	//cache comun del proceso (64 MB)
+	private static final DcmCache SHARED = new DcmCache(64L<<20);
+
+	//el evento JFR solo se crea con una grabacion que lo tenga activo
+	private static final EventType CACHE_EVENT = EventType.getEventType(DcmCacheEvent.class);
+
+	private static final class Entry {
+		final long size;
+		final long modified;
+		final DcmIndex index;
+		final long bytes;
+
+		Entry(long size, long modified, DcmIndex index) {
+			this.size = size;
+			this.modified = modified;
+			this.index = index;
+			this.bytes = index.estimatedBytes();
+		}
+	}
+
+	//lectura en curso de un archivo: quien pide el mismo archivo sin cambios espera a esta
+	//en vez de leerlo otra vez
+	private static final class Loading {
+		final long size;
+		final long modified;
+		final FutureTask<DcmIndex> task;
+
+		Loading(long size, long modified, FutureTask<DcmIndex> task) {
+			this.size = size;
+			this.modified = modified;
+			this.task = task;
+		}
+	}
+
+	private final long maxBytes;
+
+	//por ruta canonica, en orden de acceso: el primero es el menos usado
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private final Map<String, Loading> loading = new HashMap<String, Loading>();
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	public DcmCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	public static DcmCache shared() {
+		return SHARED;
+	}
+
+	//Cabecera del archivo en modo parse-once: de la cache si no ha cambiado (tamano y fecha),
+	//si no se lee y se guarda. El pixel data no se guarda nunca
+	//===========================================================
+	public DcmHeadex get(String path) throws IOException {
+		return new DcmHeadex(path, lookup(path));
+	}
+
+	//lo mismo como dataset inmutable, para compartir entre hilos
+	public DcmDataset dataset(String path) throws IOException {
+		return new DcmDataset(path, lookup(path));
+	}
+
+	//Los fallos concurrentes del mismo archivo hacen una sola lectura: el primero lee y los demas
+	//esperan su resultado y cuentan como aciertos
+	private DcmIndex lookup(final String path) throws IOException {
+		File file = new File(path);
+		String key = file.getCanonicalPath();
+		long size = file.length();
+		long modified = file.lastModified();
+		DcmCacheEvent event = CACHE_EVENT.isEnabled() ? new DcmCacheEvent() : null;
+		if (event!=null) event.begin();
+		boolean metrics = DcmMetrics.isEnabled();
+		long start = metrics ? System.nanoTime() : 0;
+
+		Loading l;
+		boolean reader = false;
+		synchronized (this) {
+			Entry e = entries.get(key);
+			if (e!=null && e.size==size && e.modified==modified) {
+				hits++;
+				if (metrics) DcmMetrics.cache(true, System.nanoTime()-start);
+				commit(event, key, true);
+				return e.index;
+			}
+			l = loading.get(key);
+			if (l!=null && l.size==size && l.modified==modified) {
+				hits++;
+			} else {
+				l = new Loading(size, modified, new FutureTask<DcmIndex>(new Callable<DcmIndex>() {
+					public DcmIndex call() throws IOException {
+						return load(path);
+					}
+				}));
+				loading.put(key, l);
+				reader = true;
+				misses++;
+			}
+		}
+
+		//la lectura se hace fuera del bloqueo
+		if (reader) l.task.run();
+		DcmIndex index = null;
+		try {
+			index = result(l.task, path);
+		} finally {
+			if (reader) {
+				synchronized (this) {
+					if (loading.get(key)==l) loading.remove(key);
+					if (index!=null) {
+						Entry e = new Entry(size, modified, index);
+						Entry old = entries.put(key, e);
+						if (old!=null) bytes -= old.bytes;
+						bytes += e.bytes;
+						evict();
+					}
+				}
+			}
+			if (metrics) DcmMetrics.cache(!reader, System.nanoTime()-start);
+		}
+		commit(event, key, !reader);
+		return index;
+	}
+
+	private static DcmIndex result(FutureTask<DcmIndex> task, String path) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Header read interrupted: " + path, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+			if (cause instanceof Error) throw (Error) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	private static void commit(DcmCacheEvent event, String key, boolean hit) {
+		if (event==null) return;
+		event.end();
+		if (event.shouldCommit()) {
+			event.path = key;
+			event.hit = hit;
+			event.commit();
+		}
+	}
+
+	//indexa el archivo mapeado y se queda con una copia de la cabecera (hasta el pixel data)
+	static DcmIndex load(String path) throws IOException {
+		DcmHeadex headex = new DcmHeadex(path, true);
+		headex.setMapped(true);
+		DcmIndex index = headex.index();
+		ByteBuffer src = index.data().duplicate();
+		int end = Math.min(index.headerEnd(), src.capacity());
+		src.position(0);
+		src.limit(end);
+		ByteBuffer header = ByteBuffer.allocate(end);
+		header.put(src);
+		header.flip();
+		index.detach(header);
+		return index;
+	}
+
+	//quita los menos usados hasta quedar dentro del limite
+	private void evict() {
+		Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+		while (bytes>maxBytes && it.hasNext()) {
+			bytes -= it.next().getValue().bytes;
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void remove(String path) throws IOException {
+		Entry old = entries.remove(new File(path).getCanonicalPath());
+		if (old!=null) bytes -= old.bytes;
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public long maxBytes() {
+		return maxBytes;
+	}
+
+	//bytes estimados en uso
+	public synchronized long bytes() {
+		return bytes;
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized long evictions() {
+		return evictions;
+	}
+}
@@ -0,0 +1,140 @@
+package dcmwork;
+
+import java.io.IOException;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class DcmDataset {
+
+	//inmutable: el indice y la copia de la cabecera no cambian despues de read(),
+	//cada consulta usa su propio lector, asi que se puede compartir entre hilos
+	private final String path;
+	private final DcmIndex index;
+
+	DcmDataset(String path, DcmIndex index) {
+		this.path = path;
+		this.index = index;
+	}
+
+	//lee la cabecera una sola vez (sin el pixel data); despues no se vuelve a abrir el archivo
+	public static DcmDataset read(String path) throws IOException {
+		return new DcmDataset(path, DcmCache.load(path));
+	}
+
+	private DcmHeadex reader() {
+		return new DcmHeadex(path, index);
+	}
+
+	public String path() {
+		return path;
+	}
+
+	public DcmIndex index() {
+		return index;
+	}
+
+	public boolean contains(int tag) {
+		return index.find(tag, 0)>=0;
+	}
+
+	public String value(int tag) throws IOException {
+		return reader().value(tag);
+	}
+
+	public String value(int tag, int iex) throws IOException {
+		return reader().value(tag, iex);
+	}
+
+	public String[] values(int... tags) throws IOException {
+		return reader().values(tags);
+	}
+
+	public double[] doubles(int tag) throws IOException {
+		return reader().doubles(tag);
+	}
+
+	public double[] doubles(int tag, int iex) throws IOException {
+		return reader().doubles(tag, iex);
+	}
+
+	public float[] floats(int tag) throws IOException {
+		return reader().floats(tag);
+	}
+
+	public float[] floats(int tag, int iex) throws IOException {
+		return reader().floats(tag, iex);
+	}
+
+	public int[] ints(int tag) throws IOException {
+		return reader().ints(tag);
+	}
+
+	public int[] ints(int tag, int iex) throws IOException {
+		return reader().ints(tag, iex);
+	}
+
+	//los mismos accesos con el tag como texto "GGGGEEEE"
+	public boolean contains(String tag) {
+		return contains(DcmHeadex.parseTag(tag));
+	}
+
+	public String value(String tag) throws IOException {
+		return value(DcmHeadex.parseTag(tag));
+	}
+
+	public String value(String tag, int iex) throws IOException {
+		return value(DcmHeadex.parseTag(tag), iex);
+	}
+
+	public String[] values(String... tags) throws IOException {
+		return reader().values(tags);
+	}
+
+	public double[] doubles(String tag) throws IOException {
+		return doubles(DcmHeadex.parseTag(tag));
+	}
+
+	public float[] floats(String tag) throws IOException {
+		return floats(DcmHeadex.parseTag(tag));
+	}
+
+	public int[] ints(String tag) throws IOException {
+		return ints(DcmHeadex.parseTag(tag));
+	}
+
+	//pixel data mapeado desde el archivo (la cabecera guardada no lo incluye)
+	public DcmPixels pixels() throws IOException {
+		return reader().pixels();
+	}
+
+	//arbol de secuencias para el hilo que lo pide (cada llamada crea el suyo)
+	public DcmItem root() throws IOException {
+		return reader().dataset();
+	}
+}
@@ -0,0 +1,165 @@
+package dcmwork;
+
+import java.util.Arrays;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+final class DcmDictionary {
+
+	//Value Representation (dos caracteres en un int, como en DcmHeadex)
+	private static final int AE=0x4145, AS=0x4153, AT=0x4154, CS=0x4353, DA=0x4441, DS=0x4453,
+		FD=0x4644, FL=0x464C, IS=0x4953, LO=0x4C4F, LT=0x4C54, PN=0x504E, SH=0x5348, SQ=0x5351, ST=0x5354,
+		TM=0x544D, UI=0x5549, UL=0x554C, US=0x5553, OB=0x4F42, OW=0x4F57;
+
+	//tag y VR por parejas, ordenado por tag: meta, paciente/estudio/serie, CT, imagen,
+	//RT Image, RT Dose, RT Structure Set, RT Plan, referencias RT y aprobacion
+	private static final int[] TABLE = {
+		0x00020000, UL, 0x00020001, OB, 0x00020002, UI, 0x00020003, UI,
+		0x00020010, UI, 0x00020012, UI, 0x00020013, SH, 0x00020016, AE,
+
+		0x00080005, CS, 0x00080008, CS, 0x00080012, DA, 0x00080013, TM,
+		0x00080014, UI, 0x00080016, UI, 0x00080018, UI, 0x00080020, DA,
+		0x00080021, DA, 0x00080022, DA, 0x00080023, DA, 0x00080030, TM,
+		0x00080031, TM, 0x00080032, TM, 0x00080033, TM, 0x00080050, SH,
+		0x00080060, CS, 0x00080064, CS, 0x00080070, LO, 0x00080080, LO,
+		0x00080081, ST, 0x00080090, PN, 0x00081010, SH, 0x00081030, LO,
+		0x0008103E, LO, 0x00081040, LO, 0x00081048, PN, 0x00081070, PN,
+		0x00081090, LO, 0x00081110, SQ, 0x00081115, SQ, 0x00081140, SQ,
+		0x00081150, UI, 0x00081155, UI, 0x00081160, IS, 0x00082112, SQ,
+
+		0x00100010, PN, 0x00100020, LO, 0x00100030, DA, 0x00100040, CS,
+		0x00101010, AS, 0x00101020, DS, 0x00101030, DS,
+
+		0x00180015, CS, 0x00180050, DS, 0x00180060, DS, 0x00180088, DS,
+		0x00180090, DS, 0x00181000, LO, 0x00181020, LO, 0x00181030, LO,
+		0x00181100, DS, 0x00181110, DS, 0x00181111, DS, 0x00181120, DS,
+		0x00181130, DS, 0x00181140, CS, 0x00181150, IS, 0x00181151, IS,
+		0x00181152, IS, 0x00181160, SH, 0x00181170, IS, 0x00181190, DS,
+		0x00181210, SH, 0x00185100, CS,
+
+		0x0020000D, UI, 0x0020000E, UI, 0x00200010, SH, 0x00200011, IS,
+		0x00200012, IS, 0x00200013, IS, 0x00200020, CS, 0x00200032, DS,
+		0x00200037, DS, 0x00200052, UI, 0x00200060, CS, 0x00201040, LO,
+		0x00201041, DS, 0x00204000, LT,
+
+		0x00280002, US, 0x00280004, CS, 0x00280006, US, 0x00280008, IS,
+		0x00280009, AT, 0x00280010, US, 0x00280011, US, 0x00280030, DS,
+		0x00280034, IS, 0x00280100, US, 0x00280101, US, 0x00280102, US,
+		0x00280103, US, 0x00280106, US, 0x00280107, US, 0x00280120, US,
+		0x00281050, DS, 0x00281051, DS, 0x00281052, DS, 0x00281053, DS,
+		0x00281054, LO, 0x00282110, CS,
+
+		0x30020002, SH, 0x3002000A, CS, 0x3002000C, CS, 0x3002000D, DS,
+		0x3002000E, DS, 0x30020011, DS, 0x30020012, DS, 0x30020020, SH,
+		0x30020022, DS, 0x30020024, DS, 0x30020026, DS,
+
+		0x30040001, CS, 0x30040002, CS, 0x30040004, CS, 0x30040006, LO,
+		0x30040008, DS, 0x3004000A, CS, 0x3004000C, DS, 0x3004000E, DS,
+		0x30040010, SQ, 0x30040012, DS, 0x30040040, DS, 0x30040042, DS,
+		0x30040050, SQ, 0x30040052, DS, 0x30040054, CS, 0x30040056, IS,
+		0x30040058, DS, 0x30040060, SQ, 0x30040062, CS, 0x30040070, DS,
+		0x30040072, DS, 0x30040074, DS,
+
+		0x30060002, SH, 0x30060004, LO, 0x30060006, ST, 0x30060008, DA,
+		0x30060009, TM, 0x30060010, SQ, 0x30060012, SQ, 0x30060014, SQ,
+		0x30060016, SQ, 0x30060020, SQ, 0x30060022, IS, 0x30060024, UI,
+		0x30060026, LO, 0x30060028, ST, 0x3006002A, IS, 0x3006002C, DS,
+		0x30060036, CS, 0x30060039, SQ, 0x30060040, SQ, 0x30060042, CS,
+		0x30060044, DS, 0x30060045, DS, 0x30060046, IS, 0x30060048, IS,
+		0x30060049, IS, 0x30060050, DS, 0x30060080, SQ, 0x30060082, IS, 0x30060084, IS,
+		0x30060085, SH, 0x300600A4, CS, 0x300600A6, PN, 0x300600B0, SQ,
+		0x300600B2, CS, 0x300600B4, DS, 0x300600C0, SQ,
+
+		0x300A0002, SH, 0x300A0003, LO, 0x300A0004, ST, 0x300A0006, DA,
+		0x300A0007, TM, 0x300A000A, CS, 0x300A000C, CS, 0x300A0010, SQ,
+		0x300A0012, IS, 0x300A0013, UI, 0x300A0014, CS, 0x300A0016, LO,
+		0x300A0018, DS, 0x300A001A, DS, 0x300A0020, CS, 0x300A0021, DS,
+		0x300A0022, DS, 0x300A0023, DS, 0x300A0025, DS, 0x300A0026, DS,
+		0x300A0027, DS, 0x300A0028, DS, 0x300A002A, DS, 0x300A002B, DS,
+		0x300A002C, DS, 0x300A002D, DS, 0x300A0040, SQ, 0x300A0042, IS,
+		0x300A0070, SQ, 0x300A0071, IS, 0x300A0078, IS, 0x300A0079, IS,
+		0x300A007A, IS, 0x300A007B, LT, 0x300A0080, IS, 0x300A0082, DS,
+		0x300A0083, UI, 0x300A0084, DS, 0x300A0086, DS, 0x300A0088, FL,
+		0x300A0089, FL, 0x300A008A, FL, 0x300A008B, CS, 0x300A008C, SQ,
+		0x300A008D, FL, 0x300A008E, FL, 0x300A008F, FL, 0x300A0090, CS,
+		0x300A0091, DS, 0x300A0092, CS, 0x300A00A0, IS, 0x300A00B0, SQ,
+		0x300A00B2, SH, 0x300A00B3, CS, 0x300A00B4, DS, 0x300A00B6, SQ,
+		0x300A00B8, CS, 0x300A00BA, DS, 0x300A00BC, IS, 0x300A00BE, DS,
+		0x300A00C0, IS, 0x300A00C2, LO, 0x300A00C3, ST, 0x300A00C4, CS,
+		0x300A00C6, CS, 0x300A00C7, CS, 0x300A00C8, IS, 0x300A00CA, SQ,
+		0x300A00CC, LO, 0x300A00CE, CS, 0x300A00D0, IS, 0x300A00D1, SQ,
+		0x300A00D2, IS, 0x300A00D3, CS, 0x300A00D4, SH, 0x300A00D5, IS,
+		0x300A00D6, DS, 0x300A00D8, DS, 0x300A00DA, DS, 0x300A00E0, IS, 0x300A00E1, SH, 0x300A00E3, SQ,
+		0x300A00E4, IS, 0x300A00ED, IS, 0x300A00F0, IS, 0x300A00F2, DS,
+		0x300A00F4, SQ, 0x300A00F5, SH, 0x300A00F8, CS, 0x300A00FA, CS,
+		0x300A00FC, IS, 0x300A00FE, LO, 0x300A0100, DS, 0x300A0102, DS,
+		0x300A0104, IS, 0x300A0106, DS, 0x300A0107, SQ, 0x300A0108, SH,
+		0x300A0109, CS, 0x300A010A, LO, 0x300A010E, DS, 0x300A0110, IS,
+		0x300A0111, SQ, 0x300A0112, IS, 0x300A0114, DS, 0x300A0115, DS,
+		0x300A0116, SQ, 0x300A0118, CS, 0x300A011A, SQ, 0x300A011C, DS,
+		0x300A011E, DS, 0x300A011F, CS, 0x300A0120, DS, 0x300A0121, CS,
+		0x300A0122, DS, 0x300A0123, CS, 0x300A0124, DS, 0x300A0125, DS,
+		0x300A0126, CS, 0x300A0128, DS, 0x300A0129, DS, 0x300A012A, DS,
+		0x300A012C, DS, 0x300A012E, DS, 0x300A0130, DS, 0x300A0134, DS,
+		0x300A0140, FL, 0x300A0142, CS, 0x300A0144, FL, 0x300A0146, CS,
+		0x300A0148, FL, 0x300A014A, FL, 0x300A014C, CS, 0x300A0180, SQ, 0x300A0182, IS,
+
+		0x300C0002, SQ, 0x300C0004, SQ, 0x300C0006, IS, 0x300C0020, SQ,
+		0x300C0022, IS, 0x300C0040, SQ, 0x300C0042, SQ, 0x300C0050, SQ,
+		0x300C0051, IS, 0x300C0060, SQ, 0x300C006A, IS, 0x300C0080, SQ,
+		0x300C00A0, IS, 0x300C00B0, SQ, 0x300C00C0, IS,
+
+		0x300E0002, CS, 0x300E0004, DA, 0x300E0005, TM, 0x300E0008, PN,
+
+		0x7FE00010, OW,
+	};
+
+	//tags ordenados y VR de cada uno (busqueda binaria, sin objetos por entrada)
+	private static final int[] TAGS = new int[TABLE.length/2];
+	private static final char[] VRS = new char[TABLE.length/2];
+
+	static {
+		for (int i=0; i<TAGS.length; i++) {
+			TAGS[i] = TABLE[2*i];
+			VRS[i] = (char)TABLE[2*i+1];
+			if (i>0 && TAGS[i]<=TAGS[i-1]) throw new ExceptionInInitializerError("DcmDictionary not sorted at "+Integer.toHexString(TAGS[i]));
+		}
+	}
+
+	private DcmDictionary() {
+	}
+
+	//VR del tag para los archivos en VR implicito; def si no esta (privados, items, desconocidos)
+	static int vr(int tag, int def) {
+		if ((tag>>>16 & 1)!=0) return def;
+		if ((tag&0xFFFF)==0 && (tag>>>16)!=0xFFFE) return UL; //group length
+		int i = Arrays.binarySearch(TAGS, tag);
+		return i<0 ? def : VRS[i];
+	}
+}
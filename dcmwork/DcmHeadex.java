@@ -1,6 +1,18 @@
 package dcmwork;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import jdk.jfr.EventType;
 
 /**
  * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
@@ -32,13 +44,10 @@ import java.io.*;
 
 public class DcmHeadex {
 	
-	//DICOM parameters for lists of tags
-	private static final int MAXPOINT = 800; //initial dimension of String[] in value(tagt, i, tagi, tagf)
-	private static final int MAXNEWSIZE = 750; //maximun ndimension of String[] in value(tagt, i, tagi, tagf)
-	
 	//DICOM "keys"
     private static final int TRANSFER_SYNTAX_UID = 0x00020010;
-    private static final int PIXEL_DATA = 0x7FE00000;
+    private static final int PIXEL_DATA_TAG = 0x7FE00010;
+    private static final String DEFLATED = "1.2.840.10008.1.2.1.99";
 
     //Value Representation dictionary
     private static final int AE=0x4145, AS=0x4153, AT=0x4154, CS=0x4353, DA=0x4441, DS=0x4453, DT=0x4454,
@@ -52,8 +61,13 @@ public class DcmHeadex {
     
     protected static final int ID_OFFSET = 128;  //offset hasta "DICM"
     private static final String DICM = "DICM";
+
+    //el evento JFR de cada recorrido solo se crea con una grabacion que lo tenga activo
+    private static final EventType PARSE_EVENT = EventType.getEventType(DcmParseEvent.class);
     
     protected BufferedInputStream f;  
+    protected ByteBuffer buffer; //lector alternativo sobre el archivo mapeado en memoria, null si se lee de f
+    protected boolean mapped = false;
     protected int location = 0; 
     private boolean littleEndian = true;
     
@@ -62,22 +76,61 @@ public class DcmHeadex {
     private static final int IMPLICIT_VR = 0x2D2D; // '--' 
     protected boolean oddLocations; 
     private boolean endfile = false;
+    private boolean undefinedLength = false;
     protected boolean bigEndian = false;
     private char[] vrchar = new char[2];
+    private byte[] scratch = new byte[64]; //bytes del valor para los accesores numericos
+
+    //deflate: el dataset tras el grupo 0002 va comprimido
+    private int metaEnd = -1;       //final del grupo 0002 segun (0002,0000)
+    private int inflateAt = 0;      //posicion desde la que se descomprime, 0 si no es deflate
+    private boolean inflated;       //el lector ya esta descomprimiendo
+    private Inflater inflater;      //del flujo descomprimido, se libera en close()
+
+    //estado del elemento actual durante walk()
+    private int valueOffset;        //posicion del valor en el archivo
+    private boolean opening;        //abre una secuencia o item
+    private String transferSyntax;  //ultimo Transfer Syntax UID leido
+    private int visited;            //elementos del recorrido (metricas)
+    private int notRead;            //elementos cuyo valor se ha saltado (metricas)
+
+    //traza opcional de cada elemento recorrido (sustituye a temp/dicombit.txt)
+    private DcmTrace trace;
+    private static final int MAX_TRACE_VALUE = 1<<16; //valores mas largos van vacios a la traza
 
     public static final char[] hexDigits = {'0','1','2','3','4','5','6','7','8','9','A','B','C','D','E','F'};
 
+    //modo de un solo escaneo: el primer acceso construye el indice y el resto de consultas se resuelven con el
+    protected boolean parseOnce = false;
+    private DcmIndex index;
+
     //constructor
     public DcmHeadex(String arg)  {
     	this.path = arg;
     }
 
+    public DcmHeadex(String arg, boolean parseOnce)  {
+    	this.path = arg;
+    	this.parseOnce = parseOnce;
+    }
+
+    	//cabecera ya indexada (DcmCache)
+    DcmHeadex(String arg, DcmIndex index)  {
+    	this.path = arg;
+    	this.parseOnce = true;
+    	this.index = index;
+    }
+
    
     //getters a nivel de byte
     
     	//1 byte
     int getByte() throws IOException {
-        int b = f.read();
+        int b;
+        if (buffer!=null)
+            b = buffer.hasRemaining() ? buffer.get()&0xFF : -1;
+        else
+            b = f.read();
         if (b ==-1) {
         	if(debug)System.out.println("end file reached without target");
         	endfile = true;
@@ -87,6 +140,10 @@ public class DcmHeadex {
     }
     	//2 bytes ordenados
     int getShort() throws IOException {
+        if (buffer!=null && buffer.remaining()>=2) {
+            location += 2;
+            return buffer.getShort()&0xFFFF;
+        }
         int b0 = getByte();
         int b1 = getByte();
         if (littleEndian)
@@ -96,6 +153,10 @@ public class DcmHeadex {
     }
     	//4 bytes ordenados
     int getInt() throws IOException {
+        if (buffer!=null && buffer.remaining()>=4) {
+            location += 4;
+            return buffer.getInt();
+        }
         int b0 = getByte();
         int b1 = getByte();
         int b2 = getByte();
@@ -107,6 +168,10 @@ public class DcmHeadex {
     }
     	//4 bytes ordenados como float
     float getFloat() throws IOException {
+		if (buffer!=null && buffer.remaining()>=4) {
+			location += 4;
+			return buffer.getFloat();
+		}
 		int b0 = getByte();
 		int b1 = getByte();
 		int b2 = getByte();
@@ -128,6 +193,10 @@ public class DcmHeadex {
     
     	//8 bytes ordenados como double
     double getDouble() throws IOException {
+		if (buffer!=null && buffer.remaining()>=8) {
+			location += 8;
+			return buffer.getDouble();
+		}
 		int b0 = getByte();
 		int b1 = getByte();
 		int b2 = getByte();
@@ -168,13 +237,13 @@ public class DcmHeadex {
 				if (elementLength==8)
 					value = Double.toString(getDouble());
 				else
-					for (int i=0; i<elementLength; i++) getByte();
+					skip(elementLength);
 				break;
 			case FL:
 				if (elementLength==4)
 					value = Float.toString(getFloat());
 				else
-					for (int i=0; i<elementLength; i++) getByte();
+					skip(elementLength);
 				break;
 				//case UT:
 				//throw new IOException("DcmHeadex not read UT (unlimited text) DICOMs");
@@ -242,11 +311,19 @@ public class DcmHeadex {
 					endfile = true;
 					break;
 				}
+				if (buffer!=null && length>buffer.remaining()) {
+					skip(length);
+					break;
+				}
 				byte[] buf = new byte[length];
 				int pos = 0;
-				while (pos<length) {
-					int count = f.read(buf, pos, length-pos);
-					pos += count;
+				if (buffer!=null) {
+					buffer.get(buf);
+				} else {
+					while (pos<length) {
+						int count = f.read(buf, pos, length-pos);
+						pos += count;
+					}
 				}
 				value = new String(buf);
 				location += length;
@@ -311,7 +388,7 @@ public class DcmHeadex {
     int getNextTagLen() throws IOException {
         int groupWord = getShort();
         if (groupWord==0x0800 && bigEndian) {
-            littleEndian = false;
+            setLittleEndian(false);
             groupWord = 0x0008;
         }
         if(debug){
@@ -321,6 +398,8 @@ public class DcmHeadex {
         int elementWord = getShort();
         int tag = groupWord<<16 | elementWord;
         elementLength = getLength();
+        //en VR implicito el VR sale del diccionario (si no lo tiene se queda IMPLICIT_VR)
+        if (vr==IMPLICIT_VR) vr = DcmDictionary.vr(tag, IMPLICIT_VR);
              
         // hack needed to read some GE files
         // The element length must be even!
@@ -328,121 +407,629 @@ public class DcmHeadex {
         
         // "Undefined" element length.
         // This is a sort of bracket that encloses a sequence of elements.
-        if (elementLength==-1)
+        undefinedLength = (elementLength==-1);
+        if (undefinedLength)
             elementLength = 0;
-        
+
         return tag;
     }
-    
-    public String getpath(){
-    	return path;
+
+    	//salta n bytes sin leerlos
+    void skip(long n) throws IOException {
+        if (n < 0) {
+            //longitud imposible: no se puede seguir
+            endfile = true;
+            return;
+        }
+        if (buffer!=null) {
+            int k = (int)Math.min(n, buffer.remaining());
+            buffer.position(buffer.position()+k);
+            location += k;
+            if (k<n) endfile = true;
+            return;
+        }
+        while (n > 0) {
+            long k = f.skip(n);
+            if (k <= 0) {
+                if (f.read() == -1) {
+                    endfile = true;
+                    return;
+                }
+                k = 1;
+            }
+            n -= k;
+            location += k;
+        }
     }
 
-    //Devuelve el valor de un tag unico
-    //===========================================================
-    public String value(String tagtar) throws IOException {
-        
-    	long skipCount;
-        location = 0; // location reset for each search 
+    	//abre el archivo y salta el preambulo si es DICOM Part 10
+    private void open() throws IOException {
+        location = 0; // location reset for each search
         endfile = false;
-        String cur = null;
-        
-        f = new BufferedInputStream(new FileInputStream(path));
-        
-        PrintWriter fo = new PrintWriter (new FileWriter("temp/dicombit.txt"));
-               
-        skipCount = (long)ID_OFFSET;
-        while (skipCount > 0) skipCount -= f.skip( skipCount );
-        location += ID_OFFSET;
+        bigEndian = false;
+        inflateAt = 0;
+        inflated = false;
+        metaEnd = -1;
+
+        if (mapped) {
+        	try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+        		buffer = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+        	}
+        } else {
+        	f = new BufferedInputStream(new FileInputStream(path));
+        }
+        setLittleEndian(true);
+
+        skip(ID_OFFSET);
         vr = IMPLICIT_VR;
-        
+
         if (!getString(4).equals(DICM)) {
         	if(debug) System.out.println("No dicom");
-            f.close();
-            f = new BufferedInputStream(new FileInputStream(path));
-            location = 0;    
+        	if (buffer!=null) {
+        		buffer.position(0);
+        	} else {
+        		f.close();
+        		f = new BufferedInputStream(new FileInputStream(path));
+        	}
+            location = 0;
+            endfile = false;
         } else {
             if(debug) System.out.println("DCM head recogniced");
+            metaEnd = peekMetaEnd();
         }
-        
-        //System.out.println(tagtar);
-        boolean decodingTags = true;
-        
-        //bucle de busqueda
-        while (decodingTags&&!endfile) {
-        	
-            int tag = getNextTagLen();
-            if ((location&1)!=0) // DICOM tags must be at even locations
-                oddLocations = true;
-            String s;
-            //tag que indica como leer (littleEndian, bigEndian)
-            if(tag==TRANSFER_SYNTAX_UID){
-                    s = getString(elementLength);
-                    if (s.indexOf("1.2.4")>-1||s.indexOf("1.2.5")>-1) {
-                        f.close();
-                        fo.close();
-                        String msg = "DCM Image compresed.\n \n";
-                        msg += "Transfer Syntax UID = "+s;
-                        throw new IOException(msg);
-                    }
-                    if (s.indexOf("1.2.840.10008.1.2.2")>=0)
-                        bigEndian = true;
-            }
-            //tag buscado
-            String dummy="";
-            byte[] usexception = new byte[2]; //parche para los VR_Implicit US
-            if(tagtar.equals(String.format("%08X", tag))){ 
-                                        
-                // elementLength was reset in previous call to getNextTag()
-            	cur = getString(elementLength);
-            	if(cur.length()!=0){
-            		char end = cur.charAt(cur.length()-1);
-            	    String buka = Integer.toHexString(end | 0x10000).substring(1);
-            	    if(buka.equals("0000")||buka.equals("0020")) cur = cur.substring(0, cur.length()-1);
-            	    dummy = cur;
-            	}
-            	//parche para VR_IMPLICIT valores US del TAG 0028xxxx
-                if ((vr==IMPLICIT_VR)&&(String.format("%08X", tag).startsWith("0028"))&&(elementLength==2)){
-                	usexception = cur.getBytes();
-                	int b0 = usexception[0];
-                	int b1 = 0;
-                	if(cur.getBytes().length==2) b1 = usexception[1];
-                	int bs = 0;
-                	if (littleEndian) bs = ((b1 << 8) + b0);
-                    else bs = ((b0 << 8) + b1);
-                	cur = String.valueOf(Integer.toString(bs));
-                	dummy = cur;
-                }
-                //fin parche
-            	
-            	
-            }else{
-            	if(!(tag==TRANSFER_SYNTAX_UID)){
-            		dummy = getString(elementLength);
-            	}
-            }
-            //tag de inicio de pixel data. Final
-            if (tag==PIXEL_DATA) endfile = true;
-
-            if(debug&&!endfile){
-            	            
-            	fo.print("long: ");
-            	fo.print(elementLength);
-            	fo.print(", tag: ");
-            	fo.print(String.format("%08X", tag));
-            	fo.print(", VR: ");
-            	String vrstring = new String(vrchar);
-            	if(vr==IMPLICIT_VR) fo.print("XX"); 
-            	else fo.print(vrstring);
-            	fo.print(", value: ");
-            	fo.println(dummy);
-            }
-            
-        } // while(decodingTags)
+    }
+
+    	//final del grupo 0002 segun su group length (0002,0000) sin avanzar la lectura, -1 si no lo tiene
+    private int peekMetaEnd() throws IOException {
+        byte[] b = new byte[12];
+        if (buffer!=null) {
+        	if (buffer.remaining()<12) return -1;
+        	buffer.get(buffer.position(), b);
+        } else {
+        	f.mark(12);
+        	int n = f.readNBytes(b, 0, 12);
+        	f.reset();
+        	if (n<12) return -1;
+        }
+        if (b[0]!=2 || b[1]!=0 || b[2]!=0 || b[3]!=0 || b[4]!='U' || b[5]!='L') return -1;
+        int len = (b[8]&0xFF) | (b[9]&0xFF)<<8 | (b[10]&0xFF)<<16 | (b[11]&0xFF)<<24;
+        return location+12+len;
+    }
+
+    	//a partir de la posicion actual el archivo esta comprimido con deflate (sin cabecera zlib).
+    	//En flujo se descomprime al leer; mapeado se descomprime entero al heap y se sigue como buffer
+    private void inflate() throws IOException {
+        inflated = true;
+        if (buffer==null) {
+        	inflater = new Inflater(true);
+        	f = new BufferedInputStream(new InflaterInputStream(f, inflater, 8192));
+        	return;
+        }
+        Inflater inf = new Inflater(true);
+        try {
+        	ByteBuffer in = buffer.duplicate();
+        	in.position(location);
+        	inf.setInput(in);
+        	byte[] out = new byte[Math.max(location+4*in.remaining(), 1024)];
+        	buffer.get(0, out, 0, location);
+        	int n = location;
+        	while (!inf.finished()) {
+        		if (n==out.length) out = Arrays.copyOf(out, 2*out.length);
+        		int k = inf.inflate(out, n, out.length-n);
+        		if (k==0 && (inf.needsInput() || inf.needsDictionary())) break;
+        		n += k;
+        	}
+        	buffer = ByteBuffer.wrap(Arrays.copyOf(out, n));
+        	buffer.position(location);
+        	setLittleEndian(littleEndian);
+        } catch (DataFormatException e) {
+        	throw new IOException("Deflated dataset corrupted: "+path, e);
+        } finally {
+        	inf.end();
+        }
+    }
+
+    	//tag del siguiente elemento sin avanzar la lectura
+    private int peekTag() throws IOException {
+        int b0, b1, b2, b3;
+        if (buffer!=null) {
+            int pos = buffer.position();
+            if (buffer.remaining()<4) return 0;
+            b0 = buffer.get(pos)&0xFF;
+            b1 = buffer.get(pos+1)&0xFF;
+            b2 = buffer.get(pos+2)&0xFF;
+            b3 = buffer.get(pos+3)&0xFF;
+        } else {
+            f.mark(4);
+            b0 = f.read();
+            b1 = f.read();
+            b2 = f.read();
+            b3 = f.read();
+            f.reset();
+        }
+        if (littleEndian)
+            return (b1<<24) + (b0<<16) + (b3<<8) + b2;
+        else
+            return (b0<<24) + (b1<<16) + (b2<<8) + b3;
+    }
 
-        f.close();
-        fo.close();
+    	//el elemento actual contiene items (secuencia) o elementos (item de una secuencia)
+    private boolean isContainer(int tag, int parentTag) throws IOException {
+        //los items del pixel data encapsulado son fragmentos, no datasets
+        if (tag==DcmIndex.ITEM) return parentTag!=PIXEL_DATA_TAG;
+        if (undefinedLength || vr==SQ) return true;
+        //en VR implicito una secuencia de longitud definida solo se reconoce por su primer item
+        return vr==IMPLICIT_VR && elementLength>=8 && peekTag()==DcmIndex.ITEM;
+    }
+
+    	//tag que indica como leer (littleEndian, bigEndian)
+    	//los comprimidos (RLE, JPEG) solo afectan al pixel data: la cabecera se lee igual y DcmPixels lo decodifica
+    private void checkTransferSyntax(String s) throws IOException {
+        if (s.indexOf("1.2.840.10008.1.2.2")>=0)
+            bigEndian = true;
+        if (s.indexOf(DEFLATED)>=0) {
+            if (metaEnd<0) throw new IOException("Deflated Transfer Syntax without (0002,0000) group length: "+path);
+            inflateAt = metaEnd;
+        }
+    }
+
+    	//cierra el lector abierto, sea flujo o buffer
+    private void close() throws IOException {
+        if (f!=null) f.close();
+        f = null;
+        if (inflater!=null) inflater.end();
+        inflater = null;
+        buffer = null;
+    }
+
+    	//orden de bytes del lector
+    private void setLittleEndian(boolean littleEndian) {
+        this.littleEndian = littleEndian;
+        if (buffer!=null) buffer.order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    }
+
+    	//quita el caracter de relleno final (0x00, y el espacio si spaces)
+    private static String trimPadding(String cur, boolean spaces) {
+        if (cur.length()==0) return cur;
+        char end = cur.charAt(cur.length()-1);
+        if (end==0x00 || (spaces && end==0x20)) return cur.substring(0, cur.length()-1);
         return cur;
+    }
+
+    	//lista de valores de value(tagt, i, tagi, tagf); {""} si no se encontro ninguno
+    private static String[] toArray(List<String> found) {
+        if (found.isEmpty()) return new String[] {""};
+        return found.toArray(new String[found.size()]);
+    }
+
+    	//tag "GGGGEEEE" (hexadecimal, como en las consultas de texto) como int
+    public static int parseTag(String tagtar) {
+        return Integer.parseUnsignedInt(tagtar, 16);
+    }
+
+    public String getpath(){
+    	return path;
+    }
+
+    public boolean isParseOnce(){
+    	return parseOnce;
+    }
+
+    public boolean isMapped(){
+    	return mapped;
+    }
+
+    	//lee el archivo mapeado en memoria (FileChannel.map) en lugar de con BufferedInputStream
+    public void setMapped(boolean mapped){
+    	this.mapped = mapped;
+    	index = null;
+    }
+
+    	//traza de los elementos recorridos, null para desactivarla
+    public void setTrace(DcmTrace trace){
+    	this.trace = trace;
+    }
+
+    public DcmTrace getTrace(){
+    	return trace;
+    }
+
+    public void setParseOnce(boolean parseOnce){
+    	this.parseOnce = parseOnce;
+    	if (!parseOnce) index = null;
+    }
+
+    //Recorre el dataset avisando a un visitante de cada elemento (estilo SAX), sin guardar nada.
+    //Con setMapped(true) los valores se ven sobre el archivo mapeado, sin copiarlos
+    //===========================================================
+    public void accept(DcmVisitor visitor) throws IOException {
+        open();
+        try {
+        	walk(visitor, true);
+        } finally {
+        	close();
+        }
+    }
+
+    	//motor de recorrido de todas las consultas: cabeceras, anidamiento de secuencias e items,
+    	//transfer syntax y final en el pixel data del nivel superior.
+    	//Con views el visitante recibe la vista del valor; sin views (uso interno) el lector queda al inicio
+    	//del valor durante la llamada, lo que el visitante no lea se salta y tras STOP no se mueve
+    private void walk(DcmVisitor v, boolean views) throws IOException {
+        DcmParseEvent event = PARSE_EVENT.isEnabled() ? new DcmParseEvent() : null;
+        if (event!=null) event.begin();
+        boolean metrics = DcmMetrics.isEnabled();
+        long start = metrics ? System.nanoTime() : 0;
+        visited = 0;
+        notRead = 0;
+        try {
+        	scan(v, views);
+        } finally {
+        	if (metrics) DcmMetrics.scan(location, visited, notRead, System.nanoTime()-start);
+        	if (event!=null) {
+        		event.end();
+        		if (event.shouldCommit()) {
+        			event.path = path;
+        			event.bytes = location;
+        			event.elements = visited;
+        			event.skipped = notRead;
+        			event.commit();
+        		}
+        	}
+        }
+    }
+
+    private void scan(DcmVisitor v, boolean views) throws IOException {
+
+        //contenedores abiertos: tag y posicion final (-1 si la longitud es indefinida)
+        int[] stack = new int[16];
+        int[] limit = new int[16];
+        int depth = 0;
+        int sequences = 0; //secuencias abiertas, la profundidad que ve el visitante
+        int mute = -1;     //contenedor de longitud indefinida saltado: su contenido no se avisa
+        ByteBuffer window = views&&buffer!=null ? buffer.duplicate() : null;
+
+        while (!endfile) {
+
+        	if (inflateAt>0 && !inflated && location==inflateAt) {
+        		inflate();
+        		if (window!=null) window = buffer.duplicate();
+        	}
+
+        	//los contenedores de longitud definida se cierran al llegar a su final
+        	//y los de longitud indefinida con su delimitador (limit = location)
+        	while (depth>0 && limit[depth-1]>=0 && location>=limit[depth-1]) {
+        		int open = stack[--depth];
+        		if (open!=DcmIndex.ITEM) sequences--;
+        		if (mute<0 && v.end(open, sequences)==DcmVisitor.STOP) return;
+        		if (mute==depth) mute = -1;
+        	}
+
+        	int tag = getNextTagLen();
+        	if (endfile) break;
+        	visited++;
+        	if ((location&1)!=0) // DICOM tags must be at even locations
+        		oddLocations = true;
+
+        	if (tag==DcmIndex.ITEM_DELIMITATION||tag==DcmIndex.SEQUENCE_DELIMITATION) {
+        		if (depth>0) limit[depth-1] = location;
+        		continue;
+        	}
+
+        	boolean pixels = depth==0 && tag==PIXEL_DATA_TAG;
+        	opening = !pixels && isContainer(tag, depth>0 ? stack[depth-1] : 0);
+        	valueOffset = location;
+        	int end = location+elementLength;
+
+        	if (trace!=null && mute<0)
+        		trace.element(tag, vr, undefinedLength ? -1 : elementLength, opening||pixels ? "" : peekValue());
+
+        	ByteBuffer value = null;
+        	if (views && !opening && mute<0) value = view(window, pixels);
+        	if (tag==TRANSFER_SYNTAX_UID) {
+        		//en flujo con views el valor ya esta en scratch
+        		if (value!=null && window==null) transferSyntax = new String(scratch, 0, elementLength);
+        		else transferSyntax = getString(elementLength);
+        		checkTransferSyntax(transferSyntax);
+        	}
+
+        	int flag = DcmVisitor.SKIP;
+        	if (mute<0) flag = v.element(tag, vr, undefinedLength ? -1 : elementLength, value, sequences);
+        	if (flag==DcmVisitor.STOP || pixels) return;
+
+        	if (opening && (undefinedLength || flag==DcmVisitor.DESCEND)) {
+        		if (depth==stack.length) {
+        			stack = Arrays.copyOf(stack, 2*depth);
+        			limit = Arrays.copyOf(limit, 2*depth);
+        		}
+        		stack[depth] = tag;
+        		limit[depth] = undefinedLength ? -1 : end;
+        		if (tag!=DcmIndex.ITEM) sequences++;
+        		//sin longitud solo se puede saltar recorriendolo
+        		if (mute<0 && flag!=DcmVisitor.DESCEND) mute = depth;
+        		depth++;
+        	} else {
+        		if (location<end) notRead++;
+        		skip((long)end - location);
+        	}
+        }
+    }
+
+    	//valor actual como texto sin avanzar el lector (solo para la traza)
+    private String peekValue() throws IOException {
+        if (elementLength>MAX_TRACE_VALUE) return "";
+        int saved = location;
+        String s;
+        if (buffer!=null) {
+        	int pos = buffer.position();
+        	s = getString(elementLength);
+        	buffer.position(pos);
+        } else {
+        	f.mark(elementLength+8);
+        	s = getString(elementLength);
+        	f.reset();
+        }
+        location = saved;
+        endfile = false;
+        return s;
+    }
+
+    	//vista del valor actual: ventana sobre el mapeo o copia en scratch (null en el pixel data sin mapear)
+    private ByteBuffer view(ByteBuffer window, boolean pixels) throws IOException {
+        if (window!=null) {
+        	if (elementLength>buffer.remaining()) return null;
+        	int start = buffer.position();
+        	window.clear();
+        	window.position(start).limit(start+elementLength);
+        	return window.order(buffer.order());
+        }
+        if (pixels || !readScratch(elementLength)) return null;
+        return ByteBuffer.wrap(scratch, 0, elementLength).order(littleEndian ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+    }
+
+    	//lee n bytes del valor actual en scratch; false si se acaba el archivo
+    private boolean readScratch(int n) throws IOException {
+        if (scratch.length<n) scratch = new byte[Math.max(n, 2*scratch.length)];
+        if (buffer!=null) {
+        	if (n>buffer.remaining()) return false;
+        	buffer.get(scratch, 0, n);
+        } else {
+        	int pos = 0;
+        	while (pos<n) {
+        		int count = f.read(scratch, pos, n-pos);
+        		if (count<0) return false;
+        		pos += count;
+        	}
+        }
+        location += n;
+        return true;
+    }
+
+    	//valor del elemento actual dentro de un visitante interno (el transfer syntax ya lo ha leido walk)
+    private String currentValue(int tag) throws IOException {
+        if (tag==TRANSFER_SYNTAX_UID) return transferSyntax;
+        return getString(elementLength);
+    }
+
+    	//visitante que construye el indice
+    private class IndexBuilder implements DcmVisitor {
+        final DcmIndex idx = new DcmIndex();
+        private int[] stack = new int[16]; //entradas de las secuencias e items abiertos
+        private int depth = 0;
+
+        public int element(int tag, int vr, int length, ByteBuffer value, int sequences) {
+        	idx.add(tag, vr, valueOffset, length, depth>0 ? stack[depth-1] : -1);
+        	if (opening) {
+        		if (depth==stack.length) stack = Arrays.copyOf(stack, 2*depth);
+        		stack[depth++] = idx.size()-1;
+        	}
+        	return DESCEND;
+        }
+
+        public int end(int tag, int sequences) {
+        	idx.close(stack[--depth]);
+        	return DESCEND;
+        }
+
+        	//cierra lo que quede abierto al final del archivo
+        void finish() {
+        	while (depth>0) idx.close(stack[--depth]);
+        }
+    }
+
+    //Construye (una sola vez) el indice tag -> (offset, VR, longitud, ruta de secuencias)
+    //===========================================================
+    public DcmIndex index() throws IOException {
+
+        if (index != null) return index;
+
+        open();
+        IndexBuilder builder = new IndexBuilder();
+        try {
+        	walk(builder, false);
+        	builder.finish();
+        	//el mapeo se conserva para leer los valores desde el indice
+        	if (buffer!=null) builder.idx.setData(buffer);
+        	builder.idx.setInflateAt(inflateAt);
+        } finally {
+        	close();
+        }
+
+        builder.idx.setBigEndian(bigEndian);
+        index = builder.idx;
+        return index;
+    }
+
+    	//posiciona el lector ya abierto al inicio del valor de la entrada i del indice
+    private void seekEntry(DcmIndex idx, int i) throws IOException {
+        if (inflateAt>0 && !inflated && buffer==null && idx.offset(i)>=inflateAt) {
+        	skip(inflateAt - location);
+        	inflate();
+        }
+        skip(idx.offset(i) - location);
+        vr = idx.vr(i);
+        elementLength = Math.max(idx.length(i), 0);
+        setLittleEndian(idx.littleEndian(i));
+    }
+
+    	//lee el valor de la entrada i del indice avanzando el flujo ya abierto
+    private String readEntry(DcmIndex idx, int i) throws IOException {
+        seekEntry(idx, i);
+        return getString(elementLength);
+    }
+
+    	//abre el archivo para leer entradas del indice
+    private void openIndexed() throws IOException {
+        location = 0;
+        endfile = false;
+        inflateAt = index.inflateAt();
+        inflated = false;
+        if (index.data()!=null) {
+        	buffer = index.data().duplicate();
+        	buffer.position(0);
+        } else
+        	f = new BufferedInputStream(new FileInputStream(path));
+    }
+
+    private String indexedValue(int target) throws IOException {
+        int i = index().find(target, 0);
+        if (i<0) return null;
+        return entryValue(i);
+    }
+
+    	//valor de la entrada i del indice (arbol de secuencias)
+    	//bytes del valor de la entrada i, para el pixel data que no se puede mapear (deflate)
+    ByteBuffer entryBytes(int i, int n) throws IOException {
+        DcmIndex idx = index();
+        ByteBuffer data = idx.data();
+        if (data!=null && (long)idx.offset(i)+n<=data.capacity()) {
+        	ByteBuffer b = data.duplicate();
+        	b.limit(idx.offset(i)+n).position(idx.offset(i));
+        	return b.slice();
+        }
+        location = 0;
+        endfile = false;
+        inflateAt = idx.inflateAt();
+        inflated = false;
+        f = new BufferedInputStream(new FileInputStream(path));
+        try {
+        	seekEntry(idx, i);
+        	byte[] b = new byte[n];
+        	if (f.readNBytes(b, 0, n)<n) throw new IOException("Pixel data shorter than expected: "+path);
+        	location += n;
+        	return ByteBuffer.wrap(b);
+        } finally {
+        	close();
+        }
+    }
+
+    String entryValue(int i) throws IOException {
+        DcmIndex idx = index();
+        openIndexed();
+        try {
+        	return trimPadding(readEntry(idx, i), true);
+        } finally {
+        	close();
+        }
+    }
+
+    private String indexedValue(int target, int iex) throws IOException {
+        DcmIndex idx = index();
+        int i = idx.find(target, iex);
+        if (i<0) return null;
+        openIndexed();
+        try {
+        	return trimPadding(readEntry(idx, i), true);
+        } finally {
+        	close();
+        }
+    }
+
+    private String[] indexedValue(int target, int volj, int start, int end) throws IOException {
+        DcmIndex idx = index();
+        List<String> found = new ArrayList<String>();
+
+        int i = idx.find(start, volj);
+        if (i>=0) {
+        	openIndexed();
+        	try {
+        		for (i++; i<idx.size() && idx.tag(i)!=end; i++) {
+        			if (idx.tag(i)!=target) continue;
+        			String dummy = readEntry(idx, i);
+        			if (dummy.length()>0) found.add(trimPadding(dummy, false));
+        		}
+        	} finally {
+        		close();
+        	}
+        }
+
+        return toArray(found);
+    }
+
+    private String[] indexedValues(int[] keys, int count, DcmTagMap slots) throws IOException {
+        DcmIndex idx = index();
+        String[] got = new String[count];
+        int[] entries = new int[count];
+        int n = 0;
+        for (int k=0; k<count; k++) {
+        	int i = idx.find(keys[k], 0);
+        	if (i>=0) entries[n++] = i;
+        }
+        if (n==0) return got;
+        //en el orden del archivo para leerlas en una sola pasada
+        Arrays.sort(entries, 0, n);
+        openIndexed();
+        try {
+        	for (int k=0; k<n; k++) {
+        		int i = entries[k];
+        		//secuencias e items no tienen valor propio: leerlos pasaria por encima de sus elementos
+        		if (idx.end(i)>i+1) got[slots.get(idx.tag(i))] = "";
+        		else got[slots.get(idx.tag(i))] = trimPadding(readEntry(idx, i), true);
+        	}
+        } finally {
+        	close();
+        }
+        return got;
+    }
+
+    //Devuelve el valor de un tag unico (la primera aparicion)
+    //===========================================================
+    public String value(String tagtar) throws IOException {
+        return value(parseTag(tagtar));
+    }
+
+    public String value(final int target) throws IOException {
+        
+        if (parseOnce) {
+        	boolean metrics = DcmMetrics.isEnabled();
+        	long begin = metrics ? System.nanoTime() : 0;
+        	String found = indexedValue(target);
+        	if (metrics) DcmMetrics.lookup(System.nanoTime()-begin);
+        	return found;
+        }
+
+        final String[] cur = new String[1];
+        //los tags del meta header (grupo 0002) van al principio y nunca dentro de secuencias:
+        //se puede parar en cuanto se pasa su posicion
+        final boolean meta = (target>>>16)==0x0002;
+        
+        open();
+        
+        //System.out.println(tagtar);
+        try {
+        	walk(new DcmVisitor() {
+        		public int element(int tag, int vr, int length, ByteBuffer value, int depth) throws IOException {
+        			if (meta && Integer.compareUnsigned(tag, target)>0) return STOP;
+        			if (tag!=target) return DESCEND;
+        			//encontrado: no hace falta seguir leyendo
+        			cur[0] = trimPadding(currentValue(tag), true);
+        			return STOP;
+        		}
+        	}, false);
+        } finally {
+        	close();
+        }
+        return cur[0];
         
     }
     
@@ -450,225 +1037,437 @@ public class DcmHeadex {
     //Devuelve el valor i-esimo de un tag que se repite
     //===========================================================
     public String value(String tagtar, int iex) throws IOException {
+        return value(parseTag(tagtar), iex);
+    }
+
+    public String value(final int target, final int iex) throws IOException {
         
-    	long skipCount;
-        location = 0; // location reset for each search 
-        endfile = false;
-        String cur = null;
-        int ifound = 0;
-        
-        f = new BufferedInputStream(new FileInputStream(path));
-        
-        PrintWriter fo = new PrintWriter (new FileWriter("temp/dicombit.txt"));
-               
-        skipCount = (long)ID_OFFSET;
-        while (skipCount > 0) skipCount -= f.skip( skipCount );
-        location += ID_OFFSET;
-        vr = IMPLICIT_VR;
-        
-        if (!getString(4).equals(DICM)) {
-            f.close();
-            f = new BufferedInputStream(new FileInputStream(path));
-            location = 0;    
-        } else {
-            //System.out.println("Se reconoce cabecera DCM");
+        if (parseOnce) {
+        	boolean metrics = DcmMetrics.isEnabled();
+        	long begin = metrics ? System.nanoTime() : 0;
+        	String found = indexedValue(target, iex);
+        	if (metrics) DcmMetrics.lookup(System.nanoTime()-begin);
+        	return found;
         }
+
+        final String[] cur = new String[1];
         
-        boolean decodingTags = true;
+        open();
         
-        //bucle de busqueda
-        while (decodingTags&&!endfile) {
-        	
-            int tag = getNextTagLen();
-            if ((location&1)!=0) // DICOM tags must be at even locations
-                oddLocations = true;
-            String s;
-            if(tag==TRANSFER_SYNTAX_UID){
-                    s = getString(elementLength);
-                    if (s.indexOf("1.2.4")>-1||s.indexOf("1.2.5")>-1) {
-                        f.close();
-                        fo.close();
-                        String msg = "DCM Image compresed.\n \n";
-                        msg += "Transfer Syntax UID = "+s;
-                        throw new IOException(msg);
-                    }
-                    if (s.indexOf("1.2.840.10008.1.2.2")>=0)
-                        bigEndian = true;
-            }
-            String dummy="";
-            if(tagtar.equals(String.format("%08X", tag))){ 
-                    // elementLength was reset in previous call to getNextTag() 
-            		dummy = getString(elementLength);
-                    
-                    if(ifound==iex){
-                    	
-                    	char end = dummy.charAt(dummy.length()-1);
-           				String buka = Integer.toHexString(end | 0x10000).substring(1);
-           				if(buka.equals("0000")||buka.equals("0020")) dummy = dummy.substring(0, dummy.length()-1);
-                    	
-           				cur = dummy;
-                        break;
-                    }
-                    ifound++;
-            }else{
-            	if(!(tag==TRANSFER_SYNTAX_UID)){
-            		dummy = getString(elementLength);
-            	}
-            }
-            
-            boolean debug = false;
-            if(debug&&!endfile){
-                
-            	fo.print("long: ");
-            	fo.print(elementLength);
-            	fo.print(", tag: ");
-            	fo.print(String.format("%08X", tag));
-            	fo.print(", VR: ");
-            	String vrstring = new String(vrchar);
-            	fo.print(vrstring);
-            	fo.print(", value: ");
-            	fo.println(dummy);
-            }
-            
-        } // while(decodingTags)
+        try {
+        	walk(new DcmVisitor() {
+        		private int ifound = 0;
 
-        f.close();
-        fo.close();
-        return cur;
+        		public int element(int tag, int vr, int length, ByteBuffer value, int depth) throws IOException {
+        			if (tag!=target || ifound++<iex) return DESCEND;
+        			cur[0] = trimPadding(currentValue(tag), true);
+        			return STOP;
+        		}
+        	}, false);
+        } finally {
+        	close();
+        }
+        return cur[0];
         
     }
     
 	//Devuelve todos los valores de valor tags, encontrados entre los tagt y tagf j y j-1
     //===========================================================
     public String[] value(String tagtar, int volj, String tagi, String tagf) throws IOException {
+        return value(parseTag(tagtar), volj, parseTag(tagi), parseTag(tagf));
+    }
+
+    public String[] value(final int target, final int volj, final int start, final int stop) throws IOException {
         
-    	long skipCount;
-        location = 0; // location reset for each search 
-        endfile = false;
-        String[] bigcur = new String[MAXPOINT];
-        bigcur[0] = "";
-        int volk = 0;
-        int p = 0;
-        
-        f = new BufferedInputStream(new FileInputStream(path));
-        
-        PrintWriter fo = new PrintWriter (new FileWriter("temp/dicombit.txt"));
-               
-        skipCount = (long)ID_OFFSET;
-        while (skipCount > 0) skipCount -= f.skip( skipCount );
-        location += ID_OFFSET;
-        vr = IMPLICIT_VR;
-        
-        if (!getString(4).equals(DICM)) {
-            f.close();
-            f = new BufferedInputStream(new FileInputStream(path));
-            location = 0;    
-        } else {
-            //System.out.println("Se reconoce cabecera DCM");
+        if (parseOnce) {
+        	boolean metrics = DcmMetrics.isEnabled();
+        	long begin = metrics ? System.nanoTime() : 0;
+        	String[] found = indexedValue(target, volj, start, stop);
+        	if (metrics) DcmMetrics.lookup(System.nanoTime()-begin);
+        	return found;
         }
+
+        final List<String> found = new ArrayList<String>();
         
-        boolean decodingTags = true;
+        open();
         
-        //bucle de busqueda
-        while (decodingTags&&!endfile) {
-        	
-            int tag = getNextTagLen();
-            if ((location&1)!=0) // DICOM tags must be at even locations
-                oddLocations = true;
-            String s;
-            
-            if(tag==TRANSFER_SYNTAX_UID){
-                    s = getString(elementLength);
-                    if (s.indexOf("1.2.4")>-1||s.indexOf("1.2.5")>-1) {
-                        f.close();
-                        fo.close();
-                        String msg = "DCM Image compresed.\n \n";
-                        msg += "Transfer Syntax UID = "+s;
-                        throw new IOException(msg);
-                    }
-                    if (s.indexOf("1.2.840.10008.1.2.2")>=0)
-                        bigEndian = true;
-            }
-            
-            String dummy="";
-            
-            //============================inicio del meollo
-            
-            if(tagi.equals(String.format("%08X", tag))&&(volk==volj)){
-               		
-
-                //System.out.println("se encuentra "+String.format("%08X", tag)+" con vol "+String.valueOf(volk));
-            	
-            	dummy = getString(elementLength);
-               		
-               	while(!tagf.equals(String.format("%08X", tag))){
-               			
-               			tag = getNextTagLen();
-               		
-               			if(tagtar.equals(String.format("%08X", tag))){ 
-               				// elementLength was reset in previous call to getNextTag()
-               				dummy = getString(elementLength);
-               				if(dummy.length()>0) {
-               					char end = dummy.charAt(dummy.length()-1);
-               					String buka = Integer.toHexString(end | 0x10000).substring(1);
-                   				if(buka.equals("0000")) dummy = dummy.substring(0, dummy.length()-1);
-                   				bigcur[p]= dummy;
-                   				p++;
-               				}
-               				
-               			}else{
-               				if(!(tag==TRANSFER_SYNTAX_UID)) dummy = getString(elementLength);
-               			}
-               	}
-               	volk++;
-               	if(tagf.equals(String.format("%08X", tag))) break;
-               	
-            }else{
-            		if(!(tag==TRANSFER_SYNTAX_UID)) dummy = getString(elementLength);
-            		if(tagi.equals(String.format("%08X", tag))) volk++;	
-            }
-            
-            
-        } // while(decodingTags)
+        try {
+        	walk(new DcmVisitor() {
+        		private int volk = 0;
+        		private boolean inside = false; //entre la aparicion volj de tagi y el siguiente tagf
+
+        		public int element(int tag, int vr, int length, ByteBuffer value, int depth) throws IOException {
+        			if (!inside) {
+        				if (tag==start && volk++==volj) inside = true;
+        				return DESCEND;
+        			}
+        			if (tag==stop) return STOP;
+        			if (tag==target) {
+        				String dummy = currentValue(tag);
+        				if(dummy.length()>0) found.add(trimPadding(dummy, false));
+        			}
+        			return DESCEND;
+        		}
+        	}, false);
+        } finally {
+        	close();
+        }
         
-        f.close();
-        fo.close();
+        return toArray(found);
         
-        int newsize=0;
-        for (int i=0; i<MAXNEWSIZE;i++){
-        	if(bigcur[i]!=null){
-        		newsize++;
+    }
+    
+    
+    //Devuelve en una sola lectura el valor (primera aparicion) de varios tags, en el orden pedido;
+    //null para los que no esten, "" para secuencias e items. La lectura para en cuanto se han encontrado todos
+    //===========================================================
+    public String[] values(int... tags) throws IOException {
+
+        //posicion de cada tag distinto, sin formatear ni crear objetos por elemento
+        final DcmTagMap slots = new DcmTagMap(tags.length);
+        int[] keys = new int[tags.length];
+        int count = 0;
+        for (int k=0; k<tags.length; k++) {
+        	if (slots.putIfAbsent(tags[k], count)==count) keys[count++] = tags[k];
+        }
+        final String[] got;
+
+        if (parseOnce) {
+        	boolean metrics = DcmMetrics.isEnabled();
+        	long begin = metrics ? System.nanoTime() : 0;
+        	got = indexedValues(keys, count, slots);
+        	if (metrics) DcmMetrics.lookup(System.nanoTime()-begin);
+        } else {
+        	got = new String[count];
+        	open();
+        	try {
+        		walk(new DcmVisitor() {
+        			private int left = got.length;
+
+        			public int element(int tag, int vr, int length, ByteBuffer value, int depth) throws IOException {
+        				int k = slots.get(tag);
+        				if (k<0 || got[k]!=null) return DESCEND;
+        				//un contenedor se deja sin leer para que walk entre en el
+        				got[k] = opening ? "" : trimPadding(currentValue(tag), true);
+        				return --left==0 ? STOP : DESCEND;
+        			}
+        		}, false);
+        	} finally {
+        		close();
         	}
         }
-        
-        String[] cur = new String[newsize];
-        
-        for (int i=0; i<newsize;i++){
-        	cur[i] = bigcur[i];
+
+        String[] found = new String[tags.length];
+        for (int k=0; k<tags.length; k++) found[k] = got[slots.get(tags[k])];
+        return found;
+    }
+
+    public String[] values(String... tagtars) throws IOException {
+        int[] tags = new int[tagtars.length];
+        for (int k=0; k<tags.length; k++) tags[k] = parseTag(tagtars[k]);
+        return values(tags);
+    }
+    
+    
+    //posiciona el lector al inicio del valor de la aparicion iex del tag
+    //devuelve false (y cierra) si no esta
+    private boolean seek(final int target, final int iex) throws IOException {
+
+        if (parseOnce) {
+        	//las lecturas tipadas cuentan hasta el inicio del valor
+        	boolean metrics = DcmMetrics.isEnabled();
+        	long begin = metrics ? System.nanoTime() : 0;
+        	int i = index().find(target, iex);
+        	if (i>=0) openEntry(i);
+        	if (metrics) DcmMetrics.lookup(System.nanoTime()-begin);
+        	return i>=0;
         }
-        
-        return cur;
-        
+
+        open();
+        final int[] ifound = {0};
+        boolean found = false;
+        try {
+        	walk(new DcmVisitor() {
+        		public int element(int tag, int vr, int length, ByteBuffer value, int depth) {
+        			if (tag==target && ifound[0]++==iex) return STOP;
+        			return DESCEND;
+        		}
+        	}, false);
+        	found = ifound[0]>iex;
+        } finally {
+        	if (!found) close();
+        }
+        return found;
+    }
+
+    	//posiciona el lector al inicio del valor de la entrada i del indice
+    private void openEntry(int i) throws IOException {
+        DcmIndex idx = index();
+        openIndexed();
+        seekEntry(idx, i);
+    }
+
+    	//numero de valores del elemento en la posicion actual;
+    	//los valores de texto (DS, IS...) quedan leidos en scratch
+    private int loadValue() throws IOException {
+        switch (vr) {
+        	case FD: return elementLength/8;
+        	case FL: case UL: case SL: return elementLength/4;
+        	case US: case SS: return elementLength/2;
+        	default:
+        		if (!readScratch(elementLength)) return 0;
+        		return DcmText.count(scratch, elementLength);
+        }
+    }
+
+    	//decodifica n valores del elemento actual en el array no nulo (d, fl o in),
+    	//como mucho hasta su longitud
+    private void readValues(int n, double[] d, float[] fl, int[] in) throws IOException {
+        int max = d!=null ? d.length : fl!=null ? fl.length : in.length;
+        if (n>max) n = max;
+        int from = 0;
+        for (int k=0; k<n; k++) {
+        	double v;
+        	int iv = 0;
+        	switch (vr) {
+        		case FD: v = getDouble(); iv = (int)v; break;
+        		case FL: v = getFloat(); iv = (int)v; break;
+        		case US: iv = getShort(); v = iv; break;
+        		case SS: iv = (short)getShort(); v = iv; break;
+        		case UL: iv = getInt(); v = iv&0xFFFFFFFFL; break;
+        		case SL: iv = getInt(); v = iv; break;
+        		default:
+        			int to = from;
+        			while (to<elementLength && scratch[to]!='\\') to++;
+        			if (in!=null) iv = DcmText.parseInt(scratch, from, to);
+        			v = in!=null ? iv : DcmText.parseDouble(scratch, from, to);
+        			from = to+1;
+        	}
+        	if (d!=null) d[k] = v;
+        	else if (fl!=null) fl[k] = (float)v;
+        	else in[k] = iv;
+        }
+    }
+
+    	//lectura del valor ya posicionado en un array nuevo o en el del llamador; cierra el lector
+    private double[] readDoubles() throws IOException {
+        try {
+        	double[] dst = new double[loadValue()];
+        	readValues(dst.length, dst, null, null);
+        	return dst;
+        } finally {
+        	close();
+        }
+    }
+
+    private float[] readFloats() throws IOException {
+        try {
+        	float[] dst = new float[loadValue()];
+        	readValues(dst.length, null, dst, null);
+        	return dst;
+        } finally {
+        	close();
+        }
+    }
+
+    private int[] readInts() throws IOException {
+        try {
+        	int[] dst = new int[loadValue()];
+        	readValues(dst.length, null, null, dst);
+        	return dst;
+        } finally {
+        	close();
+        }
+    }
+
+    private int readInto(double[] d, float[] fl, int[] in) throws IOException {
+        try {
+        	int n = loadValue();
+        	readValues(n, d, fl, in);
+        	return n;
+        } finally {
+        	close();
+        }
+    }
+
+    	//valores numericos de la entrada i del indice (arbol de secuencias)
+    double[] entryDoubles(int i) throws IOException {
+        openEntry(i);
+        return readDoubles();
+    }
+
+    float[] entryFloats(int i) throws IOException {
+        openEntry(i);
+        return readFloats();
+    }
+
+    int[] entryInts(int i) throws IOException {
+        openEntry(i);
+        return readInts();
+    }
+
+    int entryValues(int i, double[] d, float[] fl, int[] in) throws IOException {
+        openEntry(i);
+        return readInto(d, fl, in);
+    }
+
+    //Valores numericos (DS, IS, FD, FL, US, SS, UL, SL) de la aparicion iex de un tag
+    //como array de primitivos, null si no esta. Los textos que no son numeros dan NaN (0 en ints)
+    //===========================================================
+    public double[] doubles(int tag, int iex) throws IOException {
+        if (!seek(tag, iex)) return null;
+        return readDoubles();
+    }
+
+    public double[] doubles(int tag) throws IOException {
+        return doubles(tag, 0);
+    }
+
+    public double[] doubles(String tagtar, int iex) throws IOException {
+        return doubles(parseTag(tagtar), iex);
+    }
+
+    public double[] doubles(String tagtar) throws IOException {
+        return doubles(parseTag(tagtar), 0);
+    }
+
+    //igual que doubles(tagtar, iex) pero sobre un array del llamador: rellena hasta dst.length
+    //y devuelve el numero de valores del elemento (-1 si no esta)
+    public int doubles(int tag, int iex, double[] dst) throws IOException {
+        if (!seek(tag, iex)) return -1;
+        return readInto(dst, null, null);
+    }
+
+    public int doubles(String tagtar, int iex, double[] dst) throws IOException {
+        return doubles(parseTag(tagtar), iex, dst);
+    }
+
+    public float[] floats(int tag, int iex) throws IOException {
+        if (!seek(tag, iex)) return null;
+        return readFloats();
+    }
+
+    public float[] floats(int tag) throws IOException {
+        return floats(tag, 0);
+    }
+
+    public float[] floats(String tagtar, int iex) throws IOException {
+        return floats(parseTag(tagtar), iex);
+    }
+
+    public float[] floats(String tagtar) throws IOException {
+        return floats(parseTag(tagtar), 0);
+    }
+
+    public int floats(int tag, int iex, float[] dst) throws IOException {
+        if (!seek(tag, iex)) return -1;
+        return readInto(null, dst, null);
+    }
+
+    public int floats(String tagtar, int iex, float[] dst) throws IOException {
+        return floats(parseTag(tagtar), iex, dst);
+    }
+
+    public int[] ints(int tag, int iex) throws IOException {
+        if (!seek(tag, iex)) return null;
+        return readInts();
+    }
+
+    public int[] ints(int tag) throws IOException {
+        return ints(tag, 0);
+    }
+
+    public int[] ints(String tagtar, int iex) throws IOException {
+        return ints(parseTag(tagtar), iex);
+    }
+
+    public int[] ints(String tagtar) throws IOException {
+        return ints(parseTag(tagtar), 0);
+    }
+
+    public int ints(int tag, int iex, int[] dst) throws IOException {
+        if (!seek(tag, iex)) return -1;
+        return readInto(null, null, dst);
+    }
+
+    public int ints(String tagtar, int iex, int[] dst) throws IOException {
+        return ints(parseTag(tagtar), iex, dst);
+    }
+
+    //Valores numericos (DS, IS, FD, FL, US, SS, UL, SL) de la vista que recibe un DcmVisitor, sin
+    //pasar por String: se escriben en dst desde offset, como mucho hasta su longitud, y se devuelve
+    //el numero de valores del elemento (p.e. ContourData de megas directamente en un float[])
+    //===========================================================
+    public static int floats(ByteBuffer value, int vr, float[] dst, int offset) {
+        int p = value.position();
+        int len = value.limit()-p;
+        int size = vr==FD ? 8 : vr==FL || vr==UL || vr==SL ? 4 : vr==US || vr==SS ? 2 : 0;
+        if (size>0) {
+        	int n = len/size;
+        	int m = Math.min(n, dst.length-offset);
+        	for (int k=0; k<m; k++) {
+        		int at = p + k*size;
+        		switch (vr) {
+        			case FD: dst[offset+k] = (float)value.getDouble(at); break;
+        			case FL: dst[offset+k] = value.getFloat(at); break;
+        			case UL: dst[offset+k] = value.getInt(at)&0xFFFFFFFFL; break;
+        			case SL: dst[offset+k] = value.getInt(at); break;
+        			case US: dst[offset+k] = value.getShort(at)&0xFFFF; break;
+        			default: dst[offset+k] = value.getShort(at);
+        		}
+        	}
+        	return n;
+        }
+
+        //texto: cada valor se copia a un buffer corto y se interpreta con DcmText
+        int end = p+len;
+        while (end>p && (value.get(end-1)==' ' || value.get(end-1)==0)) end--;
+        if (end==p) return 0;
+        byte[] token = new byte[64];
+        int n = 0, t = 0;
+        for (int i=p; i<=end; i++) {
+        	byte c = i<end ? value.get(i) : (byte)'\\';
+        	if (c=='\\') {
+        		if (offset+n<dst.length) dst[offset+n] = (float)DcmText.parseDouble(token, 0, t);
+        		n++;
+        		t = 0;
+        	} else {
+        		if (t==token.length) token = Arrays.copyOf(token, 2*t);
+        		token[t++] = c;
+        	}
+        }
+        return n;
+    }
+
+    //Arbol de secuencias: el dataset como item raiz, p.e.
+    //dataset().sequence("300A00B0").item(i).sequence("300A0111").item(j).doubles("300A011C")
+    //===========================================================
+    public DcmItem dataset() throws IOException {
+        return new DcmItem(this, index(), -1);
     }
     
+    //Pixel data (CT, RT Dose) mapeado de solo lectura, sin copiarlo; null si no tiene.
+    //El rescale o el DoseGridScaling se aplican al leer cada valor
+    //===========================================================
+    public DcmPixels pixels() throws IOException {
+        return DcmPixels.map(this);
+    }
     
+    //Recorre todo el archivo enviando cada elemento a la traza (a la salida estandar si no hay)
+    //===========================================================
     public void verbose() throws IOException{
     	
-       location = 0;
-
-       f = new BufferedInputStream(new FileInputStream(path));
-       PrintWriter fo = new PrintWriter (new FileWriter("temp/dicombit.txt"));
-       endfile = false;
-       
-       fo.println("Archivo Dicom en Hexadecimal");
-       
-       //while(!endfile){
-    //		fo.print(String.format("%08X",getNextTagLen())+" ");
-    //		fo.print(elementLength);
-    //	}
-       
-       	fo.close();
-       	f.close();
+       DcmTrace saved = trace;
+       if (trace==null) trace = DcmTrace.to(new PrintWriter(System.out, true));
+       try {
+       	accept(new DcmVisitor() {
+       		public int element(int tag, int vr, int length, ByteBuffer value, int depth) {
+       			return DESCEND;
+       		}
+       	});
+       } finally {
+       	trace = saved;
+       }
     	
     }
-}
\ No newline at end of file
+}
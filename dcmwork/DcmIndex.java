@@ -0,0 +1,243 @@
+package dcmwork;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public class DcmIndex {
+
+	//etiquetas de estructura de secuencias
+	public static final int ITEM = 0xFFFEE000;
+	public static final int ITEM_DELIMITATION = 0xFFFEE00D;
+	public static final int SEQUENCE_DELIMITATION = 0xFFFEE0DD;
+	private static final int PIXEL_DATA = 0x7FE00010;
+
+	private static final int INITIAL_SIZE = 256;
+
+	//una entrada por elemento, en el orden del archivo
+	private int[] tags = new int[INITIAL_SIZE];
+	private int[] vrs = new int[INITIAL_SIZE];
+	private int[] offsets = new int[INITIAL_SIZE]; //posicion del valor en el archivo
+	private int[] lengths = new int[INITIAL_SIZE]; //-1 para longitud indefinida
+	private int[] parents = new int[INITIAL_SIZE]; //entrada del item (o secuencia) que lo contiene, -1 en el nivel superior
+	private int[] ends = new int[INITIAL_SIZE]; //primera entrada tras el contenido de la entrada (i+1 si no es secuencia o item)
+	private int count = 0;
+
+	private boolean bigEndian = false;
+	private ByteBuffer data; //contenido del archivo si se indexo mapeado, null si se lee del disco
+	private int inflateAt = 0; //deflate (1.2.840.10008.1.2.1.99): inicio de los datos comprimidos, 0 si no
+	//primera entrada de cada tag, se construye en la primera busqueda
+	//(volatile: los indices de DcmCache se comparten entre hilos)
+	private volatile DcmTagMap first;
+
+	DcmIndex() {
+	}
+
+	//solo durante la construccion en DcmHeadex
+	void setBigEndian(boolean bigEndian) {
+		this.bigEndian = bigEndian;
+	}
+
+	//solo durante la construccion en DcmHeadex
+	void add(int tag, int vr, int offset, int length, int parent) {
+		if (count == tags.length) {
+			int n = count * 2;
+			tags = Arrays.copyOf(tags, n);
+			vrs = Arrays.copyOf(vrs, n);
+			offsets = Arrays.copyOf(offsets, n);
+			lengths = Arrays.copyOf(lengths, n);
+			parents = Arrays.copyOf(parents, n);
+			ends = Arrays.copyOf(ends, n);
+		}
+		tags[count] = tag;
+		vrs[count] = vr;
+		offsets[count] = offset;
+		lengths[count] = length;
+		parents[count] = parent;
+		ends[count] = count+1;
+		count++;
+	}
+
+	//solo durante la construccion: cierra la secuencia o item de la entrada i
+	void close(int i) {
+		ends[i] = count;
+	}
+
+	//solo durante la construccion en DcmHeadex
+	void setInflateAt(int inflateAt) {
+		this.inflateAt = inflateAt;
+	}
+
+	//los offsets a partir de esta posicion son del flujo descomprimido
+	int inflateAt() {
+		return inflateAt;
+	}
+
+	void setData(ByteBuffer data) {
+		this.data = data;
+	}
+
+	ByteBuffer data() {
+		return data;
+	}
+
+	//final de la cabecera en el archivo: el valor del pixel data del nivel superior no se incluye
+	int headerEnd() {
+		long end = 0;
+		for (int i=0; i<count; i++) {
+			long e = offsets[i];
+			if (tags[i]!=PIXEL_DATA || parents[i]>=0) e += Math.max(lengths[i], 0);
+			end = Math.max(end, e);
+		}
+		return (int)Math.min(end, Integer.MAX_VALUE);
+	}
+
+	//solo para DcmCache: ajusta los arrays al numero de entradas y lee los valores de la copia de la cabecera
+	void detach(ByteBuffer header) {
+		tags = Arrays.copyOf(tags, count);
+		vrs = Arrays.copyOf(vrs, count);
+		offsets = Arrays.copyOf(offsets, count);
+		lengths = Arrays.copyOf(lengths, count);
+		parents = Arrays.copyOf(parents, count);
+		ends = Arrays.copyOf(ends, count);
+		data = header;
+	}
+
+	//memoria aproximada: arrays de entradas y cabecera copiada en el heap
+	long estimatedBytes() {
+		long bytes = 6L*4*tags.length + 256;
+		if (data!=null && !data.isDirect()) bytes += data.capacity();
+		return bytes;
+	}
+
+	public int size() {
+		return count;
+	}
+
+	public int tag(int i) {
+		return tags[i];
+	}
+
+	public int vr(int i) {
+		return vrs[i];
+	}
+
+	public int offset(int i) {
+		return offsets[i];
+	}
+
+	public int length(int i) {
+		return lengths[i];
+	}
+
+	public int parent(int i) {
+		return parents[i];
+	}
+
+	public int end(int i) {
+		return ends[i];
+	}
+
+	//primer elemento con el tag directamente dentro de la entrada parent (-1: nivel superior)
+	public int child(int parent, int tag) {
+		int end = parent<0 ? count : ends[parent];
+		for (int j=parent+1; j<end; j=ends[j]) {
+			if (tags[j] == tag) return j;
+		}
+		return -1;
+	}
+
+	//el grupo 0002 (meta header) siempre va en littleEndian
+	public boolean littleEndian(int i) {
+		return !bigEndian || (tags[i]>>>16) == 0x0002;
+	}
+
+	//n-esima aparicion del tag a partir de la entrada from, -1 si no esta
+	public int find(int tag, int n, int from) {
+		if (from == 0) {
+			//se empieza en la primera aparicion sin recorrer las entradas anteriores
+			from = first().get(tag);
+			if (from < 0) return -1;
+		}
+		for (int i=from; i<count; i++) {
+			if (tags[i] == tag) {
+				if (n == 0) return i;
+				n--;
+			}
+		}
+		return -1;
+	}
+
+	public int find(int tag, int n) {
+		return find(tag, n, 0);
+	}
+
+	private DcmTagMap first() {
+		if (first == null) {
+			DcmTagMap map = new DcmTagMap(64);
+			for (int i=0; i<count; i++) map.putIfAbsent(tags[i], i);
+			first = map;
+		}
+		return first;
+	}
+
+	//ruta de secuencias de la entrada i: pares {tag de secuencia, numero de item}
+	//desde el nivel superior, vacia para elementos del nivel superior
+	public int[] sequencePath(int i) {
+		int depth = 0;
+		for (int p=parents[i]; p>=0; p=parents[p]) {
+			if (tags[p] == ITEM) depth++;
+		}
+		int[] path = new int[2*depth];
+		int k = path.length;
+		for (int p=parents[i]; p>=0; p=parents[p]) {
+			if (tags[p] != ITEM) continue;
+			int seq = parents[p];
+			int item = 0;
+			for (int j=p-1; j>seq; j--) {
+				if (tags[j] == ITEM && parents[j] == seq) item++;
+			}
+			path[--k] = item;
+			path[--k] = seq >= 0 ? tags[seq] : 0;
+		}
+		return path;
+	}
+
+	//ruta de secuencias legible, p.e. "300A00B0[1].300A0111[3]"
+	public String sequencePathString(int i) {
+		int[] path = sequencePath(i);
+		StringBuilder sb = new StringBuilder();
+		for (int k=0; k<path.length; k+=2) {
+			if (k > 0) sb.append('.');
+			sb.append(String.format("%08X", path[k])).append('[').append(path[k+1]).append(']');
+		}
+		return sb.toString();
+	}
+}
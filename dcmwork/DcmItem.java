@@ -0,0 +1,133 @@
+package dcmwork;
+
+import java.io.IOException;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public class DcmItem {
+
+	private final DcmHeadex headex;
+	private final DcmIndex index;
+	private final int entry; //entrada del item en el indice, -1 para el dataset
+
+	DcmItem(DcmHeadex headex, DcmIndex index, int entry) {
+		this.headex = headex;
+		this.index = index;
+		this.entry = entry;
+	}
+
+	//entrada del elemento con el tag en este item, -1 si no esta
+	private int child(int tag) {
+		return index.child(entry, tag);
+	}
+
+	public boolean contains(int tag) {
+		return child(tag)>=0;
+	}
+
+	//secuencia de este item, null si no esta
+	public DcmSequence sequence(int tag) {
+		int i = child(tag);
+		return i<0 ? null : new DcmSequence(headex, index, i);
+	}
+
+	//valor de un elemento de este item (no de sus secuencias), null si no esta
+	public String value(int tag) throws IOException {
+		int i = child(tag);
+		return i<0 ? null : headex.entryValue(i);
+	}
+
+	public double[] doubles(int tag) throws IOException {
+		int i = child(tag);
+		return i<0 ? null : headex.entryDoubles(i);
+	}
+
+	public float[] floats(int tag) throws IOException {
+		int i = child(tag);
+		return i<0 ? null : headex.entryFloats(i);
+	}
+
+	public int[] ints(int tag) throws IOException {
+		int i = child(tag);
+		return i<0 ? null : headex.entryInts(i);
+	}
+
+	//sobre un array del llamador: devuelve el numero de valores (-1 si no esta)
+	public int doubles(int tag, double[] dst) throws IOException {
+		int i = child(tag);
+		return i<0 ? -1 : headex.entryValues(i, dst, null, null);
+	}
+
+	public int floats(int tag, float[] dst) throws IOException {
+		int i = child(tag);
+		return i<0 ? -1 : headex.entryValues(i, null, dst, null);
+	}
+
+	public int ints(int tag, int[] dst) throws IOException {
+		int i = child(tag);
+		return i<0 ? -1 : headex.entryValues(i, null, null, dst);
+	}
+
+	//los mismos accesos con el tag como texto "GGGGEEEE"
+	public boolean contains(String tag) {
+		return contains(DcmHeadex.parseTag(tag));
+	}
+
+	public DcmSequence sequence(String tag) {
+		return sequence(DcmHeadex.parseTag(tag));
+	}
+
+	public String value(String tag) throws IOException {
+		return value(DcmHeadex.parseTag(tag));
+	}
+
+	public double[] doubles(String tag) throws IOException {
+		return doubles(DcmHeadex.parseTag(tag));
+	}
+
+	public float[] floats(String tag) throws IOException {
+		return floats(DcmHeadex.parseTag(tag));
+	}
+
+	public int[] ints(String tag) throws IOException {
+		return ints(DcmHeadex.parseTag(tag));
+	}
+
+	public int doubles(String tag, double[] dst) throws IOException {
+		return doubles(DcmHeadex.parseTag(tag), dst);
+	}
+
+	public int floats(String tag, float[] dst) throws IOException {
+		return floats(DcmHeadex.parseTag(tag), dst);
+	}
+
+	public int ints(String tag, int[] dst) throws IOException {
+		return ints(DcmHeadex.parseTag(tag), dst);
+	}
+}
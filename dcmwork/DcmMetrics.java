@@ -0,0 +1,144 @@
+package dcmwork;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class DcmMetrics {
+
+	//contadores del proceso; desactivados no cuestan nada mas que leer enabled una vez por recorrido.
+	//Los eventos JFR (DcmParseEvent, DcmCacheEvent) van aparte y solo se graban con una grabacion activa
+	private static volatile boolean enabled = false;
+
+	private static final LongAdder scans = new LongAdder();
+	private static final LongAdder bytes = new LongAdder();
+	private static final LongAdder elements = new LongAdder();
+	private static final LongAdder skipped = new LongAdder();
+	private static final LongAdder nanos = new LongAdder();
+	private static final LongAdder lookups = new LongAdder();
+	private static final LongAdder lookupNanos = new LongAdder();
+	private static final LongAdder cacheHits = new LongAdder();
+	private static final LongAdder cacheMisses = new LongAdder();
+	private static final LongAdder cacheHitNanos = new LongAdder();
+
+	private DcmMetrics() {
+	}
+
+	public static boolean isEnabled() {
+		return enabled;
+	}
+
+	public static void setEnabled(boolean on) {
+		enabled = on;
+	}
+
+	//un recorrido del archivo (consulta sin indice o construccion del indice)
+	static void scan(long read, int visited, int notRead, long time) {
+		scans.increment();
+		bytes.add(read);
+		elements.add(visited);
+		skipped.add(notRead);
+		nanos.add(time);
+	}
+
+	//una consulta resuelta con el indice (parse-once), sin recorrer el archivo
+	static void lookup(long time) {
+		lookups.increment();
+		lookupNanos.add(time);
+	}
+
+	//una consulta a DcmCache; el tiempo solo se suma en los aciertos
+	static void cache(boolean hit, long time) {
+		if (hit) {
+			cacheHits.increment();
+			cacheHitNanos.add(time);
+		} else {
+			cacheMisses.increment();
+		}
+	}
+
+	public static long scans() {
+		return scans.sum();
+	}
+
+	//bytes recorridos (leidos o saltados) por todos los recorridos
+	public static long bytesRead() {
+		return bytes.sum();
+	}
+
+	public static long elementsVisited() {
+		return elements.sum();
+	}
+
+	//elementos cuyo valor se salto sin leerlo
+	public static long elementsSkipped() {
+		return skipped.sum();
+	}
+
+	//tiempo total de los recorridos; scanNanos()/scans() es la latencia media de una consulta sin indice
+	//(o de la construccion de un indice)
+	public static long scanNanos() {
+		return nanos.sum();
+	}
+
+	public static long lookups() {
+		return lookups.sum();
+	}
+
+	//tiempo total de las consultas con indice; la primera de cada lector incluye construir el indice
+	public static long lookupNanos() {
+		return lookupNanos.sum();
+	}
+
+	public static long cacheHits() {
+		return cacheHits.sum();
+	}
+
+	public static long cacheMisses() {
+		return cacheMisses.sum();
+	}
+
+	//tiempo total de los aciertos de la cache (incluida la espera a una lectura en curso)
+	public static long cacheHitNanos() {
+		return cacheHitNanos.sum();
+	}
+
+	public static void reset() {
+		scans.reset();
+		bytes.reset();
+		elements.reset();
+		skipped.reset();
+		nanos.reset();
+		lookups.reset();
+		lookupNanos.reset();
+		cacheHits.reset();
+		cacheMisses.reset();
+		cacheHitNanos.reset();
+	}
+}
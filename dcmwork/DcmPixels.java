@@ -0,0 +1,401 @@
+package dcmwork;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class DcmPixels {
+
+	//Image Pixel, CT Image y RT Dose
+	private static final int TRANSFER_SYNTAX_UID = 0x00020010;
+	private static final int SAMPLES_PER_PIXEL = 0x00280002;
+	private static final int NUMBER_OF_FRAMES = 0x00280008;
+	private static final int ROWS = 0x00280010;
+	private static final int COLUMNS = 0x00280011;
+	private static final int BITS_ALLOCATED = 0x00280100;
+	private static final int PIXEL_REPRESENTATION = 0x00280103;
+	private static final int RESCALE_INTERCEPT = 0x00281052;
+	private static final int RESCALE_SLOPE = 0x00281053;
+	private static final int DOSE_GRID_SCALING = 0x3004000E;
+	private static final int PIXEL_DATA = 0x7FE00010;
+
+	private static final String RLE = "1.2.840.10008.1.2.5";
+	private static final String JPEG = "1.2.840.10008.1.2.4";
+
+	private final int rows, columns, frames, samples, bits;
+	private final boolean signed;
+	private final double slope, intercept;
+
+	//sin comprimir: region del pixel data mapeada de solo lectura, con el orden de bytes de la sintaxis
+	private ByteBuffer data;
+
+	//RLE: region encapsulada mapeada, fragmentos (posicion y longitud del valor) y primer fragmento
+	//de cada frame; se decodifica un frame cada vez sobre el mismo array
+	private ByteBuffer encoded;
+	private int[] fragOffsets, fragLengths, frameFragments;
+	private byte[] decoded, packed;
+	private ByteBuffer frameData;
+	private int current = -1;
+
+	private DcmPixels(int rows, int columns, int frames, int samples, int bits,
+			boolean signed, double slope, double intercept) {
+		this.rows = rows;
+		this.columns = columns;
+		this.frames = frames;
+		this.samples = samples;
+		this.bits = bits;
+		this.signed = signed;
+		this.slope = slope;
+		this.intercept = intercept;
+	}
+
+	//mapea solo el valor del pixel data (7FE0,0010) del nivel superior; null si no tiene
+	static DcmPixels map(DcmHeadex headex) throws IOException {
+		DcmIndex idx = headex.index();
+		int i = idx.child(-1, PIXEL_DATA);
+		if (i<0) return null;
+
+		DcmItem ds = headex.dataset();
+		String ts = ds.value(TRANSFER_SYNTAX_UID);
+		ts = ts==null ? "" : ts.trim();
+		if (ts.startsWith(JPEG)) {
+			String msg = "DCM Image compresed.\n \n";
+			msg += "Transfer Syntax UID = "+ts;
+			throw new IOException(msg);
+		}
+
+		int rows = first(ds.ints(ROWS), 0);
+		int columns = first(ds.ints(COLUMNS), 0);
+		int frames = Math.max(first(ds.ints(NUMBER_OF_FRAMES), 1), 1);
+		int samples = Math.max(first(ds.ints(SAMPLES_PER_PIXEL), 1), 1);
+		int bits = first(ds.ints(BITS_ALLOCATED), 16);
+		boolean signed = first(ds.ints(PIXEL_REPRESENTATION), 0)==1;
+		if (bits!=8 && bits!=16 && bits!=32)
+			throw new IOException("Unsupported BitsAllocated "+bits+": "+headex.getpath());
+
+		//CT: Rescale Slope/Intercept; RT Dose: Dose Grid Scaling
+		double slope = 1, intercept = 0;
+		double[] s = ds.doubles(DOSE_GRID_SCALING);
+		if (s!=null && s.length>0 && !Double.isNaN(s[0])) {
+			slope = s[0];
+		} else {
+			s = ds.doubles(RESCALE_SLOPE);
+			if (s!=null && s.length>0 && !Double.isNaN(s[0])) slope = s[0];
+			s = ds.doubles(RESCALE_INTERCEPT);
+			if (s!=null && s.length>0 && !Double.isNaN(s[0])) intercept = s[0];
+		}
+		DcmPixels p = new DcmPixels(rows, columns, frames, samples, bits, signed, slope, intercept);
+
+		long needed = (long)rows*columns*samples*frames*(bits/8);
+		if (idx.length(i)<0) {
+			if (!ts.equals(RLE) || idx.inflateAt()>0)
+				throw new IOException("Unsupported encapsulated pixel data ("+ts+"): "+headex.getpath());
+			p.encoded = map(headex.getpath(), idx.offset(i), -1);
+			p.fragments();
+			return p;
+		}
+		if (idx.length(i)<needed)
+			throw new IOException("Pixel data shorter than "+rows+"x"+columns+"x"+frames+": "+headex.getpath());
+		//deflate no se puede mapear: se lee descomprimido
+		p.data = idx.inflateAt()>0 ? headex.entryBytes(i, (int)needed).asReadOnlyBuffer() : map(headex.getpath(), idx.offset(i), needed);
+		p.data.order(idx.littleEndian(i) ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+		return p;
+	}
+
+	//region del archivo de solo lectura (length -1: hasta el final); el mapeo sigue valido al cerrar el canal
+	private static ByteBuffer map(String path, long offset, long length) throws IOException {
+		try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			long available = ch.size()-offset;
+			if (length<0) length = available;
+			if (available<length) throw new IOException("Pixel data beyond end of file: "+path);
+			return ch.map(FileChannel.MapMode.READ_ONLY, offset, length);
+		}
+	}
+
+	private static int first(int[] v, int def) {
+		return v==null || v.length==0 ? def : v[0];
+	}
+
+	//recorre los items del pixel data encapsulado: Basic Offset Table y un fragmento por item
+	private void fragments() throws IOException {
+		encoded.order(ByteOrder.LITTLE_ENDIAN);
+		int n = 0;
+		fragOffsets = new int[frames+1];
+		fragLengths = new int[frames+1];
+		int[] items = new int[frames+1]; //posicion del item de cada fragmento
+		int[] table = null;
+		int pos = 0;
+		int first = -1; //item del primer fragmento, origen de la Basic Offset Table
+		while (pos+8<=encoded.limit()) {
+			int tag = (encoded.getShort(pos)&0xFFFF)<<16 | (encoded.getShort(pos+2)&0xFFFF);
+			if (tag==DcmIndex.SEQUENCE_DELIMITATION) break;
+			int len = encoded.getInt(pos+4);
+			if (tag!=DcmIndex.ITEM || len<0 || pos+8L+len>encoded.limit())
+				throw new IOException("Bad encapsulated pixel data item at "+pos);
+			if (table==null) {
+				table = new int[len/4];
+				for (int k=0; k<table.length; k++) table[k] = encoded.getInt(pos+8+4*k);
+			} else {
+				if (first<0) first = pos;
+				if (n==fragOffsets.length) {
+					fragOffsets = Arrays.copyOf(fragOffsets, 2*n);
+					fragLengths = Arrays.copyOf(fragLengths, 2*n);
+					items = Arrays.copyOf(items, 2*n);
+				}
+				items[n] = pos-first;
+				fragOffsets[n] = pos+8;
+				fragLengths[n] = len;
+				n++;
+			}
+			pos += 8+len;
+		}
+
+		//frame f = fragmentos [frameFragments[f], frameFragments[f+1])
+		frameFragments = new int[frames+1];
+		frameFragments[frames] = n;
+		if (n==frames) {
+			for (int f=0; f<frames; f++) frameFragments[f] = f;
+		} else if (frames==1 && n>0) {
+			frameFragments[0] = 0;
+		} else if (table!=null && table.length==frames) {
+			int k = 0;
+			for (int f=0; f<frames; f++) {
+				while (k<n && items[k]<table[f]) k++;
+				if (k==n || items[k]!=table[f]) throw new IOException("Basic Offset Table does not match the fragments");
+				frameFragments[f] = k;
+			}
+		} else {
+			throw new IOException(n+" fragments for "+frames+" frames without Basic Offset Table");
+		}
+	}
+
+	public int rows() {
+		return rows;
+	}
+
+	public int columns() {
+		return columns;
+	}
+
+	public int frames() {
+		return frames;
+	}
+
+	public int samplesPerPixel() {
+		return samples;
+	}
+
+	public int bitsAllocated() {
+		return bits;
+	}
+
+	public boolean isSigned() {
+		return signed;
+	}
+
+	//RLE: se decodifica frame a frame (la instancia no se comparte entre hilos)
+	public boolean isCompressed() {
+		return encoded!=null;
+	}
+
+	public double slope() {
+		return slope;
+	}
+
+	public double intercept() {
+		return intercept;
+	}
+
+	//valores por frame (rows*columns*samples)
+	public int frameSize() {
+		return rows*columns*samples;
+	}
+
+	//vistas crudas de todo el grid sin copiar, cada llamada con su propia posicion (solo sin comprimir)
+	public ByteBuffer bytes() {
+		if (data==null) throw new IllegalStateException("Compressed pixel data: use the frame views");
+		return data.duplicate().order(data.order());
+	}
+
+	public ShortBuffer shorts() {
+		if (bits!=16) throw new IllegalStateException("BitsAllocated is "+bits);
+		return bytes().asShortBuffer();
+	}
+
+	public IntBuffer ints() {
+		if (bits!=32) throw new IllegalStateException("BitsAllocated is "+bits);
+		return bytes().asIntBuffer();
+	}
+
+	//vista de un frame: sobre el mapeo o, en RLE, sobre el frame decodificado
+	//(valida hasta que se decodifique otro frame)
+	public ByteBuffer bytes(int frame) throws IOException {
+		if (frame<0 || frame>=frames) throw new IndexOutOfBoundsException("frame "+frame);
+		ByteBuffer b;
+		if (data!=null) {
+			int size = frameSize()*(bits/8);
+			b = data.duplicate();
+			b.limit((frame+1)*size).position(frame*size);
+			b = b.slice();
+		} else {
+			decode(frame);
+			b = frameData.duplicate();
+		}
+		return b.order(data!=null ? data.order() : ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public ShortBuffer shorts(int frame) throws IOException {
+		if (bits!=16) throw new IllegalStateException("BitsAllocated is "+bits);
+		return bytes(frame).asShortBuffer();
+	}
+
+	public IntBuffer ints(int frame) throws IOException {
+		if (bits!=32) throw new IllegalStateException("BitsAllocated is "+bits);
+		return bytes(frame).asIntBuffer();
+	}
+
+	//valor almacenado i (sin escalar), con el signo de PixelRepresentation
+	public long raw(int i) {
+		if (data!=null) return raw(data, i);
+		int n = frameSize();
+		try {
+			decode(i/n);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return raw(frameData, i%n);
+	}
+
+	private long raw(ByteBuffer b, int i) {
+		switch (bits) {
+		case 8:
+			byte v8 = b.get(i);
+			return signed ? v8 : v8&0xFF;
+		case 16:
+			short v16 = b.getShort(2*i);
+			return signed ? v16 : v16&0xFFFF;
+		default:
+			int v32 = b.getInt(4*i);
+			return signed ? v32 : v32&0xFFFFFFFFL;
+		}
+	}
+
+	//valor real (HU o Gy) calculado al leerlo
+	public double value(int i) {
+		return raw(i)*slope + intercept;
+	}
+
+	public double value(int frame, int row, int column) {
+		return value((frame*rows + row)*columns + column);
+	}
+
+	//un frame escalado sobre un array del llamador (se crea si es null o corto)
+	public float[] frame(int frame, float[] dst) throws IOException {
+		int n = frameSize();
+		if (dst==null || dst.length<n) dst = new float[n];
+		ByteBuffer b = bytes(frame);
+		for (int k=0; k<n; k++) dst[k] = (float)(raw(b, k)*slope + intercept);
+		return dst;
+	}
+
+	//RLE Lossless (PS3.5 anexo G): cabecera de 16 UL (numero de segmentos y sus offsets) y un segmento
+	//PackBits por byte de cada muestra, el mas significativo primero
+	private void decode(int frame) throws IOException {
+		if (frame==current) return;
+		if (frame<0 || frame>=frames) throw new IndexOutOfBoundsException("frame "+frame);
+		int bytes = bits/8;
+		int pixels = rows*columns;
+		if (decoded==null) {
+			decoded = new byte[pixels*samples*bytes];
+			frameData = ByteBuffer.wrap(decoded).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		//el frame en un solo fragmento se lee del mapeo; si esta partido se junta en packed
+		ByteBuffer src;
+		int from = frameFragments[frame], to = frameFragments[frame+1];
+		int start, length;
+		if (to-from==1) {
+			src = encoded;
+			start = fragOffsets[from];
+			length = fragLengths[from];
+		} else {
+			length = 0;
+			for (int k=from; k<to; k++) length += fragLengths[k];
+			if (packed==null || packed.length<length) packed = new byte[length];
+			int p = 0;
+			for (int k=from; k<to; k++) {
+				encoded.get(fragOffsets[k], packed, p, fragLengths[k]);
+				p += fragLengths[k];
+			}
+			src = ByteBuffer.wrap(packed).order(ByteOrder.LITTLE_ENDIAN);
+			start = 0;
+		}
+
+		if (length<64) throw new IOException("RLE frame "+frame+" without header");
+		int segments = src.getInt(start);
+		if (segments!=samples*bytes || segments>15)
+			throw new IOException("RLE frame "+frame+": "+segments+" segments for "+samples+"x"+bits+" bits");
+		current = -1;
+		for (int s=0; s<segments; s++) {
+			int a = src.getInt(start+4+4*s);
+			int b = s+1<segments ? src.getInt(start+8+4*s) : length;
+			if (a<64 || b<a || b>length) throw new IOException("RLE frame "+frame+": bad segment offset");
+			//muestra s/bytes, byte s%bytes contando desde el mas significativo; salida en littleEndian
+			int sample = s/bytes;
+			int pos = sample*bytes + (bytes-1-s%bytes);
+			int n = unpack(src, start+a, start+b, pos, samples*bytes, pixels);
+			if (n<pixels) throw new IOException("RLE frame "+frame+": segment "+s+" too short");
+		}
+		current = frame;
+	}
+
+	//PackBits sobre decoded desde pos con paso stride; devuelve los bytes escritos
+	private int unpack(ByteBuffer src, int i, int end, int pos, int stride, int count) {
+		int n = 0;
+		while (i<end && n<count) {
+			int h = src.get(i++);
+			if (h>=0) {
+				for (int k=0; k<=h && i<end && n<count; k++, n++) decoded[pos+n*stride] = src.get(i++);
+			} else if (h!=-128 && i<end) {
+				byte v = src.get(i++);
+				for (int k=0; k<=-h && n<count; k++, n++) decoded[pos+n*stride] = v;
+			}
+		}
+		return n;
+	}
+}
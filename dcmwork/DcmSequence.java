@@ -0,0 +1,91 @@
+package dcmwork;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public class DcmSequence implements Iterable<DcmItem> {
+
+	private final DcmHeadex headex;
+	private final DcmIndex index;
+	private final int entry; //entrada de la secuencia en el indice
+
+	private int[] items; //entradas de los items, se buscan al primer acceso
+
+	DcmSequence(DcmHeadex headex, DcmIndex index, int entry) {
+		this.headex = headex;
+		this.index = index;
+		this.entry = entry;
+	}
+
+	private int[] items() {
+		if (items == null) {
+			int n = 0;
+			int end = index.end(entry);
+			for (int j=entry+1; j<end; j=index.end(j)) {
+				if (index.tag(j) == DcmIndex.ITEM) n++;
+			}
+			int[] found = new int[n];
+			n = 0;
+			for (int j=entry+1; j<end; j=index.end(j)) {
+				if (index.tag(j) == DcmIndex.ITEM) found[n++] = j;
+			}
+			items = found;
+		}
+		return items;
+	}
+
+	public int tag() {
+		return index.tag(entry);
+	}
+
+	public int size() {
+		return items().length;
+	}
+
+	public DcmItem item(int i) {
+		return new DcmItem(headex, index, items()[i]);
+	}
+
+	public Iterator<DcmItem> iterator() {
+		return new Iterator<DcmItem>() {
+			private int i = 0;
+
+			public boolean hasNext() {
+				return i < size();
+			}
+
+			public DcmItem next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				return item(i++);
+			}
+		};
+	}
+}
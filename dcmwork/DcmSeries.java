@@ -0,0 +1,139 @@
+package dcmwork;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class DcmSeries {
+
+	private static final int MODALITY = 0x00080060;
+	private static final int IMAGE_POSITION = 0x00200032;
+	private static final int IMAGE_ORIENTATION = 0x00200037;
+	private static final int INSTANCE_NUMBER = 0x00200013;
+
+	private DcmSeries() {
+	}
+
+	//Lee en paralelo los cortes CT de un directorio y los devuelve ordenados a lo largo
+	//de la normal del corte (ImagePositionPatient proyectada sobre ImageOrientationPatient)
+	//===========================================================
+	public static DcmDataset[] loadCT(String dir) throws IOException {
+		return loadCT(dir, ForkJoinPool.commonPool());
+	}
+
+	//con el ejecutor del llamador (p.e. un pool propio o hilos virtuales donde los haya)
+	public static DcmDataset[] loadCT(String dir, ExecutorService pool) throws IOException {
+		File[] files = new File(dir).listFiles();
+		if (files == null) throw new IOException("Not a directory: " + dir);
+		List<Callable<DcmDataset>> tasks = new ArrayList<Callable<DcmDataset>>();
+		for (final File file : files) {
+			if (!file.isFile()) continue;
+			tasks.add(new Callable<DcmDataset>() {
+				public DcmDataset call() {
+					//un archivo que no es DICOM o esta corrupto no tumba la serie: se salta
+					if (!DcmArchive.isDicom(file.getPath())) return null;
+					try {
+						return DcmDataset.read(file.getPath());
+					} catch (IOException | RuntimeException e) {
+						return null;
+					}
+				}
+			});
+		}
+
+		List<DcmDataset> slices = new ArrayList<DcmDataset>();
+		for (DcmDataset ds : all(pool, tasks, "CT series load interrupted: " + dir)) {
+			if (ds == null) continue;
+			if ("CT".equals(ds.value(MODALITY)) && ds.contains(IMAGE_POSITION)) slices.add(ds);
+		}
+		return sort(slices.toArray(new DcmDataset[slices.size()]));
+	}
+
+	//Ejecuta las tareas en el pool y devuelve sus resultados en el mismo orden. El fallo de una tarea
+	//llega como su IOException (o envuelto en una) y la interrupcion como IOException con el mensaje dado
+	//===========================================================
+	public static <T> List<T> all(ExecutorService pool, List<? extends Callable<T>> tasks, String interrupted)
+			throws IOException {
+		List<T> results = new ArrayList<T>(tasks.size());
+		try {
+			for (Future<T> f : pool.invokeAll(tasks)) results.add(f.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(interrupted, e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) throw (IOException) cause;
+			throw new IOException(cause);
+		}
+		return results;
+	}
+
+	//ordena por posicion a lo largo de la normal y, si coincide, por InstanceNumber
+	public static DcmDataset[] sort(DcmDataset[] slices) throws IOException {
+		if (slices.length < 2) return slices;
+		double[] normal = {0, 0, 1};
+		double[] iop = slices[0].doubles(IMAGE_ORIENTATION);
+		if (iop != null && iop.length == 6) {
+			normal[0] = iop[1]*iop[5] - iop[2]*iop[4];
+			normal[1] = iop[2]*iop[3] - iop[0]*iop[5];
+			normal[2] = iop[0]*iop[4] - iop[1]*iop[3];
+		}
+
+		final double[] key = new double[slices.length];
+		final int[] number = new int[slices.length];
+		Integer[] order = new Integer[slices.length];
+		for (int i=0; i<slices.length; i++) {
+			double[] ipp = slices[i].doubles(IMAGE_POSITION);
+			if (ipp != null && ipp.length == 3) key[i] = ipp[0]*normal[0] + ipp[1]*normal[1] + ipp[2]*normal[2];
+			int[] n = slices[i].ints(INSTANCE_NUMBER);
+			number[i] = n != null && n.length > 0 ? n[0] : 0;
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int c = Double.compare(key[a], key[b]);
+				return c != 0 ? c : Integer.compare(number[a], number[b]);
+			}
+		});
+
+		DcmDataset[] sorted = new DcmDataset[slices.length];
+		for (int i=0; i<sorted.length; i++) sorted[i] = slices[order[i]];
+		return sorted;
+	}
+}
@@ -0,0 +1,93 @@
+package dcmwork;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+final class DcmTagMap {
+
+	//tabla de direccionamiento abierto tag -> posicion, sin objetos por entrada
+	private int[] keys;
+	private int[] slots; //posicion+1, 0 = hueco libre
+	private int mask;
+	private int shift;
+	private int size = 0;
+
+	DcmTagMap(int expected) {
+		int n = 8;
+		while (n < 2*expected) n <<= 1;
+		keys = new int[n];
+		slots = new int[n];
+		mask = n-1;
+		shift = 32-Integer.numberOfTrailingZeros(n);
+	}
+
+	//mezcla de Fibonacci: los tags de un mismo grupo solo difieren en los bits bajos
+	private int hash(int tag) {
+		return (tag * 0x9E3779B9) >>> shift;
+	}
+
+	int size() {
+		return size;
+	}
+
+	//posicion del tag, -1 si no esta
+	int get(int tag) {
+		for (int h=hash(tag); slots[h]!=0; h=(h+1)&mask) {
+			if (keys[h] == tag) return slots[h]-1;
+		}
+		return -1;
+	}
+
+	//guarda la posicion si el tag no estaba; devuelve la posicion que queda
+	int putIfAbsent(int tag, int slot) {
+		int h = hash(tag);
+		for (; slots[h]!=0; h=(h+1)&mask) {
+			if (keys[h] == tag) return slots[h]-1;
+		}
+		keys[h] = tag;
+		slots[h] = slot+1;
+		if (++size*2 > keys.length) grow();
+		return slot;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldSlots = slots;
+		keys = new int[2*oldKeys.length];
+		slots = new int[2*oldKeys.length];
+		mask = keys.length-1;
+		shift--;
+		for (int i=0; i<oldKeys.length; i++) {
+			if (oldSlots[i] == 0) continue;
+			int h = hash(oldKeys[i]);
+			while (slots[h] != 0) h = (h+1)&mask;
+			keys[h] = oldKeys[i];
+			slots[h] = oldSlots[i];
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package dcmwork;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+final class DcmText {
+
+	//potencias de 10 exactas en double
+	private static final double[] POW10 = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+	private static final long MAX_EXACT = 1L<<53;
+
+	private DcmText() {
+	}
+
+	private static boolean blank(byte c) {
+		return c==' ' || c==0;
+	}
+
+	//numero de valores separados por '\' en b[0..len), 0 si esta vacio
+	static int count(byte[] b, int len) {
+		while (len>0 && blank(b[len-1])) len--;
+		if (len==0) return 0;
+		int n = 1;
+		for (int i=0; i<len; i++) {
+			if (b[i]=='\\') n++;
+		}
+		return n;
+	}
+
+	//DS (o IS) en b[from..to) sin pasar por String; NaN si esta vacio o no es un numero
+	static double parseDouble(byte[] b, int from, int to) {
+		while (from<to && blank(b[from])) from++;
+		while (to>from && blank(b[to-1])) to--;
+		if (from==to) return Double.NaN;
+
+		int i = from;
+		boolean negative = false;
+		if (b[i]=='-' || b[i]=='+') {
+			negative = b[i]=='-';
+			i++;
+		}
+		long mant = 0;
+		int exp = 0;
+		int digits = 0;
+		boolean point = false;
+		int mantStart = i;
+		for (; i<to; i++) {
+			int c = b[i];
+			if (c>='0' && c<='9') {
+				if (digits<18) {
+					mant = mant*10 + (c-'0');
+					if (mant!=0) digits++;
+					if (point) exp--;
+				} else if (!point) {
+					exp++;
+				}
+			} else if (c=='.' && !point) {
+				point = true;
+			} else {
+				break;
+			}
+		}
+		//sin ninguna cifra ("-", ".", "-.e5") no es un numero
+		if (i==mantStart || (point && i==mantStart+1)) return Double.NaN;
+		if (i<to && (b[i]=='e' || b[i]=='E')) {
+			i++;
+			boolean eneg = false;
+			if (i<to && (b[i]=='-' || b[i]=='+')) {
+				eneg = b[i]=='-';
+				i++;
+			}
+			int e = 0;
+			int start = i;
+			for (; i<to && b[i]>='0' && b[i]<='9'; i++) {
+				if (e<10000) e = e*10 + (b[i]-'0');
+			}
+			if (i==start) return slow(b, from, to);
+			exp += eneg ? -e : e;
+		}
+		if (i<to) return slow(b, from, to);
+
+		//camino rapido: mantisa y potencia exactas, una sola operacion redondeada
+		if (mant<MAX_EXACT && exp>=-22 && exp<=22) {
+			double v = exp<0 ? mant/POW10[-exp] : mant*POW10[exp];
+			return negative ? -v : v;
+		}
+		return slow(b, from, to);
+	}
+
+	//IS en b[from..to); admite valores con decimales redondeando hacia cero
+	static int parseInt(byte[] b, int from, int to) {
+		while (from<to && blank(b[from])) from++;
+		while (to>from && blank(b[to-1])) to--;
+		if (from==to) return 0;
+
+		int i = from;
+		boolean negative = false;
+		if (b[i]=='-' || b[i]=='+') {
+			negative = b[i]=='-';
+			i++;
+		}
+		if (i==to || to-i>9) return (int)parseDouble(b, from, to);
+		int v = 0;
+		for (; i<to; i++) {
+			int c = b[i];
+			if (c<'0' || c>'9') return (int)parseDouble(b, from, to);
+			v = v*10 + (c-'0');
+		}
+		return negative ? -v : v;
+	}
+
+	//texto mal formado o datos binarios con un VR desconocido: NaN, como un valor vacio
+	private static double slow(byte[] b, int from, int to) {
+		try {
+			return Double.parseDouble(new String(b, from, to-from, StandardCharsets.ISO_8859_1));
+		} catch (NumberFormatException e) {
+			return Double.NaN;
+		}
+	}
+}
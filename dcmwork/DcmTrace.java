@@ -0,0 +1,55 @@
+package dcmwork;
+
+import java.io.PrintWriter;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public interface DcmTrace {
+
+	//cada elemento recorrido: tag, VR (IMPLICIT_VR si no la lleva), longitud (-1 indefinida)
+	//y valor como texto ("" en secuencias, items y pixel data)
+	void element(int tag, int vr, int length, String value);
+
+	//traza de texto con el formato del antiguo temp/dicombit.txt
+	static DcmTrace to(final PrintWriter out) {
+		return new DcmTrace() {
+			public void element(int tag, int vr, int length, String value) {
+				out.print("long: ");
+				out.print(length);
+				out.print(", tag: ");
+				out.print(String.format("%08X", tag));
+				out.print(", VR: ");
+				if (vr==DcmVisitor.IMPLICIT_VR) out.print("XX");
+				else out.print(new char[] {(char)(vr>>8), (char)(vr&0xFF)});
+				out.print(", value: ");
+				out.println(value);
+			}
+		};
+	}
+}
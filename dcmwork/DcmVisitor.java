@@ -0,0 +1,55 @@
+package dcmwork;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public interface DcmVisitor {
+
+	//respuestas de element()
+	int SKIP = 0;    //no entrar en la secuencia o item (en elementos simples, seguir)
+	int DESCEND = 1; //recorrer el contenido de la secuencia o item
+	int STOP = 2;    //terminar el recorrido
+
+	//VR de los elementos en VR implicito que no estan en el diccionario ('--')
+	int IMPLICIT_VR = 0x2D2D;
+
+	//un elemento: tag, VR (dos caracteres en un int, p.e. 0x4453 "DS"), longitud (-1 indefinida),
+	//vista de los bytes del valor y numero de secuencias que lo contienen.
+	//La vista es null en secuencias e items (y en el pixel data si no se lee mapeado) y solo es valida
+	//durante la llamada
+	int element(int tag, int vr, int length, ByteBuffer value, int depth) throws IOException;
+
+	//final de una secuencia o item en el que se ha entrado, tenga o no delimitador en el archivo;
+	//STOP termina el recorrido
+	default int end(int tag, int depth) throws IOException {
+		return DESCEND;
+	}
+}
@@ -0,0 +1,328 @@
+package dcmwork;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public final class DcmWriter implements Closeable {
+
+	private static final String EXPLICIT_LITTLE_ENDIAN = "1.2.840.10008.1.2.1";
+	private static final String IMPLEMENTATION_CLASS_UID = "2.25.113059749145936325402354257176981405696";
+	private static final String IMPLEMENTATION_VERSION = "MUKA";
+	private static final int PIXEL_DATA_TAG = 0x7FE00010;
+
+	//VRs (dos caracteres en un int, como en DcmHeadex y DcmVisitor)
+	public static final int AE=0x4145, AS=0x4153, AT=0x4154, CS=0x4353, DA=0x4441, DS=0x4453, DT=0x4454,
+		FD=0x4644, FL=0x464C, IS=0x4953, LO=0x4C4F, LT=0x4C54, PN=0x504E, SH=0x5348, SL=0x534C,
+		SS=0x5353, ST=0x5354, TM=0x544D, UI=0x5549, UL=0x554C, US=0x5553, UT=0x5554,
+		OB=0x4F42, OW=0x4F57, SQ=0x5351, UN=0x554E;
+
+	//bloques del pixel data convertidos por cada escritura agrupada
+	private static final int CHUNK = 1<<18;
+	private static final int CHUNKS = 4;
+
+	private final File file, tmp;
+	private final FileChannel channel;
+	private final Item dataset = new Item();
+	private boolean written;
+
+	//Archivo Part 10 en explicit VR little endian: el dataset se va guardando en memoria (solo
+	//cabeceras y secuencias) y se escribe, seguido del pixel data, en un temporal oculto que
+	//close() mueve al destino
+	//===========================================================
+	public DcmWriter(String path, String sopClass, String sopInstance) throws IOException {
+		file = new File(path);
+		tmp = new File(file.getAbsoluteFile().getParentFile(), "." + file.getName() + ".tmp");
+		channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+			StandardOpenOption.WRITE);
+
+		//meta header: la longitud del grupo 0002 se calcula sobre el resto de elementos del grupo
+		Item meta = new Item();
+		meta.bytes(0x00020001, OB, new byte[] {0, 1});
+		meta.string(0x00020002, UI, sopClass);
+		meta.string(0x00020003, UI, sopInstance);
+		meta.string(0x00020010, UI, EXPLICIT_LITTLE_ENDIAN);
+		meta.string(0x00020012, UI, IMPLEMENTATION_CLASS_UID);
+		meta.string(0x00020013, SH, IMPLEMENTATION_VERSION);
+		Item group = new Item();
+		group.ints(0x00020000, UL, meta.size());
+		ByteBuffer head = ByteBuffer.allocate(132 + group.size() + meta.size());
+		head.position(128);
+		head.put((byte)'D').put((byte)'I').put((byte)'C').put((byte)'M');
+		head.put(group.buffer()).put(meta.buffer()).flip();
+		write(new ByteBuffer[] {head});
+	}
+
+	//elementos del nivel superior, en orden de tag
+	public Item dataset() {
+		return dataset;
+	}
+
+	//Pixel data de 16 o 32 bits sin signo desde un FloatBuffer (array o memoria fuera del heap),
+	//detras del dataset y como ultimo elemento: se convierte por bloques con el factor de escala
+	//(valor = pixel*scale) y cada grupo de bloques va en una escritura agrupada (la primera con
+	//el dataset), sin tener el archivo entero en memoria
+	//===========================================================
+	public void pixels(FloatBuffer values, double scale, int bits) throws IOException {
+		if (bits!=16 && bits!=32) throw new IllegalArgumentException("Pixel data of 16 or 32 bits: " + bits);
+		if (written) throw new IllegalStateException("Pixel data already written");
+		int bytes = bits/8;
+		long length = (long)values.remaining()*bytes;
+		if (length>0xFFFFFFFEL) throw new IOException("Pixel data too large: " + length + " bytes");
+		dataset.header(PIXEL_DATA_TAG, OW, (int)length);
+		written = true;
+		ByteBuffer head = dataset.buffer();
+
+		double top = bits==16 ? 0xFFFF : 0xFFFFFFFFL;
+		double inverse = 1/scale;
+		ByteBuffer[] chunks = new ByteBuffer[CHUNKS];
+		for (int c=0; c<CHUNKS; c++) chunks[c] = ByteBuffer.allocateDirect(CHUNK).order(ByteOrder.LITTLE_ENDIAN);
+		int from = values.position(), to = values.limit();
+		boolean first = true;
+		while (from<to || first) {
+			int used = 0;
+			for (int c=0; c<CHUNKS && from<to; c++, used++) {
+				ByteBuffer b = chunks[c];
+				b.clear();
+				int n = Math.min(CHUNK/bytes, to-from);
+				for (int k=0; k<n; k++) {
+					double v = Math.rint(values.get(from+k)*inverse);
+					if (!(v>0)) v = 0; //tambien NaN
+					else if (v>top) v = top;
+					if (bytes==2) b.putShort((short)(int)v);
+					else b.putInt((int)(long)v);
+				}
+				b.flip();
+				from += n;
+			}
+			ByteBuffer[] gather = first ? new ByteBuffer[used+1] : Arrays.copyOf(chunks, used);
+			if (first) {
+				gather[0] = head;
+				System.arraycopy(chunks, 0, gather, 1, used);
+				first = false;
+			}
+			write(gather);
+		}
+	}
+
+	//factor de escala representable en DS para que el maximo ocupe todo el rango de bits
+	public static double scaling(FloatBuffer values, int bits) {
+		float max = 0;
+		for (int i=values.position(); i<values.limit(); i++) {
+			float v = values.get(i);
+			if (v>max) max = v;
+		}
+		double top = bits==16 ? 0xFFFF : 0xFFFFFFFFL;
+		if (!(max>0)) return 1;
+		//el redondeo a DS puede dejar el maximo un poco por encima del rango: pixels() lo recorta
+		return Double.parseDouble(decimal(max/top));
+	}
+
+	//Escribe el dataset (si no se ha escrito con el pixel data) y mueve el archivo a su destino
+	//===========================================================
+	public void close() throws IOException {
+		try {
+			if (!written) {
+				written = true;
+				write(new ByteBuffer[] {dataset.buffer()});
+			}
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	//descarta el archivo temporal sin tocar el destino
+	public void abort() throws IOException {
+		try {
+			channel.close();
+		} finally {
+			Files.deleteIfExists(tmp.toPath());
+		}
+	}
+
+	private void write(ByteBuffer[] buffers) throws IOException {
+		long left = 0;
+		for (ByteBuffer b : buffers) left += b.remaining();
+		while (left>0) left -= channel.write(buffers);
+	}
+
+	//UID nuevo bajo la raiz 2.25 (UUID en decimal)
+	public static String uid() {
+		UUID u = UUID.randomUUID();
+		byte[] b = ByteBuffer.allocate(16).putLong(u.getMostSignificantBits()).putLong(u.getLeastSignificantBits()).array();
+		return "2.25." + new BigInteger(1, b);
+	}
+
+	//DS de como mucho 16 caracteres
+	public static String decimal(double v) {
+		if (Double.isNaN(v) || Double.isInfinite(v)) throw new IllegalArgumentException("DS value: " + v);
+		if (v==0) return "0";
+		for (int p=16; p>0; p--) {
+			BigDecimal d = new BigDecimal(v).round(new MathContext(p)).stripTrailingZeros();
+			String plain = d.toPlainString();
+			if (plain.length()<=16) return plain;
+			String s = d.toString();
+			if (s.length()<=16) return s;
+		}
+		throw new IllegalArgumentException("DS value: " + v);
+	}
+
+	//Un dataset o item: elementos en explicit VR little endian, en orden de tag, con longitudes definidas
+	public static final class Item {
+		private ByteBuffer out = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+		private int last = -1;
+		private boolean first = true;
+
+		//texto: AE, AS, CS, DA, DS, DT, IS, LO, LT, PN, SH, ST, TM, UI, UT; null vale vacio
+		public Item string(int tag, int vr, String value) {
+			byte[] b = value==null ? new byte[0] : value.getBytes(StandardCharsets.ISO_8859_1);
+			int n = b.length + (b.length&1);
+			element(tag, vr, n);
+			out.put(b);
+			if (n>b.length) out.put(vr==UI ? (byte)0 : (byte)' ');
+			return this;
+		}
+
+		//varios valores de texto separados por '\'
+		public Item strings(int tag, int vr, String... values) {
+			return string(tag, vr, String.join("\\", values));
+		}
+
+		//DS (texto), FD o FL
+		public Item doubles(int tag, int vr, double... values) {
+			if (vr==DS) {
+				String[] s = new String[values.length];
+				for (int i=0; i<s.length; i++) s[i] = decimal(values[i]);
+				return strings(tag, DS, s);
+			}
+			int size = vr==FD ? 8 : 4;
+			element(tag, vr, values.length*size);
+			for (double v : values) {
+				if (vr==FD) out.putDouble(v);
+				else out.putFloat((float)v);
+			}
+			return this;
+		}
+
+		//IS (texto), US, SS, UL, SL o AT (el tag en un int)
+		public Item ints(int tag, int vr, int... values) {
+			if (vr==IS) {
+				String[] s = new String[values.length];
+				for (int i=0; i<s.length; i++) s[i] = Integer.toString(values[i]);
+				return strings(tag, IS, s);
+			}
+			int size = vr==US || vr==SS ? 2 : 4;
+			element(tag, vr, values.length*size);
+			for (int v : values) {
+				if (size==2) out.putShort((short)v);
+				else if (vr==AT) out.putShort((short)(v>>>16)).putShort((short)v);
+				else out.putInt(v);
+			}
+			return this;
+		}
+
+		//OB u otros valores binarios ya codificados
+		public Item bytes(int tag, int vr, byte[] value) {
+			int n = value.length + (value.length&1);
+			element(tag, vr, n);
+			out.put(value);
+			if (n>value.length) out.put((byte)0);
+			return this;
+		}
+
+		//secuencia e items con longitud definida
+		public Item sequence(int tag, Item... items) {
+			int length = 0;
+			for (Item i : items) length += 8 + i.size();
+			element(tag, SQ, length);
+			for (Item i : items) {
+				out.putShort((short)0xFFFE).putShort((short)0xE000).putInt(i.size());
+				out.put(i.buffer());
+			}
+			return this;
+		}
+
+		//cabecera y espacio para el valor
+		private void element(int tag, int vr, int length) {
+			header(tag, vr, length);
+			reserve(length);
+		}
+
+		//solo la cabecera (el pixel data se escribe aparte)
+		void header(int tag, int vr, int length) {
+			if (!first && Integer.compareUnsigned(tag, last)<=0)
+				throw new IllegalArgumentException(String.format("Tag %08X after %08X", tag, last));
+			first = false;
+			last = tag;
+			boolean wide = vr==OB || vr==OW || vr==SQ || vr==UN || vr==UT;
+			if (!wide && length>0xFFFF) throw new IllegalArgumentException(String.format("Value of %08X too long: %d", tag, length));
+			reserve(12);
+			out.putShort((short)(tag>>>16)).putShort((short)tag);
+			out.put((byte)(vr>>>8)).put((byte)vr);
+			if (wide) out.putShort((short)0).putInt(length);
+			else out.putShort((short)length);
+		}
+
+		private void reserve(int n) {
+			if (out.remaining()>=n) return;
+			ByteBuffer b = ByteBuffer.allocate(Math.max(out.capacity()*2, out.position()+n)).order(ByteOrder.LITTLE_ENDIAN);
+			out.flip();
+			b.put(out);
+			out = b;
+		}
+
+		int size() {
+			return out.position();
+		}
+
+		//copia de solo lectura de lo escrito
+		ByteBuffer buffer() {
+			ByteBuffer b = out.duplicate();
+			b.flip();
+			return b;
+		}
+	}
+}
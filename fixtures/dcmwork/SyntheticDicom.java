@@ -0,0 +1,395 @@
+package dcmwork;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * MUKA is a program to Calculate the Monitor Units or the Dose in an independent
+ * way of the original Planing System in Radiotherapy Treatments
+ *  
+ * MUKA is designed to be full DICOM compatible and able to calculate IMRTs (S&S) and use
+ * a simplified Collapsed Cone algorithm
+ * 
+ *  Copyright (C) 2017 Carlos Pino Len
+ *  
+ *  email: carlos.pinoleon@gmail.com
+ * 
+*	This file is part of MUKA.
+*
+*	MUKA is free software: you can redistribute it and/or modify
+*	it under the terms of the GNU General Public License as published by
+*	the Free Software Foundation, either version 3 of the License, or
+*	any later version.
+*
+*	MUKA is distributed in the hope that it will be useful,
+*	but WITHOUT ANY WARRANTY; without even the implied warranty of
+*	MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*	GNU General Public License for more details.
+*
+*	You should have received a copy of the GNU General Public License
+*	along with MUKA.  If not, see <http://www.gnu.org/licenses/>.
+**/
+
+
+public class SyntheticDicom {
+
+	public static final String IMPLICIT_LE = "1.2.840.10008.1.2";
+	public static final String EXPLICIT_LE = "1.2.840.10008.1.2.1";
+	public static final String EXPLICIT_BE = "1.2.840.10008.1.2.2";
+
+	private static final String RT_PLAN = "1.2.840.10008.5.1.4.1.1.481.5";
+	private static final String RT_STRUCT = "1.2.840.10008.5.1.4.1.1.481.3";
+	private static final String CT_IMAGE = "1.2.840.10008.5.1.4.1.1.2";
+
+	//corpus de los benchmarks: nombre -> sintaxis y longitudes de secuencia
+	static final String[] SYNTAXES = {"exp_le", "imp_le", "exp_be", "exp_le_def"};
+	static final int CT_SLICES = 64;
+
+	private final String transferSyntax;
+	private final boolean explicit;
+	private final boolean little;
+	private final boolean definedLength; //secuencias e items con longitud definida
+
+	public SyntheticDicom(String transferSyntax, boolean definedLength) {
+		this.transferSyntax = transferSyntax;
+		this.explicit = !transferSyntax.equals(IMPLICIT_LE);
+		this.little = !transferSyntax.equals(EXPLICIT_BE);
+		this.definedLength = definedLength;
+	}
+
+	//escritura de bajo nivel
+
+	private static void short16(ByteArrayOutputStream o, int v, boolean le) {
+		if (le) {
+			o.write(v);
+			o.write(v>>8);
+		} else {
+			o.write(v>>8);
+			o.write(v);
+		}
+	}
+
+	private static void int32(ByteArrayOutputStream o, int v, boolean le) {
+		if (le) {
+			short16(o, v, true);
+			short16(o, v>>>16, true);
+		} else {
+			short16(o, v>>>16, false);
+			short16(o, v, false);
+		}
+	}
+
+	private static void element(ByteArrayOutputStream o, int tag, String vr, byte[] value, boolean expl, boolean le) {
+		short16(o, tag>>>16, le);
+		short16(o, tag, le);
+		if (expl) {
+			o.write(vr.charAt(0));
+			o.write(vr.charAt(1));
+			if (vr.equals("OB") || vr.equals("OW") || vr.equals("SQ") || vr.equals("UN")) {
+				short16(o, 0, le);
+				int32(o, value.length, le);
+			} else {
+				short16(o, value.length, le);
+			}
+		} else {
+			int32(o, value.length, le);
+		}
+		o.write(value, 0, value.length);
+	}
+
+	private void element(ByteArrayOutputStream o, int tag, String vr, byte[] value) {
+		element(o, tag, vr, value, explicit, little);
+	}
+
+	//texto con relleno par (0x00 en UI, espacio en el resto)
+	private static byte[] text(String s, String vr) {
+		if ((s.length()&1)!=0) s += vr.equals("UI") ? "\0" : " ";
+		return s.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+	private void string(ByteArrayOutputStream o, int tag, String vr, String s) {
+		element(o, tag, vr, text(s, vr));
+	}
+
+	private void us(ByteArrayOutputStream o, int tag, int v) {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		short16(b, v, little);
+		element(o, tag, "US", b.toByteArray());
+	}
+
+	//FL en el orden de bytes del archivo
+	private void fl(ByteArrayOutputStream o, int tag, float v) {
+		ByteArrayOutputStream b = new ByteArrayOutputStream();
+		int32(b, Float.floatToIntBits(v), little);
+		element(o, tag, "FL", b.toByteArray());
+	}
+
+	//DS multivalor con como mucho tres decimales
+	static String ds(double... v) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<v.length; i++) {
+			if (i>0) sb.append('\\');
+			sb.append(Math.round(v[i]*1000)/1000.0);
+		}
+		return sb.toString();
+	}
+
+	private void sequence(ByteArrayOutputStream o, int tag, byte[]... items) {
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		for (byte[] item : items) {
+			short16(body, 0xFFFE, little);
+			short16(body, 0xE000, little);
+			int32(body, definedLength ? item.length : -1, little);
+			body.write(item, 0, item.length);
+			if (!definedLength) {
+				short16(body, 0xFFFE, little);
+				short16(body, 0xE00D, little);
+				int32(body, 0, little);
+			}
+		}
+		short16(o, tag>>>16, little);
+		short16(o, tag, little);
+		if (explicit) {
+			o.write('S');
+			o.write('Q');
+			short16(o, 0, little);
+		}
+		int32(o, definedLength ? body.size() : -1, little);
+		o.write(body.toByteArray(), 0, body.size());
+		if (!definedLength) {
+			short16(o, 0xFFFE, little);
+			short16(o, 0xE0DD, little);
+			int32(o, 0, little);
+		}
+	}
+
+	private static byte[] bytes(ByteArrayOutputStream o) {
+		return o.toByteArray();
+	}
+
+	//preambulo, "DICM" y meta header (siempre explicito littleEndian)
+	private ByteArrayOutputStream header(String sopClass, String sopInstance) {
+		ByteArrayOutputStream group = new ByteArrayOutputStream();
+		element(group, 0x00020001, "OB", new byte[] {0, 1}, true, true);
+		element(group, 0x00020002, "UI", text(sopClass, "UI"), true, true);
+		element(group, 0x00020003, "UI", text(sopInstance, "UI"), true, true);
+		element(group, 0x00020010, "UI", text(transferSyntax, "UI"), true, true);
+		element(group, 0x00020012, "UI", text("1.2.3.4", "UI"), true, true);
+
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write(new byte[128], 0, 128);
+		o.write('D');
+		o.write('I');
+		o.write('C');
+		o.write('M');
+		ByteArrayOutputStream length = new ByteArrayOutputStream();
+		int32(length, group.size(), true);
+		element(o, 0x00020000, "UL", bytes(length), true, true);
+		o.write(group.toByteArray(), 0, group.size());
+
+		string(o, 0x00080016, "UI", sopClass);
+		string(o, 0x00080018, "UI", sopInstance);
+		return o;
+	}
+
+	//RT Plan de beams x controlPoints con leafPairs pares de laminas
+	public byte[] plan(int beams, int controlPoints, int leafPairs) {
+		ByteArrayOutputStream o = header(RT_PLAN, "1.2.3.9");
+		string(o, 0x00080060, "CS", "RTPLAN");
+		string(o, 0x00100010, "PN", "DOE^JOHN");
+		string(o, 0x00100020, "LO", "PAT001");
+		string(o, 0x0020000D, "UI", "1.2.3.100");
+		string(o, 0x300A0002, "SH", "PLAN1");
+
+		ByteArrayOutputStream dose = new ByteArrayOutputStream();
+		string(dose, 0x300A0012, "IS", "1");
+		string(dose, 0x300A0018, "DS", ds(1.5, -20.25, 3));
+		sequence(o, 0x300A0010, bytes(dose));
+
+		ByteArrayOutputStream fraction = new ByteArrayOutputStream();
+		string(fraction, 0x300A0071, "IS", "1");
+		string(fraction, 0x300A0078, "IS", "30");
+		string(fraction, 0x300A0080, "IS", ""+beams);
+		byte[][] refBeams = new byte[beams][];
+		for (int b=0; b<beams; b++) {
+			ByteArrayOutputStream rb = new ByteArrayOutputStream();
+			string(rb, 0x300A0086, "DS", ds(100+b*10.5));
+			//profundidad, profundidad equivalente y DFS del punto de dosis del campo
+			fl(rb, 0x300A0088, 50+b);
+			fl(rb, 0x300A0089, 48.5f+b);
+			fl(rb, 0x300A008A, 950-b);
+			string(rb, 0x300A008B, "CS", "BEAM_LEVEL");
+			string(rb, 0x300C0006, "IS", ""+(b+1));
+			refBeams[b] = bytes(rb);
+		}
+		sequence(fraction, 0x300C0004, refBeams);
+		sequence(o, 0x300A0070, bytes(fraction));
+
+		byte[][] beamItems = new byte[beams][];
+		for (int b=0; b<beams; b++) {
+			ByteArrayOutputStream beam = new ByteArrayOutputStream();
+			string(beam, 0x300A00B2, "SH", "TB1");
+			string(beam, 0x300A00C0, "IS", ""+(b+1));
+			string(beam, 0x300A00C2, "LO", "B"+(b+1));
+			string(beam, 0x300A00C6, "CS", "PHOTON");
+			string(beam, 0x300A0110, "IS", ""+controlPoints);
+			byte[][] cps = new byte[controlPoints][];
+			for (int c=0; c<controlPoints; c++) {
+				ByteArrayOutputStream cp = new ByteArrayOutputStream();
+				string(cp, 0x300A0112, "IS", ""+c);
+				if (c==0) {
+					string(cp, 0x300A0114, "DS", "6");
+					string(cp, 0x300A011E, "DS", ds(b*40.0));
+					string(cp, 0x300A012C, "DS", ds(0, 0, 0));
+				}
+				double[] leaves = new double[2*leafPairs];
+				for (int i=0; i<leafPairs; i++) {
+					leaves[i] = -10-i*0.5-c*0.1;
+					leaves[leafPairs+i] = 10+i*0.25+c*0.1;
+				}
+				ByteArrayOutputStream x = new ByteArrayOutputStream();
+				string(x, 0x300A00B8, "CS", "ASYMX");
+				string(x, 0x300A011C, "DS", ds(-50-b, 50+c*0.1));
+				ByteArrayOutputStream y = new ByteArrayOutputStream();
+				string(y, 0x300A00B8, "CS", "ASYMY");
+				string(y, 0x300A011C, "DS", ds(-60, 60));
+				ByteArrayOutputStream mlc = new ByteArrayOutputStream();
+				string(mlc, 0x300A00B8, "CS", "MLCX");
+				string(mlc, 0x300A011C, "DS", ds(leaves));
+				sequence(cp, 0x300A011A, bytes(x), bytes(y), bytes(mlc));
+				string(cp, 0x300A0134, "DS", ds(controlPoints==1 ? 1 : (double)c/(controlPoints-1)));
+				cps[c] = bytes(cp);
+			}
+			sequence(beam, 0x300A0111, cps);
+			beamItems[b] = bytes(beam);
+		}
+		sequence(o, 0x300A00B0, beamItems);
+
+		ByteArrayOutputStream ref = new ByteArrayOutputStream();
+		string(ref, 0x00081150, "UI", RT_STRUCT);
+		string(ref, 0x00081155, "UI", "1.2.3.77");
+		sequence(o, 0x300C0060, bytes(ref));
+		return bytes(o);
+	}
+
+	//RT Struct de rois con contours contornos (planos) de points puntos cada uno
+	public byte[] struct(int rois, int contours, int points) {
+		ByteArrayOutputStream o = header(RT_STRUCT, "1.2.3.77");
+		string(o, 0x00080060, "CS", "RTSTRUCT");
+		string(o, 0x00100020, "LO", "PAT001");
+		string(o, 0x30060002, "SH", "STRUCT1");
+
+		byte[][] names = new byte[rois][];
+		for (int r=0; r<rois; r++) {
+			ByteArrayOutputStream roi = new ByteArrayOutputStream();
+			string(roi, 0x30060022, "IS", ""+(r+1));
+			string(roi, 0x30060026, "LO", "ROI"+(r+1));
+			names[r] = bytes(roi);
+		}
+		sequence(o, 0x30060020, names);
+
+		byte[][] roiContours = new byte[rois][];
+		double[] xyz = new double[3*points];
+		for (int r=0; r<rois; r++) {
+			byte[][] items = new byte[contours][];
+			for (int c=0; c<contours; c++) {
+				double radius = 20+r*2+5*Math.sin(c*0.1);
+				for (int p=0; p<points; p++) {
+					double a = 2*Math.PI*p/points;
+					xyz[3*p] = r*5+radius*Math.cos(a);
+					xyz[3*p+1] = radius*Math.sin(a);
+					xyz[3*p+2] = -100+c*2.5;
+				}
+				ByteArrayOutputStream contour = new ByteArrayOutputStream();
+				string(contour, 0x30060042, "CS", "CLOSED_PLANAR");
+				string(contour, 0x30060046, "IS", ""+points);
+				string(contour, 0x30060050, "DS", ds(xyz));
+				items[c] = bytes(contour);
+			}
+			ByteArrayOutputStream roi = new ByteArrayOutputStream();
+			string(roi, 0x3006002A, "IS", ""+(r*40)+"\\"+(255-r*10)+"\\0");
+			sequence(roi, 0x30060040, items);
+			string(roi, 0x30060084, "IS", ""+(r+1));
+			roiContours[r] = bytes(roi);
+		}
+		sequence(o, 0x30060039, roiContours);
+		return bytes(o);
+	}
+
+	//corte CT de rows x cols con un cilindro de agua en aire
+	public byte[] ct(int rows, int cols, double z, int instance) {
+		ByteArrayOutputStream o = header(CT_IMAGE, "1.2.3.5."+instance);
+		string(o, 0x00080060, "CS", "CT");
+		string(o, 0x00100020, "LO", "PAT001");
+		string(o, 0x0020000D, "UI", "1.2.3.100");
+		string(o, 0x0020000E, "UI", "1.2.3.101");
+		string(o, 0x00200013, "IS", ""+instance);
+		string(o, 0x00200032, "DS", ds(-250, -250, z));
+		string(o, 0x00200037, "DS", ds(1, 0, 0, 0, 1, 0));
+		string(o, 0x00200052, "UI", "1.2.3.102");
+		us(o, 0x00280002, 1);
+		string(o, 0x00280004, "CS", "MONOCHROME2");
+		us(o, 0x00280010, rows);
+		us(o, 0x00280011, cols);
+		string(o, 0x00280030, "DS", ds(500.0/rows, 500.0/cols));
+		us(o, 0x00280100, 16);
+		us(o, 0x00280101, 12);
+		us(o, 0x00280102, 11);
+		us(o, 0x00280103, 0);
+		string(o, 0x00281052, "DS", "-1024");
+		string(o, 0x00281053, "DS", "1");
+
+		ByteArrayOutputStream pixels = new ByteArrayOutputStream(2*rows*cols);
+		int r2 = rows*rows/9;
+		for (int r=0; r<rows; r++) {
+			for (int c=0; c<cols; c++) {
+				int dx = r-rows/2;
+				int dy = c-cols/2;
+				short16(pixels, dx*dx+dy*dy<r2 ? 1024 : 0, little);
+			}
+		}
+		element(o, 0x7FE00010, "OW", bytes(pixels));
+		return bytes(o);
+	}
+
+	private static SyntheticDicom forSyntax(String name) {
+		switch (name) {
+			case "imp_le": return new SyntheticDicom(IMPLICIT_LE, false);
+			case "exp_be": return new SyntheticDicom(EXPLICIT_BE, false);
+			case "exp_le_def": return new SyntheticDicom(EXPLICIT_LE, true);
+			default: return new SyntheticDicom(EXPLICIT_LE, false);
+		}
+	}
+
+	//escribe el corpus de los benchmarks en dir
+	public static void write(Path dir) throws IOException {
+		Files.createDirectories(dir.resolve("ct"));
+		for (String name : SYNTAXES) {
+			SyntheticDicom s = forSyntax(name);
+			Files.write(dir.resolve("plan_"+name+".dcm"), s.plan(10, 100, 60));
+			Files.write(dir.resolve("struct_"+name+".dcm"), s.struct(16, 40, 200));
+		}
+		SyntheticDicom s = forSyntax("exp_le");
+		for (int i=0; i<CT_SLICES; i++) {
+			//en disco en orden inverso al de la posicion
+			Files.write(dir.resolve(String.format("ct/ct%03d.dcm", i)), s.ct(512, 512, (CT_SLICES-1-i)*2.5, i+1));
+		}
+	}
+
+	//directorio del corpus (propiedad muka.corpus o build/corpus); se genera si no existe
+	public static Path corpus() throws IOException {
+		Path dir = Paths.get(System.getProperty("muka.corpus", "build/corpus"));
+		if (!Files.exists(dir.resolve(String.format("ct/ct%03d.dcm", CT_SLICES-1)))) write(dir);
+		return dir;
+	}
+
+	public static void main(String[] args) throws IOException {
+		Path dir = Paths.get(args.length>0 ? args[0] : "build/corpus");
+		write(dir);
+		System.out.println("Synthetic DICOM corpus written to " + dir.toAbsolutePath());
+	}
+}
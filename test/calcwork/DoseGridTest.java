@@ -0,0 +1,87 @@
+package calcwork;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import dcmwork.DcmArchive;
+import dcmwork.SyntheticDicom;
+
+//RT Dose escrito con DoseGrid.write y leido de nuevo con DoseGrid.read
+public class DoseGridTest {
+
+	@TempDir
+	Path dir;
+
+	//matriz de nx x ny x nz con un maximo en el centro
+	static DoseGrid grid(int nx, int ny, int nz, double[] origin, double[] normal) {
+		float[] dose = new float[nx*ny*nz];
+		for (int k=0; k<nz; k++) {
+			for (int j=0; j<ny; j++) {
+				for (int i=0; i<nx; i++) {
+					double r2 = (i-nx/2.0)*(i-nx/2.0) + (j-ny/2.0)*(j-ny/2.0) + (k-nz/2.0)*(k-nz/2.0);
+					dose[(k*ny + j)*nx + i] = (float)(2*Math.exp(-r2/50));
+				}
+			}
+		}
+		return new DoseGrid(nx, ny, nz, 2, 3, 2.5, origin, new double[] {1, 0, 0}, new double[] {0, 1, 0}, normal, dose);
+	}
+
+	private static void assertSame(DoseGrid a, DoseGrid b, double tolerance) {
+		assertEquals(a.nx, b.nx);
+		assertEquals(a.ny, b.ny);
+		assertEquals(a.nz, b.nz);
+		assertEquals(a.dx, b.dx, 1e-9);
+		assertEquals(a.dy, b.dy, 1e-9);
+		assertEquals(a.dz, b.dz, 1e-9);
+		assertArrayEquals(a.origin, b.origin, 1e-9);
+		assertArrayEquals(a.row, b.row, 1e-9);
+		assertArrayEquals(a.column, b.column, 1e-9);
+		assertArrayEquals(a.normal, b.normal, 1e-9);
+		assertArrayEquals(a.dose, b.dose, (float)tolerance);
+	}
+
+	@Test
+	void roundTrip() throws IOException {
+		Path plan = dir.resolve("plan.dcm");
+		Files.write(plan, new SyntheticDicom(SyntheticDicom.EXPLICIT_LE, false).plan(1, 2, 4));
+		DoseGrid g = grid(20, 15, 10, new double[] {-20, -22.5, 10}, new double[] {0, 0, 1});
+		String path = dir.resolve("rd.dcm").toString();
+		g.write(path, plan.toString());
+
+		DoseGrid back = DoseGrid.read(path);
+		//32 bits: el error de cuantizacion es del orden de max/2^32
+		assertSame(g, back, g.max()*1e-9);
+		assertEquals(g.max(), back.max(), 1e-6);
+
+		DcmArchive.Entry e = DcmArchive.read(path);
+		assertEquals("1.2.840.10008.5.1.4.1.1.481.2", e.sopClass());
+		assertEquals("RTDOSE", e.modality());
+		assertEquals("1.2.3.9", e.referencedPlan());
+		assertEquals("PAT001", e.patientId());
+		assertEquals("1.2.3.100", e.study());
+	}
+
+	//frames en sentido contrario a row x column: offsets negativos
+	@Test
+	void flippedNormal() throws IOException {
+		DoseGrid g = grid(8, 6, 5, new double[] {0, 0, 50}, new double[] {0, 0, -1});
+		String path = dir.resolve("flip.dcm").toString();
+		g.write(path, null);
+		assertSame(g, DoseGrid.read(path), g.max()*1e-9);
+		assertEquals(g.doseAt(4, 6, 45), DoseGrid.read(path).doseAt(4, 6, 45), 1e-6);
+	}
+
+	@Test
+	void emptyDose() throws IOException {
+		DoseGrid g = new DoseGrid(3, 2, 1, 1, 1, 1, new double[3], new double[] {1, 0, 0}, new double[] {0, 1, 0},
+			new double[] {0, 0, 1}, new float[6]);
+		String path = dir.resolve("zero.dcm").toString();
+		g.write(path, null);
+		assertSame(g, DoseGrid.read(path), 0);
+	}
+}
@@ -0,0 +1,119 @@
+package calcwork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import dcmwork.SyntheticDicom;
+
+//RT Struct sintetico (circulos de 64 puntos cada 2.5 mm) rasterizado y con DVH sobre una dosis
+//que solo cambia entre cortes
+public class DvhTest {
+
+	private static final int ROIS = 2, CONTOURS = 9, POINTS = 64;
+
+	@TempDir
+	Path dir;
+
+	private RtStruct struct(String syntax) throws IOException {
+		SyntheticDicom s;
+		switch (syntax) {
+			case "imp_le": s = new SyntheticDicom(SyntheticDicom.IMPLICIT_LE, false); break;
+			case "exp_be": s = new SyntheticDicom(SyntheticDicom.EXPLICIT_BE, false); break;
+			case "exp_le_def": s = new SyntheticDicom(SyntheticDicom.EXPLICIT_LE, true); break;
+			default: s = new SyntheticDicom(SyntheticDicom.EXPLICIT_LE, false);
+		}
+		Path p = dir.resolve("rs_"+syntax+".dcm");
+		Files.write(p, s.struct(ROIS, CONTOURS, POINTS));
+		return RtStruct.read(p.toString());
+	}
+
+	//un corte de margen por cada lado de los planos de contornos (z de -102.5 a -77.5)
+	private static DoseGrid dose() {
+		int nx = 81, ny = 81, nz = CONTOURS+2;
+		float[] d = new float[nx*ny*nz];
+		for (int k=0; k<nz; k++) {
+			for (int n=0; n<nx*ny; n++) d[k*nx*ny + n] = 1+0.1f*k;
+		}
+		return new DoseGrid(nx, ny, nz, 1, 1, 2.5, new double[] {-40, -40, -102.5},
+			new double[] {1, 0, 0}, new double[] {0, 1, 0}, new double[] {0, 0, 1}, d);
+	}
+
+	//area del poligono regular del contorno c de la estructura r (mm2)
+	private static double area(int r, int c) {
+		double radius = 20+r*2+5*Math.sin(c*0.1);
+		return 0.5*POINTS*radius*radius*Math.sin(2*Math.PI/POINTS);
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	void readStruct(String syntax) throws IOException {
+		RtStruct rs = struct(syntax);
+		assertEquals(ROIS, rs.rois());
+		assertEquals("STRUCT1", rs.label());
+		for (int r=0; r<ROIS; r++) {
+			RtStruct.Roi roi = rs.roi(r);
+			assertEquals(r+1, roi.number());
+			assertEquals("ROI"+(r+1), roi.name());
+			assertEquals(CONTOURS, roi.planes());
+			assertEquals(2.5, roi.thickness(), 1e-4);
+			assertEquals(-100, roi.plane(0), 1e-4);
+			assertEquals(1, roi.contours(4));
+			assertEquals(3*POINTS, roi.contour(4, 0).length);
+		}
+		assertNotNull(rs.roi("roi2"));
+		assertNull(rs.roi("PTV"));
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"exp_le", "imp_le"})
+	void volumeAndDose(String syntax) throws IOException {
+		RtStruct rs = struct(syntax);
+		DoseGrid dose = dose();
+		List<Dvh> dvhs = Dvh.compute(rs, dose, 0.01);
+		assertEquals(ROIS, dvhs.size());
+		for (int r=0; r<ROIS; r++) {
+			RoiMask mask = RoiMask.rasterize(rs.roi(r), dose);
+			double volume = 0, sum = 0;
+			for (int c=0; c<CONTOURS; c++) {
+				volume += area(r, c)*2.5/1000;
+				sum += area(r, c)*(1+0.1*(c+1));
+				//solo los cortes de los planos: los de margen quedan fuera
+				assertEquals(area(r, c), voxels(mask, c+1), 0.02*area(r, c));
+			}
+			assertEquals(0, voxels(mask, 0));
+			assertEquals(0, voxels(mask, CONTOURS+1));
+			assertEquals(volume, mask.volume(), 0.01*volume);
+
+			Dvh h = dvhs.get(r);
+			assertEquals("ROI"+(r+1), h.name());
+			assertEquals(mask.voxels(), h.voxels());
+			assertEquals(1.1, h.min(), 1e-6);
+			assertEquals(1.9, h.max(), 1e-6);
+			double mean = sum/(volume*1000/2.5);
+			assertEquals(mean, h.mean(), 0.01*mean);
+			assertEquals(100, h.volumeAtDose(0), 1e-9);
+			assertEquals(0, h.volumeAtDose(2), 1e-9);
+			assertEquals(100, h.cumulative()[0], 1e-9);
+			assertEquals(1.1, h.doseAtVolume(100), 0.011);
+			assertEquals(1.9, h.doseAtVolume(0.1), 0.011);
+		}
+	}
+
+	private static long voxels(RoiMask mask, int k) {
+		long n = 0;
+		for (int j=0; j<mask.ny(); j++) {
+			for (int i=0; i<mask.nx(); i++) {
+				if (mask.contains(i, j, k)) n++;
+			}
+		}
+		return n;
+	}
+}
@@ -0,0 +1,54 @@
+package calcwork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import org.junit.jupiter.api.Test;
+
+public class GammaTest {
+
+	private static DoseGrid shifted(DoseGrid g, double dx, float factor) {
+		float[] d = new float[g.dose.length];
+		for (int n=0; n<d.length; n++) d[n] = g.dose[n]*factor;
+		double[] o = {g.origin[0]+dx, g.origin[1], g.origin[2]};
+		return new DoseGrid(g.nx, g.ny, g.nz, g.dx, g.dy, g.dz, o, g.row, g.column, g.normal, d);
+	}
+
+	@Test
+	void identical() throws IOException {
+		DoseGrid g = DoseGridTest.grid(20, 16, 12, new double[3], new double[] {0, 0, 1});
+		Gamma.Result r = new Gamma(0.03, 3, 0.1, false).compare(g, g);
+		assertTrue(r.evaluated()>0);
+		assertEquals(100, r.passRate(), 1e-9);
+		assertEquals(0, r.max(), 1e-6);
+		assertEquals(r.evaluated(), r.histogram()[0]);
+		//fuera del umbral no se evalua
+		assertTrue(Double.isNaN(r.gamma().dose(0, 0, 0)));
+	}
+
+	//1 mm de desplazamiento: pasa con 3 mm y no con 0.5 mm / 0.5 %
+	@Test
+	void shift() throws IOException {
+		DoseGrid g = DoseGridTest.grid(20, 16, 12, new double[3], new double[] {0, 0, 1});
+		DoseGrid s = shifted(g, 1, 1);
+		Gamma.Result loose = new Gamma(0.03, 3, 0.1, false).compare(g, s);
+		assertEquals(100, loose.passRate(), 1e-9);
+		assertTrue(loose.mean()<1/3.0);
+		Gamma.Result tight = new Gamma(0.005, 0.5, 0.1, false).compare(g, s);
+		assertTrue(tight.passRate()<100);
+		assertTrue(tight.max()>1);
+	}
+
+	//5 % mas de dosis: global 3 %/1 mm falla en el maximo, local 6 % pasa en todo
+	@Test
+	void scaled() throws IOException {
+		DoseGrid g = DoseGridTest.grid(20, 16, 12, new double[3], new double[] {0, 0, 1});
+		DoseGrid s = shifted(g, 0, 1.05f);
+		Gamma.Result global = new Gamma(0.03, 1, 0.1, false).compare(g, s);
+		assertTrue(global.passRate()<100);
+		Gamma.Result local = new Gamma(0.06, 1, 0.1, true).compare(g, s);
+		assertEquals(100, local.passRate(), 1e-9);
+		assertEquals(5/6.0, local.max(), 0.05);
+	}
+}
@@ -0,0 +1,130 @@
+package calcwork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+//Tablas comparadas con los datos medidos: exactas en los nodos e interpolacion lineal directa entre ellos
+public class GridTableTest {
+
+	//profundidades de un PDD: cada 1 mm en el build-up y cada 50 mm al final, con nodos fuera de cualquier paso comun
+	private static final double[] DEPTHS = {0, 1, 2, 3, 5, 7.5, 10, 13, 15, 20, 30, 50, 100, 150, 200, 300};
+	private static final double[] FIELDS = {30, 40, 50, 60, 80, 100, 150, 200, 300, 400};
+	private static final double[] ENERGIES = {6, 10, 15};
+
+	private static double pdd(double depth, double field, double energy) {
+		double dmax = 15+energy;
+		double buildUp = depth<dmax ? 0.4+0.6*Math.sin(Math.PI/2*depth/dmax) : 1;
+		return buildUp*Math.exp(-0.005*Math.max(depth-dmax, 0)*(1-field/2000))*(1+energy/100);
+	}
+
+	//interpolacion lineal de los datos medidos por busqueda directa, fuera del eje con el borde
+	private static double lerp(double[] axis, double[] values, double p) {
+		if (p<=axis[0]) return values[0];
+		if (p>=axis[axis.length-1]) return values[values.length-1];
+		int i = 0;
+		while (axis[i+1]<p) i++;
+		double t = (p-axis[i])/(axis[i+1]-axis[i]);
+		return values[i] + t*(values[i+1]-values[i]);
+	}
+
+	private static double[] column(double field, double energy) {
+		double[] v = new double[DEPTHS.length];
+		for (int i=0; i<v.length; i++) v[i] = pdd(DEPTHS[i], field, energy);
+		return v;
+	}
+
+	@Test
+	void measuredNodes() {
+		double[] v = column(100, 6);
+		GridTable t = GridTable.of(DEPTHS, v);
+		assertEquals(DEPTHS.length, t.nx());
+		for (int i=0; i<DEPTHS.length; i++) assertEquals(v[i], t.value(DEPTHS[i]), 0);
+		Random r = new Random(1);
+		for (int n=0; n<10000; n++) {
+			double p = -10 + 320*r.nextDouble();
+			assertEquals(lerp(DEPTHS, v, p), t.value(p), 1e-12);
+		}
+	}
+
+	//un intervalo muy fino no hace crecer la tabla ni cambia los nodos
+	@Test
+	void fineInterval() {
+		double[] x = {0, 1e-9, 10, 1000};
+		double[] v = {1, 2, 3, 4};
+		GridTable t = GridTable.of(x, v);
+		assertEquals(4, t.nx());
+		for (int i=0; i<x.length; i++) assertEquals(v[i], t.value(x[i]), 0);
+		assertEquals(lerp(x, v, 5), t.value(5), 1e-12);
+		assertEquals(3.5, t.value(505), 1e-12);
+		assertEquals(1.5, t.value(0.5e-9), 1e-6);
+	}
+
+	@Test
+	void bilinear() {
+		double[][] v = new double[DEPTHS.length][FIELDS.length];
+		for (int j=0; j<DEPTHS.length; j++) {
+			for (int i=0; i<FIELDS.length; i++) v[j][i] = pdd(DEPTHS[j], FIELDS[i], 6);
+		}
+		GridTable t = GridTable.of(FIELDS, DEPTHS, v);
+		for (int j=0; j<DEPTHS.length; j++) {
+			for (int i=0; i<FIELDS.length; i++) assertEquals(v[j][i], t.value(FIELDS[i], DEPTHS[j]), 0);
+		}
+		Random r = new Random(2);
+		double[] row = new double[FIELDS.length];
+		for (int n=0; n<2000; n++) {
+			double f = 20 + 400*r.nextDouble(), d = 320*r.nextDouble();
+			//primero en campo para cada profundidad medida, despues en profundidad
+			double[] byDepth = new double[DEPTHS.length];
+			for (int j=0; j<DEPTHS.length; j++) {
+				System.arraycopy(v[j], 0, row, 0, row.length);
+				byDepth[j] = lerp(FIELDS, row, f);
+			}
+			assertEquals(lerp(DEPTHS, byDepth, d), t.value(f, d), 1e-12);
+		}
+	}
+
+	@Test
+	void trilinear() {
+		double[][][] v = new double[ENERGIES.length][DEPTHS.length][FIELDS.length];
+		for (int k=0; k<ENERGIES.length; k++) {
+			for (int j=0; j<DEPTHS.length; j++) {
+				for (int i=0; i<FIELDS.length; i++) v[k][j][i] = pdd(DEPTHS[j], FIELDS[i], ENERGIES[k]);
+			}
+		}
+		GridTable t = GridTable.of(FIELDS, DEPTHS, ENERGIES, v);
+		for (int k=0; k<ENERGIES.length; k++) {
+			for (int j=0; j<DEPTHS.length; j++) {
+				for (int i=0; i<FIELDS.length; i++)
+					assertEquals(v[k][j][i], t.value(FIELDS[i], DEPTHS[j], ENERGIES[k]), 0);
+			}
+		}
+		//en los nodos de energia y campo solo queda la interpolacion en profundidad
+		for (double d=0; d<=300; d+=0.7) {
+			assertEquals(lerp(DEPTHS, column(150, 10), d), t.value(150, d, 10), 1e-12);
+		}
+		//entre energias, lineal entre los dos planos medidos
+		double mid = 0.5*(t.value(60, 12, 6) + t.value(60, 12, 10));
+		assertEquals(mid, t.value(60, 12, 8), 1e-12);
+	}
+
+	@Test
+	void checks() {
+		assertThrows(IllegalArgumentException.class, new Executable() {
+			public void execute() {
+				GridTable.of(new double[] {0, 1, 1}, new double[] {1, 2, 3});
+			}
+		});
+		assertThrows(IllegalArgumentException.class, new Executable() {
+			public void execute() {
+				GridTable.of(new double[] {0, 1}, new double[] {0, 1}, new double[][] {{1, 2}});
+			}
+		});
+		GridTable single = GridTable.of(new double[] {5}, new double[] {2});
+		assertEquals(2, single.value(-1), 0);
+		assertEquals(2, single.value(7), 0);
+	}
+}
@@ -0,0 +1,150 @@
+package calcwork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+import dcmwork.DcmWriter;
+
+//Campos abiertos de 10x10 con el punto de calculo en el isocentro a 100 mm de profundidad:
+//dosis = UM * calibracion * Sc * Sp * TMR, con los factores en nodos medidos
+public class MuCheckTest {
+
+	private static final String RT_PLAN = "1.2.840.10008.5.1.4.1.1.481.5";
+	private static final double CALIBRATION = 0.01, TMR = 0.8;
+
+	@TempDir
+	Path dir;
+
+	private static MuCheck check() {
+		double[] fields = {50, 100, 200};
+		double[] depths = {0, 50, 100, 200};
+		double[][] tmr = {{0.6, 0.62, 0.64}, {0.93, 0.95, 0.97}, {0.76, TMR, 0.84}, {0.5, 0.55, 0.6}};
+		MuCheck m = new MuCheck();
+		m.add(new BeamData("TB1", 6, CALIBRATION, 0.02, fields, depths, tmr, new double[] {0.97, 1, 1.03},
+			new double[] {0.98, 1, 1.02}, new double[] {0}, new double[] {0, 300}, new double[][] {{1}, {1}}));
+		return m;
+	}
+
+	//campo 1: punto propio con profundidad equivalente; campo 2 (gantry 180): punto de referencia
+	//del plan y profundidad por la DFS. meterset y dose del campo 1 como texto para poder corromperlos
+	private String plan(String name, String meterset, String dose) throws IOException {
+		String path = dir.resolve(name).toString();
+		DcmWriter w = new DcmWriter(path, RT_PLAN, DcmWriter.uid());
+		w.dataset()
+			.string(0x00080016, DcmWriter.UI, RT_PLAN)
+			.string(0x00080018, DcmWriter.UI, "1.2.3.4")
+			.string(0x300A0002, DcmWriter.SH, "OPEN")
+			.sequence(0x300A0010, new DcmWriter.Item().doubles(0x300A0018, DcmWriter.DS, 0, 0, 0))
+			.sequence(0x300A0070, new DcmWriter.Item()
+				.ints(0x300A0078, DcmWriter.IS, 1)
+				.ints(0x300A0080, DcmWriter.IS, 2)
+				.sequence(0x300C0004,
+					new DcmWriter.Item()
+						.doubles(0x300A0082, DcmWriter.DS, 0, 0, 0)
+						.string(0x300A0084, DcmWriter.DS, dose)
+						.string(0x300A0086, DcmWriter.DS, meterset)
+						.doubles(0x300A0089, DcmWriter.FL, 100)
+						.ints(0x300C0006, DcmWriter.IS, 1),
+					new DcmWriter.Item()
+						.doubles(0x300A0084, DcmWriter.DS, 0.8)
+						.doubles(0x300A0086, DcmWriter.DS, 100)
+						.ints(0x300C0006, DcmWriter.IS, 2)))
+			.sequence(0x300A00B0, beam(1, 0), beam(2, 180));
+		w.close();
+		return path;
+	}
+
+	private static DcmWriter.Item beam(int number, double gantry) {
+		DcmWriter.Item first = new DcmWriter.Item()
+			.ints(0x300A0112, DcmWriter.IS, 0)
+			.doubles(0x300A0114, DcmWriter.DS, 6)
+			.sequence(0x300A011A,
+				new DcmWriter.Item().string(0x300A00B8, DcmWriter.CS, "ASYMX").doubles(0x300A011C, DcmWriter.DS, -50, 50),
+				new DcmWriter.Item().string(0x300A00B8, DcmWriter.CS, "ASYMY").doubles(0x300A011C, DcmWriter.DS, -50, 50))
+			.doubles(0x300A011E, DcmWriter.DS, gantry)
+			.doubles(0x300A0120, DcmWriter.DS, 0)
+			.doubles(0x300A0122, DcmWriter.DS, 0)
+			.doubles(0x300A012C, DcmWriter.DS, 0, 0, 0)
+			.doubles(0x300A0130, DcmWriter.DS, 900)
+			.doubles(0x300A0134, DcmWriter.DS, 0);
+		DcmWriter.Item last = new DcmWriter.Item()
+			.ints(0x300A0112, DcmWriter.IS, 1)
+			.doubles(0x300A0134, DcmWriter.DS, 1);
+		return new DcmWriter.Item()
+			.string(0x300A00B2, DcmWriter.SH, "TB1")
+			.doubles(0x300A00B4, DcmWriter.DS, 1000)
+			.ints(0x300A00C0, DcmWriter.IS, number)
+			.string(0x300A00C2, DcmWriter.LO, "F"+number)
+			.string(0x300A00C6, DcmWriter.CS, "PHOTON")
+			.string(0x300A00CE, DcmWriter.CS, "TREATMENT")
+			.doubles(0x300A010E, DcmWriter.DS, 1)
+			.ints(0x300A0110, DcmWriter.IS, 2)
+			.sequence(0x300A0111, first, last);
+	}
+
+	@Test
+	void openField() throws IOException {
+		MuCheck.Result r = check().check(plan("open.dcm", "200", "1.6"));
+		assertNull(r.error());
+		assertEquals(2, r.beams());
+		assertEquals("F1", r.name(0));
+		//UM de referencia: 1.6 Gy / (0.01 Gy/UM * 0.8) = 200
+		assertEquals(200, r.meterset(0), 1e-9);
+		assertEquals(200*CALIBRATION*TMR, r.calculated(0), 1e-9);
+		assertEquals(100*CALIBRATION*TMR, r.calculated(1), 1e-9);
+		assertEquals(0, r.deviation(0), 1e-6);
+		assertEquals(0, r.deviation(), 1e-6);
+	}
+
+	//el lote da lo mismo que cada plan por separado y los planes corruptos llevan su error
+	@Test
+	void batch() throws IOException {
+		MuCheck m = check();
+		String good = plan("good.dcm", "200", "1.6");
+		String other = plan("other.dcm", "150", "1.2");
+		String bad = plan("bad.dcm", "2OO", "1.6");
+		List<MuCheck.Result> results = m.check(Arrays.asList(good, bad, other));
+		assertEquals(3, results.size());
+		String[] paths = {good, other};
+		MuCheck.Result[] batch = {results.get(0), results.get(2)};
+		for (int p=0; p<paths.length; p++) {
+			MuCheck.Result single = m.check(paths[p]);
+			assertNull(batch[p].error());
+			assertEquals(single.beams(), batch[p].beams());
+			for (int b=0; b<single.beams(); b++) assertEquals(single.calculated(b), batch[p].calculated(b), 0);
+		}
+		assertEquals(150*CALIBRATION*TMR, results.get(2).calculated(0), 1e-9);
+		assertNotNull(results.get(1).error());
+		assertTrue(results.get(1).error().contains("BeamMeterset"), results.get(1).error());
+	}
+
+	//UM mal formadas: IOException tambien fuera del lote; dosis del planificador mal formada: NaN
+	@Test
+	void malformed() throws IOException {
+		final MuCheck m = check();
+		final String bad = plan("bad.dcm", "2OO", "1.6");
+		assertThrows(IOException.class, new Executable() {
+			public void execute() throws IOException {
+				RtPlan.read(bad);
+			}
+		});
+		assertThrows(IOException.class, new Executable() {
+			public void execute() throws IOException {
+				m.check(bad);
+			}
+		});
+		MuCheck.Result r = m.check(plan("dose.dcm", "200", "1,6"));
+		assertTrue(Double.isNaN(r.planned(0)));
+		assertEquals(200*CALIBRATION*TMR, r.calculated(0), 1e-9);
+	}
+}
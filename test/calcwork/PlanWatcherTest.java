@@ -0,0 +1,230 @@
+package calcwork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import dcmwork.DcmWriter;
+
+//Carpeta vigilada con settle corto: los archivos se preparan fuera (en dir) y se copian a in/
+//como lo haria el planificador, a veces en dos escrituras
+public class PlanWatcherTest {
+
+	private static final String RT_PLAN = "1.2.840.10008.5.1.4.1.1.481.5";
+	private static final String RT_DOSE = "1.2.840.10008.5.1.4.1.1.481.2";
+	private static final long SETTLE = 300;
+	private static final long TIMEOUT = 10000;
+
+	@TempDir
+	Path dir;
+
+	private Path in;
+	private PlanWatcher watcher;
+	private final BlockingQueue<PlanWatcher.Job> reported = new LinkedBlockingQueue<PlanWatcher.Job>();
+
+	@BeforeEach
+	void folder() throws IOException {
+		in = Files.createDirectories(dir.resolve("in"));
+	}
+
+	@AfterEach
+	void stop() throws IOException {
+		if (watcher!=null) watcher.close();
+	}
+
+	private PlanWatcher watcher(PlanWatcher.Reporter reporter) {
+		//sin datos de haz: cada plan se verifica con error, que basta para seguir el flujo
+		watcher = new PlanWatcher(in.toString(), new MuCheck(), reporter);
+		watcher.setSettle(SETTLE);
+		return watcher;
+	}
+
+	private PlanWatcher watcher() {
+		return watcher(new PlanWatcher.Reporter() {
+			public void report(PlanWatcher.Job job) {
+				reported.add(job);
+			}
+		});
+	}
+
+	//plan (uid) o dosis que referencia el plan uid
+	private byte[] file(String sopClass, String uid) throws IOException {
+		String instance = RT_PLAN.equals(sopClass) ? uid : DcmWriter.uid();
+		Path p = dir.resolve(instance+".dcm");
+		DcmWriter w = new DcmWriter(p.toString(), sopClass, instance);
+		w.dataset()
+			.string(0x00080016, DcmWriter.UI, sopClass)
+			.string(0x00080018, DcmWriter.UI, instance)
+			.string(0x00080060, DcmWriter.CS, RT_PLAN.equals(sopClass) ? "RTPLAN" : "RTDOSE")
+			.string(0x300A0002, DcmWriter.SH, "PLAN");
+		if (RT_DOSE.equals(sopClass)) {
+			w.dataset().sequence(0x300C0002, new DcmWriter.Item()
+				.string(0x00081150, DcmWriter.UI, RT_PLAN)
+				.string(0x00081155, DcmWriter.UI, uid));
+		}
+		w.close();
+		return Files.readAllBytes(p);
+	}
+
+	private static PlanWatcher.Job next(BlockingQueue<PlanWatcher.Job> q) throws InterruptedException {
+		PlanWatcher.Job job = q.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+		assertNotNull(job, "no report in "+TIMEOUT+" ms");
+		return job;
+	}
+
+	private static void await(CountDownLatch latch) throws InterruptedException {
+		assertTrue(latch.await(TIMEOUT, TimeUnit.MILLISECONDS), "timeout");
+	}
+
+	//un plan copiado en dos escrituras se lee una sola vez y la dosis que llega despues va en su grupo
+	@Test
+	void planThenDose() throws Exception {
+		watcher().start();
+		byte[] plan = file(RT_PLAN, "1.2.3.1");
+		Path planPath = in.resolve("plan.dcm");
+		Files.write(planPath, Arrays.copyOf(plan, plan.length/2));
+		Thread.sleep(SETTLE/4);
+		Files.write(planPath, Arrays.copyOfRange(plan, plan.length/2, plan.length), StandardOpenOption.APPEND);
+		Thread.sleep(SETTLE/4);
+		Path dosePath = in.resolve("dose.dcm");
+		Files.write(dosePath, file(RT_DOSE, "1.2.3.1"));
+
+		PlanWatcher.Job job = next(reported);
+		assertEquals("1.2.3.1", job.uid());
+		assertEquals(planPath.toString(), job.path());
+		assertEquals(Arrays.asList(dosePath.toString()), job.doses());
+		assertNotNull(job.result());
+		assertTrue(job.latency()>=SETTLE, ""+job.latency());
+		Thread.sleep(3*SETTLE);
+		assertNull(reported.poll());
+		assertEquals(2, watcher.files());
+		assertEquals(0, watcher.ignored());
+		assertEquals(1, watcher.metrics(PlanWatcher.REPORT).processed());
+		assertEquals(0, watcher.errors());
+	}
+
+	//planes distintos en grupos distintos, cada uno con sus dosis; lo que no es plan ni dosis se ignora
+	@Test
+	void groups() throws Exception {
+		watcher().start();
+		Files.write(in.resolve("dose_a1.dcm"), file(RT_DOSE, "1.2.3.10"));
+		Files.write(in.resolve("dose_b1.dcm"), file(RT_DOSE, "1.2.3.20"));
+		Files.write(in.resolve("plan_a.dcm"), file(RT_PLAN, "1.2.3.10"));
+		Files.write(in.resolve("dose_a2.dcm"), file(RT_DOSE, "1.2.3.10"));
+		Files.write(in.resolve("plan_b.dcm"), file(RT_PLAN, "1.2.3.20"));
+		Files.write(in.resolve("notes.txt"), "not a plan".getBytes("ISO-8859-1"));
+
+		PlanWatcher.Job first = next(reported), second = next(reported);
+		PlanWatcher.Job a = first.uid().equals("1.2.3.10") ? first : second;
+		PlanWatcher.Job b = a==first ? second : first;
+		assertEquals("1.2.3.10", a.uid());
+		assertEquals("1.2.3.20", b.uid());
+		assertEquals(2, a.doses().size());
+		assertTrue(a.doses().contains(in.resolve("dose_a1.dcm").toString()));
+		assertTrue(a.doses().contains(in.resolve("dose_a2.dcm").toString()));
+		assertEquals(Arrays.asList(in.resolve("dose_b1.dcm").toString()), b.doses());
+		assertEquals(6, watcher.files());
+		assertEquals(1, watcher.ignored());
+	}
+
+	//dosis sin plan, o cuyo plan ya se envio: se olvidan pasado el tiempo de huerfano
+	@Test
+	void orphans() throws Exception {
+		PlanWatcher w = watcher();
+		w.setOrphan(2*SETTLE);
+		w.start();
+		Files.write(in.resolve("plan.dcm"), file(RT_PLAN, "1.2.3.30"));
+		assertEquals(0, next(reported).doses().size());
+		Files.write(in.resolve("late.dcm"), file(RT_DOSE, "1.2.3.30"));
+		Files.write(in.resolve("orphan.dcm"), file(RT_DOSE, "1.2.3.31"));
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (w.ignored()<2 && System.currentTimeMillis()<end) Thread.sleep(50);
+		assertEquals(2, w.ignored());
+		assertNull(reported.poll());
+	}
+
+	//con colas de 1 y el informe bloqueado las etapas no acumulan trabajo; al soltarlo sale todo
+	@Test
+	void backpressure() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		PlanWatcher w = watcher(new PlanWatcher.Reporter() {
+			public void report(PlanWatcher.Job job) throws IOException {
+				entered.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				reported.add(job);
+			}
+		});
+		w.setCapacity(1);
+		w.setThreads(1, 1);
+		w.start();
+		int plans = 6;
+		for (int i=0; i<plans; i++) Files.write(in.resolve("plan"+i+".dcm"), file(RT_PLAN, "1.2.3.4"+i));
+		await(entered);
+		Thread.sleep(4*SETTLE);
+		for (int stage : new int[] {PlanWatcher.PARSE, PlanWatcher.CALCULATE, PlanWatcher.REPORT}) {
+			assertTrue(w.metrics(stage).queued()<=1, w.metrics(stage).toString());
+		}
+		assertEquals(0, w.metrics(PlanWatcher.REPORT).processed());
+		release.countDown();
+		for (int i=0; i<plans; i++) next(reported);
+		//el ultimo se cuenta al volver de report()
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (w.metrics(PlanWatcher.REPORT).processed()<plans && System.currentTimeMillis()<end) Thread.sleep(10);
+		assertEquals(plans, w.metrics(PlanWatcher.REPORT).processed());
+	}
+
+	//close() con el watcher y las etapas esperando en put() no se queda colgado
+	@Test
+	void closeWhileBlocked() throws Exception {
+		final CountDownLatch entered = new CountDownLatch(1);
+		PlanWatcher w = watcher(new PlanWatcher.Reporter() {
+			public void report(PlanWatcher.Job job) throws IOException {
+				entered.countDown();
+				try {
+					new CountDownLatch(1).await();
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+		});
+		w.setCapacity(1);
+		w.setThreads(1, 1);
+		w.start();
+		for (int i=0; i<6; i++) Files.write(in.resolve("plan"+i+".dcm"), file(RT_PLAN, "1.2.3.5"+i));
+		await(entered);
+		Thread.sleep(4*SETTLE);
+		long begin = System.currentTimeMillis();
+		w.close();
+		assertTrue(System.currentTimeMillis()-begin<TIMEOUT);
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (running() && System.currentTimeMillis()<end) Thread.sleep(50);
+		assertFalse(running(), "pipeline threads still alive");
+	}
+
+	private static boolean running() {
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.isAlive() && t.getName().startsWith("muka-")) return true;
+		}
+		return false;
+	}
+}
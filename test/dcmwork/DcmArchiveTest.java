@@ -0,0 +1,131 @@
+package dcmwork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+//Indice de una carpeta con un plan, tres cortes CT y un archivo que no es DICOM, y su sidecar
+public class DcmArchiveTest {
+
+	private static final int SLICES = 3;
+
+	@TempDir
+	Path dir;
+
+	private final SyntheticDicom s = new SyntheticDicom(SyntheticDicom.EXPLICIT_LE, false);
+
+	@BeforeEach
+	void archive() throws IOException {
+		Files.write(dir.resolve("plan.dcm"), s.plan(1, 2, 4));
+		Path ct = Files.createDirectories(dir.resolve("ct"));
+		for (int i=0; i<SLICES; i++) Files.write(ct.resolve("ct"+i+".dcm"), s.ct(8, 8, i*2.5, i));
+		Files.write(dir.resolve("notes.txt"), "not a dicom file".getBytes(StandardCharsets.ISO_8859_1));
+	}
+
+	private String sidecar() {
+		return dir.resolve(DcmArchive.SIDECAR).toString();
+	}
+
+	//pool ya cerrado: si hubiera que releer algun archivo, invokeAll lo rechazaria
+	private static ExecutorService closed() {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		pool.shutdown();
+		return pool;
+	}
+
+	private void indexed(DcmArchive a) {
+		assertEquals(1+SLICES, a.size());
+		assertEquals("RTPLAN", a.instance("1.2.3.9").value(DcmArchive.MODALITY));
+		assertEquals(SLICES, a.find(DcmArchive.MODALITY, "CT").size());
+		assertEquals(1+SLICES, a.find(DcmArchive.STUDY, "1.2.3.100").size());
+		assertEquals(SLICES, a.find(DcmArchive.STUDY, "1.2.3.100", DcmArchive.MODALITY, "CT").size());
+	}
+
+	@Test
+	void restart() throws IOException {
+		DcmArchive a = DcmArchive.open(dir.toString());
+		indexed(a);
+		assertEquals(0, a.update());
+		assertNotNull(a.instance("1.2.3.5.1"));
+
+		//el segundo arranque sale entero del sidecar
+		DcmArchive b = DcmArchive.open(dir.toString(), sidecar(), closed());
+		indexed(b);
+		assertEquals(0, b.update());
+		assertEquals(a.instance("1.2.3.5.2").path(), b.instance("1.2.3.5.2").path());
+	}
+
+	@Test
+	void modifiedAndDeleted() throws IOException {
+		DcmArchive a = DcmArchive.open(dir.toString());
+		Path slice = dir.resolve("ct/ct1.dcm");
+		Files.write(slice, s.ct(8, 8, 2.5, 9));
+		Files.setLastModifiedTime(slice, FileTime.fromMillis(Files.getLastModifiedTime(slice).toMillis()+2000));
+		assertEquals(1, a.update());
+		assertNull(a.instance("1.2.3.5.1"));
+		assertEquals(slice.toString(), a.instance("1.2.3.5.9").path());
+
+		Files.delete(dir.resolve("ct/ct2.dcm"));
+		assertEquals(0, a.update());
+		assertNull(a.instance("1.2.3.5.2"));
+		assertEquals(SLICES-1, a.find(DcmArchive.MODALITY, "CT").size());
+
+		//y el sidecar guardado lo recuerda tras reiniciar
+		DcmArchive b = DcmArchive.open(dir.toString(), sidecar(), closed());
+		assertEquals(SLICES, b.size());
+		assertNotNull(b.instance("1.2.3.5.9"));
+		assertNull(b.instance("1.2.3.5.2"));
+	}
+
+	//sidecar danado, de otra version o con claves fuera de rango: se rehace leyendo todo
+	@Test
+	void rebuilt() throws IOException {
+		DcmArchive.open(dir.toString());
+		Path sidecar = Path.of(sidecar());
+
+		Files.write(sidecar, "garbage".getBytes(StandardCharsets.ISO_8859_1));
+		indexed(DcmArchive.open(dir.toString()));
+
+		byte[] saved = Files.readAllBytes(sidecar);
+		Files.write(sidecar, Arrays.copyOf(saved, saved.length/2));
+		indexed(DcmArchive.open(dir.toString()));
+
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(sidecar.toFile()))) {
+			out.writeInt(0x4D4B4958);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.writeInt(0);
+		}
+		indexed(DcmArchive.open(dir.toString()));
+
+		//registro del plan con su tamano y fecha actuales pero claves negativas: sin rechazarlo
+		//el plan no se releeria y quedaria sin atributos
+		Path plan = dir.resolve("plan.dcm");
+		try (DataOutputStream out = new DataOutputStream(new FileOutputStream(sidecar.toFile()))) {
+			out.writeInt(0x4D4B4958);
+			out.writeInt(1);
+			out.writeInt(0);
+			out.writeInt(1);
+			out.writeUTF("plan.dcm");
+			out.writeLong(Files.size(plan));
+			out.writeLong(Files.getLastModifiedTime(plan).toMillis());
+			out.writeByte(8);
+			for (int k=0; k<8; k++) out.writeInt(-5);
+		}
+		indexed(DcmArchive.open(dir.toString()));
+	}
+}
@@ -0,0 +1,170 @@
+package dcmwork;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+//Cortes CT iguales salvo la posicion: todas las entradas ocupan lo mismo
+public class DcmCacheTest {
+
+	@TempDir
+	Path dir;
+
+	private String slice(int i) throws IOException {
+		Path p = dir.resolve("ct"+i+".dcm");
+		Files.write(p, new SyntheticDicom(SyntheticDicom.EXPLICIT_LE, false).ct(16, 16, i*2.5, i+1));
+		return p.toString();
+	}
+
+	private static double z(DcmCache cache, String path) throws IOException {
+		return cache.get(path).doubles(0x00200032)[2];
+	}
+
+	@Test
+	void counters() throws IOException {
+		DcmCache cache = new DcmCache(1L<<20);
+		String a = slice(0), b = slice(1);
+		assertEquals(0, z(cache, a), 0);
+		assertEquals(2.5, z(cache, b), 0);
+		DcmDataset ds = cache.dataset(a);
+		assertEquals("CT", ds.value(0x00080060));
+		assertSame(ds.index(), cache.dataset(a).index());
+		assertEquals(2, cache.misses());
+		assertEquals(2, cache.hits());
+		assertEquals(0, cache.evictions());
+		assertEquals(2, cache.size());
+		assertTrue(cache.bytes()>0);
+		cache.remove(a);
+		assertEquals(1, cache.size());
+		z(cache, a);
+		assertEquals(3, cache.misses());
+		cache.clear();
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.bytes());
+	}
+
+	//sitio para dos entradas y media: sale la menos usada, no la mas antigua
+	@Test
+	void evictionOrder() throws IOException {
+		String a = slice(0), b = slice(1), c = slice(2);
+		DcmCache probe = new DcmCache(1L<<20);
+		probe.get(a);
+		long entry = probe.bytes();
+		DcmCache cache = new DcmCache(2*entry + entry/2);
+		cache.get(a);
+		cache.get(b);
+		cache.get(a);
+		cache.get(c);
+		assertEquals(1, cache.evictions());
+		assertEquals(2, cache.size());
+		assertTrue(cache.bytes()<=cache.maxBytes());
+		long misses = cache.misses();
+		cache.get(a);
+		cache.get(c);
+		assertEquals(misses, cache.misses());
+		cache.get(b);
+		assertEquals(misses+1, cache.misses());
+		//b ha vuelto echando a a, el menos usado de a y c
+		assertEquals(2, cache.evictions());
+		cache.get(c);
+		assertEquals(misses+1, cache.misses());
+	}
+
+	//un archivo con otra fecha u otro tamano se vuelve a leer
+	@Test
+	void invalidation() throws IOException {
+		DcmCache cache = new DcmCache(1L<<20);
+		String a = slice(0);
+		Path p = Path.of(a);
+		z(cache, a);
+		Files.setLastModifiedTime(p, FileTime.fromMillis(Files.getLastModifiedTime(p).toMillis()+2000));
+		z(cache, a);
+		assertEquals(2, cache.misses());
+
+		//misma fecha y otro contenido de otro tamano
+		FileTime time = Files.getLastModifiedTime(p);
+		Files.write(p, new SyntheticDicom(SyntheticDicom.EXPLICIT_LE, false).ct(32, 32, 7.5, 1));
+		Files.setLastModifiedTime(p, time);
+		assertEquals(7.5, z(cache, a), 0);
+		assertEquals(32, cache.get(a).ints(0x00280010)[0]);
+		assertEquals(3, cache.misses());
+		assertEquals(1, cache.hits());
+		assertEquals(1, cache.size());
+
+		Files.write(p, new byte[16], StandardOpenOption.APPEND);
+		Files.setLastModifiedTime(p, time);
+		z(cache, a);
+		assertEquals(4, cache.misses());
+	}
+
+	//con las metricas activas cuentan las consultas con indice y los aciertos de la cache; sin ellas nada
+	@Test
+	void metrics() throws IOException {
+		DcmCache cache = new DcmCache(1L<<20);
+		String a = slice(0);
+		DcmMetrics.reset();
+		DcmMetrics.setEnabled(true);
+		try {
+			DcmHeadex h = cache.get(a);
+			cache.get(a);
+			assertEquals("CT", h.value(0x00080060));
+			assertEquals(0, h.doubles(0x00200032)[2], 0);
+			assertEquals(1, DcmMetrics.cacheHits());
+			assertEquals(1, DcmMetrics.cacheMisses());
+			assertTrue(DcmMetrics.cacheHitNanos()>0);
+			assertEquals(2, DcmMetrics.lookups());
+			assertTrue(DcmMetrics.lookupNanos()>0);
+			//el indice sale de la cache: solo un recorrido, el de la lectura de la cabecera
+			assertEquals(1, DcmMetrics.scans());
+		} finally {
+			DcmMetrics.setEnabled(false);
+		}
+		cache.get(a).value(0x00080060);
+		assertEquals(1, DcmMetrics.cacheHits());
+		assertEquals(2, DcmMetrics.lookups());
+		DcmMetrics.reset();
+	}
+
+	//fallos a la vez sobre el mismo archivo: una sola lectura
+	@Test
+	void concurrentMisses() throws Exception {
+		final DcmCache cache = new DcmCache(1L<<20);
+		final String a = slice(0);
+		int threads = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		try {
+			List<Future<DcmIndex>> results = new ArrayList<Future<DcmIndex>>();
+			for (int t=0; t<threads; t++) {
+				results.add(pool.submit(new Callable<DcmIndex>() {
+					public DcmIndex call() throws Exception {
+						start.await();
+						return cache.dataset(a).index();
+					}
+				}));
+			}
+			start.countDown();
+			DcmIndex first = results.get(0).get();
+			for (Future<DcmIndex> f : results) assertSame(first, f.get());
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(1, cache.misses());
+		assertEquals(threads-1, cache.hits());
+	}
+}
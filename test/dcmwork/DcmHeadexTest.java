@@ -0,0 +1,309 @@
+package dcmwork;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+//Lectura del corpus sintetico en las cuatro sintaxis (VR explicito/implicito, little/big endian,
+//secuencias con longitud definida o indefinida) con todos los modos del lector
+public class DcmHeadexTest {
+
+	//3 beams de 4 puntos de control con 5 pares de laminas
+	static final int BEAMS = 3, CONTROL_POINTS = 4, LEAF_PAIRS = 5;
+	private static final String DEFLATED = "1.2.840.10008.1.2.1.99";
+
+	@TempDir
+	Path dir;
+
+	static SyntheticDicom synthetic(String syntax) {
+		switch (syntax) {
+			case "imp_le": return new SyntheticDicom(SyntheticDicom.IMPLICIT_LE, false);
+			case "exp_be": return new SyntheticDicom(SyntheticDicom.EXPLICIT_BE, false);
+			case "exp_le_def": return new SyntheticDicom(SyntheticDicom.EXPLICIT_LE, true);
+			default: return new SyntheticDicom(SyntheticDicom.EXPLICIT_LE, false);
+		}
+	}
+
+	static String plan(Path dir, String syntax) throws IOException {
+		Path p = dir.resolve("plan_"+syntax+".dcm");
+		Files.write(p, synthetic(syntax).plan(BEAMS, CONTROL_POINTS, LEAF_PAIRS));
+		return p.toString();
+	}
+
+	//flujo, mapeado, indice y indice mapeado
+	static DcmHeadex[] readers(String path) {
+		DcmHeadex[] h = {new DcmHeadex(path), new DcmHeadex(path), new DcmHeadex(path, true), new DcmHeadex(path, true)};
+		h[1].setMapped(true);
+		h[3].setMapped(true);
+		return h;
+	}
+
+	//FL del ReferencedBeam (300A,0088-008A): en VR implicito solo el diccionario dice que son binarios
+	@ParameterizedTest
+	@ValueSource(strings = {"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	void floatElements(String syntax) throws IOException {
+		String path = plan(dir, syntax);
+		for (DcmHeadex h : readers(path)) {
+			String mode = syntax+" mapped="+h.isMapped()+" parseOnce="+h.isParseOnce();
+			assertArrayEquals(new double[] {50}, h.doubles(0x300A0088), mode);
+			assertArrayEquals(new float[] {49.5f}, h.floats(0x300A0089, 1), mode);
+			assertArrayEquals(new int[] {948}, h.ints(0x300A008A, 2), mode);
+			assertEquals("BEAM_LEVEL", h.value(0x300A008B), mode);
+		}
+		DcmSequence beams = DcmDataset.read(path).root().sequence(0x300A0070).item(0).sequence(0x300C0004);
+		assertEquals(BEAMS, beams.size());
+		for (int b=0; b<BEAMS; b++) {
+			assertArrayEquals(new double[] {48.5+b}, beams.item(b).doubles(0x300A0089), syntax);
+			assertArrayEquals(new double[] {100+b*10.5}, beams.item(b).doubles(0x300A0086), syntax);
+		}
+	}
+
+	//secuencias e items pedidos junto con elementos de dentro (longitud definida e indefinida)
+	@ParameterizedTest
+	@ValueSource(strings = {"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	void nestedValues(String syntax) throws IOException {
+		for (DcmHeadex h : readers(plan(dir, syntax))) {
+			String mode = syntax+" mapped="+h.isMapped()+" parseOnce="+h.isParseOnce();
+			String[] v = h.values(0x300A00B0, 0x300A00C0);
+			assertEquals("", v[0], mode);
+			assertEquals("1", v[1].trim(), mode);
+
+			v = h.values(0x300A0111, 0x300A00B0, 0xFFFEE000, 0x300A0112, 0x300A011C, 0x300A00C2, 0x300A0002);
+			assertEquals("", v[0], mode);
+			assertEquals("", v[1], mode);
+			assertEquals("", v[2], mode);
+			assertEquals("0", v[3].trim(), mode);
+			assertEquals(-50, Double.parseDouble(v[4].split("\\\\")[0]), 1e-9, mode);
+			assertEquals("B1", v[5].trim(), mode);
+			assertEquals("PLAN1", v[6].trim(), mode);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	void planValues(String syntax) throws IOException {
+		for (DcmHeadex h : readers(plan(dir, syntax))) {
+			String mode = syntax+" mapped="+h.isMapped()+" parseOnce="+h.isParseOnce();
+			assertEquals("PLAN1", h.value(0x300A0002).trim(), mode);
+			assertEquals("DOE^JOHN", h.value(0x00100010), mode);
+			assertEquals("B3", h.value(0x300A00C2, 2), mode);
+			assertNull(h.value(0x300A00C2, BEAMS), mode);
+			assertNull(h.value(0x00181000), mode);
+			assertArrayEquals(new double[] {1.5, -20.25, 3}, h.doubles(0x300A0018), mode);
+			assertArrayEquals(new int[] {BEAMS}, h.ints(0x300A0080), mode);
+
+			//ControlPointIndex del segundo beam: entre su TreatmentMachineName y el del tercero
+			String[] cps = h.value(0x300A0112, 1, 0x300A00B2, 0x300A00B2);
+			assertEquals(CONTROL_POINTS, cps.length, mode);
+			for (int c=0; c<CONTROL_POINTS; c++) assertEquals(""+c, cps[c].trim(), mode);
+
+			//MLC del punto de control 2 del beam 0: tercer LeafJawPositions
+			float[] leaves = h.floats(0x300A011C, 3*2+2);
+			assertEquals(2*LEAF_PAIRS, leaves.length, mode);
+			assertEquals(-10.2f, leaves[0], 1e-6f, mode);
+			assertEquals(10.2f+0.25f*(LEAF_PAIRS-1), leaves[2*LEAF_PAIRS-1], 1e-5f, mode);
+
+			String[] v = h.values(0x300A0002, 0x00100020, 0x00081155, 0x00181000);
+			assertEquals("PLAN1", v[0].trim(), mode);
+			assertEquals("PAT001", v[1], mode);
+			assertEquals("1.2.3.77", v[2], mode);
+			assertNull(v[3], mode);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	void planTree(String syntax) throws IOException {
+		for (DcmHeadex h : readers(plan(dir, syntax))) {
+			String mode = syntax+" mapped="+h.isMapped();
+			DcmItem ds = h.dataset();
+			DcmSequence beams = ds.sequence(0x300A00B0);
+			assertNotNull(beams, mode);
+			assertEquals(BEAMS, beams.size(), mode);
+			for (int b=0; b<BEAMS; b++) {
+				DcmItem beam = beams.item(b);
+				assertEquals("B"+(b+1), beam.value(0x300A00C2), mode);
+				DcmSequence cps = beam.sequence(0x300A0111);
+				assertEquals(CONTROL_POINTS, cps.size(), mode);
+				//los dispositivos del punto de control: ASYMX, ASYMY y MLCX
+				DcmItem x = cps.item(CONTROL_POINTS-1).sequence(0x300A011A).item(0);
+				double[] jaws = x.doubles(0x300A011C);
+				assertArrayEquals(new double[] {-50-b, 50+(CONTROL_POINTS-1)*0.1}, jaws, 1e-9, mode);
+				assertArrayEquals(new double[] {b*40.0}, cps.item(0).doubles(0x300A011E), mode);
+				assertTrue(!cps.item(1).contains(0x300A011E), mode);
+			}
+			//la referencia al RT Struct, despues de la secuencia de beams
+			assertEquals("1.2.3.77", ds.sequence(0x300C0060).item(0).value(0x00081155), mode);
+			DcmIndex idx = h.index();
+			int leaf = idx.find(0x300A011C, 3*CONTROL_POINTS+3*1+2);
+			assertEquals("300A00B0[1].300A0111[1].300A011A[2]", idx.sequencePathString(leaf), mode);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	void visitor(final String syntax) throws IOException {
+		for (final boolean mapped : new boolean[] {false, true}) {
+			DcmHeadex h = new DcmHeadex(plan(dir, syntax));
+			h.setMapped(mapped);
+			final int[] counts = new int[4]; //items, fin de secuencias, puntos de control, profundidad maxima
+			final String[] name = new String[1];
+			h.accept(new DcmVisitor() {
+				public int element(int tag, int vr, int length, ByteBuffer value, int depth) {
+					if (tag==DcmIndex.ITEM) counts[0]++;
+					if (tag==0x300A0112) counts[2]++;
+					counts[3] = Math.max(counts[3], depth);
+					if (tag==0x300A0002) {
+						byte[] b = new byte[value.remaining()];
+						value.duplicate().get(b);
+						name[0] = new String(b).trim();
+					}
+					return DESCEND;
+				}
+
+				public int end(int tag, int depth) {
+					if (tag!=DcmIndex.ITEM) counts[1]++;
+					return DESCEND;
+				}
+			});
+			String mode = syntax+" mapped="+mapped;
+			assertEquals("PLAN1", name[0], mode);
+			assertEquals(BEAMS*CONTROL_POINTS, counts[2], mode);
+			//DoseReference, FractionGroup (con sus ReferencedBeams), Beams (con ControlPoints y dispositivos) y ReferencedStructureSet
+			int items = 1 + 1+BEAMS + BEAMS*(1+CONTROL_POINTS*(1+3)) + 1;
+			assertEquals(items, counts[0], mode);
+			assertEquals(5+BEAMS+BEAMS*CONTROL_POINTS, counts[1], mode);
+			assertEquals(3, counts[3], mode);
+		}
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	void contourData(String syntax) throws IOException {
+		Path p = dir.resolve("struct_"+syntax+".dcm");
+		Files.write(p, synthetic(syntax).struct(2, 3, 16));
+		DcmHeadex h = new DcmHeadex(p.toString());
+		h.setMapped(true);
+		final float[] xyz = new float[3*16];
+		final int[] contours = new int[1];
+		h.accept(new DcmVisitor() {
+			public int element(int tag, int vr, int length, ByteBuffer value, int depth) {
+				if (tag==0x30060050) {
+					assertEquals(xyz.length, DcmHeadex.floats(value, vr, xyz, 0));
+					//el primer punto de cada contorno esta en angulo 0
+					if (contours[0]++==4) assertEquals(-100+1*2.5, xyz[2], 1e-4);
+				}
+				return DESCEND;
+			}
+		});
+		assertEquals(2*3, contours[0], syntax);
+		float[] first = new DcmHeadex(p.toString(), true).floats(0x30060050);
+		assertEquals(3*16, first.length, syntax);
+		assertEquals(20f, first[0], 1e-3f, syntax);
+	}
+
+	@ParameterizedTest
+	@ValueSource(strings = {"exp_le", "imp_le", "exp_be", "exp_le_def"})
+	void ctSeries(String syntax) throws IOException {
+		Path series = Files.createDirectories(dir.resolve("ct_"+syntax));
+		SyntheticDicom s = synthetic(syntax);
+		int slices = 4, rows = 16, columns = 12;
+		for (int i=0; i<slices; i++) {
+			//en disco al reves que la posicion
+			Files.write(series.resolve("ct"+i+".dcm"), s.ct(rows, columns, (slices-1-i)*2.5, i+1));
+		}
+		Files.write(series.resolve("plan.dcm"), s.plan(1, 1, 2));
+		DcmDataset[] ct = DcmSeries.loadCT(series.toString());
+		assertEquals(slices, ct.length, syntax);
+		for (int k=0; k<slices; k++) {
+			assertEquals(k*2.5, ct[k].doubles(0x00200032)[2], 1e-9, syntax);
+			DcmPixels p = ct[k].pixels();
+			assertEquals(rows, p.rows(), syntax);
+			assertEquals(columns, p.columns(), syntax);
+			//cilindro de agua (0 HU) en aire (-1024 HU)
+			assertEquals(0, p.value(0, rows/2, columns/2), 1e-9, syntax);
+			assertEquals(-1024, p.value(0, 0, 0), 1e-9, syntax);
+			float[] frame = p.frame(0, null);
+			assertEquals(rows*columns, frame.length, syntax);
+			assertEquals(0f, frame[rows/2*columns + columns/2], syntax);
+		}
+	}
+
+	//un archivo que no es DICOM, uno basura y uno corrupto no impiden leer el resto de la serie
+	@Test
+	void ctSeriesWithJunk() throws IOException {
+		Path series = Files.createDirectories(dir.resolve("ct_junk"));
+		SyntheticDicom s = synthetic("exp_le");
+		for (int i=0; i<3; i++) Files.write(series.resolve("ct"+i+".dcm"), s.ct(8, 8, i*2.5, i+1));
+		Files.write(series.resolve("notes.txt"), "CT series".getBytes(StandardCharsets.ISO_8859_1));
+		Files.write(series.resolve("junk.dcm"), "not a dicom file".getBytes(StandardCharsets.ISO_8859_1));
+		//declara deflate pero el dataset va sin comprimir: la lectura falla con IOException
+		Files.write(series.resolve("corrupt"), new SyntheticDicom(DEFLATED, false).ct(8, 8, 10, 4));
+		DcmDataset[] ct = DcmSeries.loadCT(series.toString());
+		assertEquals(3, ct.length);
+		for (int k=0; k<ct.length; k++) assertEquals(k*2.5, ct[k].doubles(0x00200032)[2], 1e-9);
+	}
+
+	//archivo en VR implicito little endian con los elementos dados (tag, valor) tras el meta header
+	static String implicit(Path file, int[] tags, byte[][] values) throws IOException {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write(new byte[128], 0, 128);
+		o.write("DICM".getBytes(StandardCharsets.ISO_8859_1), 0, 4);
+		byte[] ts = (SyntheticDicom.IMPLICIT_LE+"\0").getBytes(StandardCharsets.ISO_8859_1);
+		ByteBuffer meta = ByteBuffer.allocate(12+8+ts.length).order(ByteOrder.LITTLE_ENDIAN);
+		meta.putShort((short)2).putShort((short)0).put((byte)'U').put((byte)'L').putShort((short)4).putInt(8+ts.length);
+		meta.putShort((short)2).putShort((short)0x10).put((byte)'U').put((byte)'I').putShort((short)ts.length).put(ts);
+		o.write(meta.array(), 0, meta.capacity());
+		for (int k=0; k<tags.length; k++) {
+			ByteBuffer h = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+			h.putShort((short)(tags[k]>>>16)).putShort((short)tags[k]).putInt(values[k].length);
+			o.write(h.array(), 0, 8);
+			o.write(values[k], 0, values[k].length);
+		}
+		Files.write(file, o.toByteArray());
+		return file.toString();
+	}
+
+	//texto que no es un numero o binario con VR desconocido: NaN, no NumberFormatException
+	@Test
+	void malformedNumbers() throws IOException {
+		byte[] binary = {'H', 'B', 0, 0};
+		String path = implicit(dir.resolve("corrupt.dcm"),
+			new int[] {0x00200032, 0x00200037, 0x00280008, 0x30091001},
+			new byte[][] {"1.5\\abc\\2 ".getBytes(StandardCharsets.ISO_8859_1), "1e\\-.\\7E1".getBytes(StandardCharsets.ISO_8859_1),
+				"12x ".getBytes(StandardCharsets.ISO_8859_1), binary});
+		for (DcmHeadex h : readers(path)) {
+			String mode = "mapped="+h.isMapped()+" parseOnce="+h.isParseOnce();
+			double[] ipp = h.doubles(0x00200032);
+			assertEquals(3, ipp.length, mode);
+			assertEquals(1.5, ipp[0], mode);
+			assertTrue(Double.isNaN(ipp[1]), mode);
+			assertEquals(2, ipp[2], mode);
+			double[] iop = h.doubles(0x00200037);
+			assertTrue(Double.isNaN(iop[0]) && Double.isNaN(iop[1]), mode);
+			assertEquals(70, iop[2], mode);
+			assertArrayEquals(new int[] {0}, h.ints(0x00280008), mode);
+			float[] f = h.floats(0x30091001);
+			assertEquals(1, f.length, mode);
+			assertTrue(Float.isNaN(f[0]), mode);
+			assertTrue(Double.isNaN(h.dataset().doubles(0x30091001)[0]), mode);
+		}
+		float[] dst = new float[1];
+		assertEquals(1, DcmHeadex.floats(ByteBuffer.wrap(binary), 0x2D2D, dst, 0));
+		assertTrue(Float.isNaN(dst[0]));
+	}
+}
@@ -0,0 +1,123 @@
+package dcmwork;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+//Pixel data comprimido: RLE Lossless y dataset deflate, comparados con el mismo corte sin comprimir
+public class DcmPixelsTest {
+
+	private static final String RLE = "1.2.840.10008.1.2.5";
+	private static final String DEFLATED = "1.2.840.10008.1.2.1.99";
+	private static final int ROWS = 20, COLUMNS = 18;
+
+	@TempDir
+	Path dir;
+
+	//corte sin comprimir de referencia
+	private float[] reference() throws IOException {
+		Path p = dir.resolve("ct.dcm");
+		Files.write(p, new SyntheticDicom(SyntheticDicom.EXPLICIT_LE, false).ct(ROWS, COLUMNS, 5, 1));
+		return DcmDataset.read(p.toString()).pixels().frame(0, null);
+	}
+
+	//longitud del archivo hasta el final del grupo 0002
+	private static int metaEnd(byte[] b) {
+		return 132+12 + ByteBuffer.wrap(b, 140, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+	}
+
+	@Test
+	void deflated() throws IOException {
+		byte[] plain = new SyntheticDicom(DEFLATED, false).ct(ROWS, COLUMNS, 5, 1);
+		int meta = metaEnd(plain);
+		Deflater d = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		d.setInput(plain, meta, plain.length-meta);
+		d.finish();
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		o.write(plain, 0, meta);
+		byte[] chunk = new byte[4096];
+		while (!d.finished()) o.write(chunk, 0, d.deflate(chunk));
+		d.end();
+		Path p = dir.resolve("deflated.dcm");
+		Files.write(p, o.toByteArray());
+		assertTrue(o.size()<plain.length);
+
+		float[] expected = reference();
+		for (DcmHeadex h : DcmHeadexTest.readers(p.toString())) {
+			String mode = "mapped="+h.isMapped()+" parseOnce="+h.isParseOnce();
+			assertEquals("CT", h.value(0x00080060).trim(), mode);
+			assertArrayEquals(new int[] {ROWS}, h.ints(0x00280010), mode);
+			assertArrayEquals(new double[] {-250, -250, 5}, h.doubles(0x00200032), mode);
+		}
+		DcmPixels px = DcmDataset.read(p.toString()).pixels();
+		assertArrayEquals(expected, px.frame(0, null));
+	}
+
+	@Test
+	void rle() throws IOException {
+		//mismo corte con el pixel data nativo cambiado por un fragmento RLE
+		byte[] plain = new SyntheticDicom(RLE, false).ct(ROWS, COLUMNS, 5, 1);
+		int n = ROWS*COLUMNS;
+		int pixels = plain.length - 2*n;
+		byte[] high = new byte[n], low = new byte[n];
+		for (int i=0; i<n; i++) {
+			low[i] = plain[pixels+2*i];
+			high[i] = plain[pixels+2*i+1];
+		}
+		byte[] s0 = packBits(high), s1 = packBits(low);
+		ByteBuffer frame = ByteBuffer.allocate(64 + s0.length + s1.length + 1).order(ByteOrder.LITTLE_ENDIAN);
+		frame.putInt(2).putInt(64).putInt(64+s0.length);
+		frame.position(64);
+		frame.put(s0).put(s1);
+		int length = frame.position() + (frame.position()&1);
+
+		ByteBuffer o = ByteBuffer.allocate(pixels-12 + 12 + 8 + 8+length + 8).order(ByteOrder.LITTLE_ENDIAN);
+		o.put(plain, 0, pixels-12);
+		o.putShort((short)0x7FE0).putShort((short)0x0010).put((byte)'O').put((byte)'B').putShort((short)0).putInt(-1);
+		o.putShort((short)0xFFFE).putShort((short)0xE000).putInt(0);
+		o.putShort((short)0xFFFE).putShort((short)0xE000).putInt(length);
+		o.put(frame.array(), 0, length);
+		o.putShort((short)0xFFFE).putShort((short)0xE0DD).putInt(0);
+		Path p = dir.resolve("rle.dcm");
+		Files.write(p, Arrays.copyOf(o.array(), o.position()));
+
+		DcmPixels px = DcmDataset.read(p.toString()).pixels();
+		assertTrue(px.isCompressed());
+		assertEquals(ROWS, px.rows());
+		assertArrayEquals(reference(), px.frame(0, null));
+		assertEquals(-1024, px.value(0, 0, 0), 1e-9);
+	}
+
+	//PackBits con repeticiones y literales
+	private static byte[] packBits(byte[] b) {
+		ByteArrayOutputStream o = new ByteArrayOutputStream();
+		int i = 0;
+		while (i<b.length) {
+			int run = 1;
+			while (i+run<b.length && run<128 && b[i+run]==b[i]) run++;
+			if (run>1) {
+				o.write(1-run);
+				o.write(b[i]);
+				i += run;
+				continue;
+			}
+			int start = i;
+			while (i<b.length && i-start<128 && (i+1==b.length || b[i+1]!=b[i])) i++;
+			if (i==start) i++;
+			o.write(i-start-1);
+			o.write(b, start, i-start);
+		}
+		return o.toByteArray();
+	}
+}
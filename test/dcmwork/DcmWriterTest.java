@@ -0,0 +1,106 @@
+package dcmwork;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DcmWriterTest {
+
+	private static final String SOP_CLASS = "1.2.840.10008.5.1.4.1.1.481.2";
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void headerAndSequences() throws IOException {
+		String path = dir.resolve("w.dcm").toString();
+		String uid = DcmWriter.uid();
+		DcmWriter w = new DcmWriter(path, SOP_CLASS, uid);
+		w.dataset()
+			.string(0x00080016, DcmWriter.UI, SOP_CLASS)
+			.string(0x00080018, DcmWriter.UI, uid)
+			.string(0x00100010, DcmWriter.PN, "DOE^JANE")
+			.doubles(0x00200032, DcmWriter.DS, -1.5, 0.1, 1e-9)
+			.ints(0x00280010, DcmWriter.US, 3)
+			.ints(0x00280011, DcmWriter.US, 2)
+			.sequence(0x300C0002, new DcmWriter.Item().string(0x00081155, DcmWriter.UI, "1.2.3"),
+				new DcmWriter.Item().string(0x00081155, DcmWriter.UI, "1.2.34"));
+		w.close();
+		assertFalse(Files.exists(dir.resolve(".w.dcm.tmp")));
+
+		for (DcmHeadex h : DcmHeadexTest.readers(path)) {
+			assertEquals("1.2.840.10008.1.2.1", h.value(0x00020010));
+			assertEquals(uid, h.value(0x00020003));
+			assertEquals("DOE^JANE", h.value(0x00100010));
+			assertArrayEquals(new double[] {-1.5, 0.1, 1e-9}, h.doubles(0x00200032));
+			assertArrayEquals(new int[] {3}, h.ints(0x00280010));
+			assertEquals("1.2.34", h.value(0x00081155, 1));
+		}
+		//la longitud del grupo 0002 llega justo hasta el primer elemento del dataset
+		DcmIndex idx = new DcmHeadex(path, true).index();
+		int meta = Integer.parseInt(new DcmHeadex(path).value(0x00020000).trim());
+		assertEquals(132+12 + meta, idx.offset(idx.find(0x00080016, 0))-8);
+		assertEquals(2, new DcmHeadex(path, true).dataset().sequence(0x300C0002).size());
+	}
+
+	@Test
+	void pixels16() throws IOException {
+		String path = dir.resolve("p.dcm").toString();
+		float[] v = {0, 0.5f, 1, 2, -1, Float.NaN};
+		DcmWriter w = new DcmWriter(path, SOP_CLASS, DcmWriter.uid());
+		double scale = DcmWriter.scaling(FloatBuffer.wrap(v), 16);
+		w.dataset()
+			.ints(0x00280008, DcmWriter.IS, 1)
+			.ints(0x00280010, DcmWriter.US, 2)
+			.ints(0x00280011, DcmWriter.US, 3)
+			.ints(0x00280100, DcmWriter.US, 16)
+			.doubles(0x3004000E, DcmWriter.DS, scale);
+		w.pixels(FloatBuffer.wrap(v), scale, 16);
+		w.close();
+		float[] back = DcmDataset.read(path).pixels().frame(0, null);
+		//negativos y NaN se guardan como 0
+		float[] expected = {0, 0.5f, 1, 2, 0, 0};
+		assertArrayEquals(expected, back, (float)scale);
+	}
+
+	@Test
+	void tagOrder() throws IOException {
+		final DcmWriter w = new DcmWriter(dir.resolve("o.dcm").toString(), SOP_CLASS, DcmWriter.uid());
+		w.dataset().string(0x00100010, DcmWriter.PN, "A");
+		assertThrows(IllegalArgumentException.class, new Executable() {
+			public void execute() {
+				w.dataset().string(0x00080016, DcmWriter.UI, SOP_CLASS);
+			}
+		});
+		w.abort();
+		assertFalse(Files.exists(dir.resolve("o.dcm")));
+		assertFalse(Files.exists(dir.resolve(".o.dcm.tmp")));
+	}
+
+	@Test
+	void decimal() {
+		assertEquals("0", DcmWriter.decimal(0));
+		assertEquals("2.5", DcmWriter.decimal(2.5));
+		assertEquals("-1234.5", DcmWriter.decimal(-1234.5));
+		assertTrue(DcmWriter.decimal(Math.PI).length()<=16);
+		assertEquals(Math.PI, Double.parseDouble(DcmWriter.decimal(Math.PI)), 1e-13);
+		assertTrue(DcmWriter.decimal(1.0/3e-12).length()<=16);
+		assertThrows(IllegalArgumentException.class, new Executable() {
+			public void execute() {
+				DcmWriter.decimal(Double.NaN);
+			}
+		});
+		assertTrue(DcmWriter.uid().startsWith("2.25."));
+		assertTrue(DcmWriter.uid().length()<=64);
+	}
+}